@@ -0,0 +1,103 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.jmh;
+
+import java.io.InputStream;
+import java.security.KeyStore;
+
+import org.opensaml.security.x509.X509Credential;
+import org.opensaml.security.x509.impl.KeyStoreX509CredentialAdapter;
+
+import se.swedenconnect.opensaml.OpenSAMLInitializer;
+import se.swedenconnect.opensaml.OpenSAMLSecurityDefaultsConfig;
+import se.swedenconnect.opensaml.OpenSAMLSecurityExtensionConfig;
+import se.swedenconnect.opensaml.sweid.xmlsec.config.SwedishEidSecurityConfiguration;
+
+/**
+ * Support methods for the benchmarks.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public final class BenchmarkSupport {
+
+  /** The IdP entityID used in the benchmarks. */
+  public static final String IDP_ENTITYID = "https://idp.svelegtest.se/idp";
+
+  /** The signature service entityID used in the benchmarks. */
+  public static final String SIGNSERVICE_ENTITYID = "http://www.example.com/sigservice";
+
+  /** The user ID used in the benchmarks. */
+  public static final String USER_ID = "196302052383";
+
+  /** The SADRequest ID used in the benchmarks. */
+  public static final String SAD_REQUEST_ID = "_a74a068d0548a919e503e5f9ef901851";
+
+  /** The SignRequest ID used in the benchmarks. */
+  public static final String SIGN_REQUEST_ID = "f6e7d061a23293b0053dc7b038a04dad";
+
+  /** The key store holding the benchmark keys. */
+  private static final String KEYSTORE = "/sad-benchmark.p12";
+
+  /** The key store password. */
+  private static final char[] PASSWORD = "secret".toCharArray();
+
+  /**
+   * The key types used by the benchmarks.
+   */
+  public enum KeyType {
+    /** RSA 2048 bits. */
+    RSA,
+    /** RSA 3072 bits (only one key, i.e., number 1, is available). */
+    RSA_3072,
+    /** EC P-256. */
+    EC
+  }
+
+  // Hidden constructor
+  private BenchmarkSupport() {
+  }
+
+  /**
+   * Initializes OpenSAML (if not already initialized).
+   *
+   * @throws Exception for init errors
+   */
+  public static void initializeOpenSAML() throws Exception {
+    final OpenSAMLInitializer bootstrapper = OpenSAMLInitializer.getInstance();
+    if (!bootstrapper.isInitialized()) {
+      bootstrapper.initialize(
+          new OpenSAMLSecurityDefaultsConfig(new SwedishEidSecurityConfiguration()),
+          new OpenSAMLSecurityExtensionConfig());
+    }
+  }
+
+  /**
+   * Loads a benchmark credential.
+   *
+   * @param keyType the key type
+   * @param number the key number (1-3, except for {@link KeyType#RSA_3072} where only 1 is available)
+   * @return the credential
+   * @throws Exception for errors loading the credential
+   */
+  public static X509Credential getCredential(final KeyType keyType, final int number) throws Exception {
+    final KeyStore keyStore = KeyStore.getInstance("PKCS12");
+    try (final InputStream is = BenchmarkSupport.class.getResourceAsStream(KEYSTORE)) {
+      keyStore.load(is, PASSWORD);
+    }
+    return new KeyStoreX509CredentialAdapter(keyStore, keyType.name().toLowerCase() + "-" + number, PASSWORD);
+  }
+
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.jmh;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import se.swedenconnect.opensaml.sweid.saml2.authn.LevelOfAssuranceUris;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SADFactory;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SADParser;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SAD;
+
+/**
+ * Benchmarks for issuing SAD:s, i.e., building the SAD, creating and signing the SAD JWT, and for parsing SAD JWT:s.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SADIssuanceBenchmark {
+
+  /** The type of the IdP signing key. */
+  @Param({ "RSA", "EC" })
+  public BenchmarkSupport.KeyType keyType;
+
+  /** The SAD factory. */
+  private SADFactory sadFactory;
+
+  /** A pre-built SAD. */
+  private SAD sad;
+
+  /** A pre-built SAD JWT. */
+  private String sadJwt;
+
+  /**
+   * Sets up the benchmark.
+   *
+   * @throws Exception for setup errors
+   */
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkSupport.initializeOpenSAML();
+    this.sadFactory = new SADFactory(BenchmarkSupport.IDP_ENTITYID, BenchmarkSupport.getCredential(this.keyType, 1));
+    this.sad = this.buildSad();
+    this.sadJwt = this.sadFactory.createJwt(this.sad);
+  }
+
+  /**
+   * Builds a SAD object.
+   *
+   * @return the SAD
+   */
+  @Benchmark
+  public SAD buildSad() {
+    return this.sadFactory.getBuilder()
+        .subject(BenchmarkSupport.USER_ID)
+        .audience(BenchmarkSupport.SIGNSERVICE_ENTITYID)
+        .inResponseTo(BenchmarkSupport.SAD_REQUEST_ID)
+        .loa(LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3)
+        .requestID(BenchmarkSupport.SIGN_REQUEST_ID)
+        .numberOfDocuments(1)
+        .buildSAD();
+  }
+
+  /**
+   * Creates and signs a SAD JWT for a pre-built SAD.
+   *
+   * @return the SAD JWT
+   * @throws Exception for errors
+   */
+  @Benchmark
+  public String createJwt() throws Exception {
+    return this.sadFactory.createJwt(this.sad);
+  }
+
+  /**
+   * Builds a SAD and creates and signs a SAD JWT (what an IdP does for each SAD).
+   *
+   * @return the SAD JWT
+   * @throws Exception for errors
+   */
+  @Benchmark
+  public String buildAndCreateJwt() throws Exception {
+    return this.sadFactory.createJwt(this.buildSad());
+  }
+
+  /**
+   * Parses a SAD JWT (without validation).
+   *
+   * @return the SAD
+   * @throws Exception for errors
+   */
+  @Benchmark
+  public SAD parse() throws Exception {
+    return SADParser.parse(this.sadJwt);
+  }
+
+}
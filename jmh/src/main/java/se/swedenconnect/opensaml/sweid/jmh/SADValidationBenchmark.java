@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.KeyDescriptor;
+import org.opensaml.security.credential.UsageType;
+
+import se.swedenconnect.opensaml.saml2.metadata.build.EntityDescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.IDPSSODescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.KeyDescriptorBuilder;
+import se.swedenconnect.opensaml.sweid.saml2.authn.LevelOfAssuranceUris;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SADFactory;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SADParser;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SADParser.SADValidator;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SAD;
+
+/**
+ * Benchmarks for SAD validation using {@link SADValidator}.
+ * <p>
+ * When more than one IdP certificate is configured, the certificate that matches the signing key is listed last, i.e.,
+ * the benchmark measures the worst case for a validator that needs to try all certificates.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SADValidationBenchmark {
+
+  /**
+   * How the validator gets the IdP certificates.
+   */
+  public enum ValidatorType {
+    /** The certificates are given to the validator. */
+    STATIC,
+    /** The certificates are read from IdP metadata. */
+    METADATA
+  }
+
+  /** The type of the IdP signing key. */
+  @Param({ "RSA", "EC" })
+  public BenchmarkSupport.KeyType keyType;
+
+  /** The number of IdP signing certificates. */
+  @Param({ "1", "3" })
+  public int candidates;
+
+  /** The validator type. */
+  @Param({ "STATIC", "METADATA" })
+  public ValidatorType validator;
+
+  /** The SAD validator. */
+  private SADValidator sadValidator;
+
+  /** The SAD JWT to validate. */
+  private String sadJwt;
+
+  /**
+   * Sets up the benchmark.
+   *
+   * @throws Exception for setup errors
+   */
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkSupport.initializeOpenSAML();
+
+    final SADFactory sadFactory =
+        new SADFactory(BenchmarkSupport.IDP_ENTITYID, BenchmarkSupport.getCredential(this.keyType, 1));
+    // Make sure that the SAD does not expire during the benchmark run
+    sadFactory.setValidityTime(24 * 60 * 60);
+
+    final SAD sad = sadFactory.getBuilder()
+        .subject(BenchmarkSupport.USER_ID)
+        .audience(BenchmarkSupport.SIGNSERVICE_ENTITYID)
+        .inResponseTo(BenchmarkSupport.SAD_REQUEST_ID)
+        .loa(LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3)
+        .requestID(BenchmarkSupport.SIGN_REQUEST_ID)
+        .numberOfDocuments(1)
+        .buildSAD();
+    this.sadJwt = sadFactory.createJwt(sad);
+
+    // The matching certificate is placed last ...
+    final List<X509Certificate> certificates = new ArrayList<>();
+    for (int i = 2; i <= this.candidates; i++) {
+      certificates.add(BenchmarkSupport.getCredential(this.keyType, i).getEntityCertificate());
+    }
+    certificates.add(BenchmarkSupport.getCredential(this.keyType, 1).getEntityCertificate());
+
+    if (this.validator == ValidatorType.STATIC) {
+      this.sadValidator = SADParser.getValidator(certificates.toArray(X509Certificate[]::new));
+    }
+    else {
+      final List<KeyDescriptor> keyDescriptors = new ArrayList<>();
+      for (final X509Certificate certificate : certificates) {
+        keyDescriptors.add(KeyDescriptorBuilder.builder()
+            .use(UsageType.SIGNING)
+            .certificate(new ByteArrayInputStream(certificate.getEncoded()))
+            .build());
+      }
+      final EntityDescriptor idpMetadata = EntityDescriptorBuilder.builder()
+          .entityID(BenchmarkSupport.IDP_ENTITYID)
+          .ssoDescriptor(IDPSSODescriptorBuilder.builder()
+              .keyDescriptors(keyDescriptors.toArray(KeyDescriptor[]::new))
+              .build())
+          .build();
+      this.sadValidator = SADParser.getValidator(idpMetadata);
+    }
+
+    // The same SAD is validated over and over again, so replay checking is turned off.
+    this.sadValidator.setReplayChecker(null);
+  }
+
+  /**
+   * Validates the SAD JWT.
+   *
+   * @return the SAD
+   * @throws Exception for validation errors
+   */
+  @Benchmark
+  public SAD validate() throws Exception {
+    return this.sadValidator.validate(this.sadJwt, BenchmarkSupport.IDP_ENTITYID,
+        BenchmarkSupport.SIGNSERVICE_ENTITYID, BenchmarkSupport.USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3,
+        BenchmarkSupport.SAD_REQUEST_ID, 1, BenchmarkSupport.SIGN_REQUEST_ID);
+  }
+
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.jmh;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.metadata.resolver.MetadataResolver;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.UsageType;
+import org.opensaml.security.crypto.JCAConstants;
+import org.opensaml.security.x509.X509Credential;
+import org.opensaml.xmlsec.agreement.impl.KeyWrap;
+import org.opensaml.xmlsec.derivation.impl.ConcatKDF;
+import org.opensaml.xmlsec.encryption.support.EncryptionConstants;
+import org.opensaml.xmlsec.encryption.support.KeyAgreementEncryptionConfiguration;
+import org.opensaml.xmlsec.impl.BasicEncryptionConfiguration;
+
+import se.swedenconnect.opensaml.saml2.metadata.build.EntityDescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.IDPSSODescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.KeyDescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.provider.MetadataProvider;
+import se.swedenconnect.opensaml.saml2.metadata.provider.StaticMetadataProvider;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SignMessageDecrypter;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SignMessageEncrypter;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.Message;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.SignMessage;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.SignMessageMimeTypeEnum;
+import se.swedenconnect.opensaml.sweid.xmlsec.config.SwedishEidSecurityConfiguration;
+import se.swedenconnect.opensaml.xmlsec.encryption.support.SAMLObjectEncrypter;
+
+/**
+ * Benchmarks for encrypting and decrypting {@code SignMessage} objects using {@link SignMessageEncrypter} and
+ * {@link SignMessageDecrypter}, for each of the data encryption and key transport (key agreement) algorithms that are
+ * allowed by {@link SwedishEidSecurityConfiguration}.
+ * <p>
+ * Each benchmark uses an encryption configuration that holds exactly one data encryption algorithm and one key
+ * transport algorithm, so that the cost of each algorithm choice can be compared. The encrypter caches the encryption
+ * parameters for the IdP (except for key agreement), so the encryption benchmark measures the per-message cost, i.e.,
+ * generating the data encryption key, the symmetric encryption and the key transport (or key agreement).
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignMessageEncryptionBenchmark {
+
+  /**
+   * The data encryption algorithms.
+   */
+  public enum DataEncryption {
+    /** AES-256 CBC. */
+    AES256_CBC(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256),
+    /** AES-192 CBC. */
+    AES192_CBC(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES192),
+    /** AES-128 CBC. */
+    AES128_CBC(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128),
+    /** AES-256 GCM. */
+    AES256_GCM(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES256_GCM),
+    /** AES-192 GCM. */
+    AES192_GCM(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES192_GCM),
+    /** AES-128 GCM. */
+    AES128_GCM(EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128_GCM),
+    /** Triple DES. */
+    TRIPLEDES(EncryptionConstants.ALGO_ID_BLOCKCIPHER_TRIPLEDES);
+
+    /** The algorithm URI. */
+    private final String algorithm;
+
+    /**
+     * Constructor.
+     *
+     * @param algorithm the algorithm URI
+     */
+    DataEncryption(final String algorithm) {
+      this.algorithm = algorithm;
+    }
+  }
+
+  /**
+   * The key management options, i.e., the recipient key type and the key transport (or key agreement and key wrap)
+   * algorithm.
+   */
+  public enum KeyManagement {
+    /** RSA 2048 using RSA-OAEP (MGF1 with SHA-1). */
+    RSA_2048_OAEP_MGF1P(BenchmarkSupport.KeyType.RSA, EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP),
+    /** RSA 2048 using RSA-OAEP (XML Encryption 1.1). */
+    RSA_2048_OAEP11(BenchmarkSupport.KeyType.RSA, EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP11),
+    /** RSA 3072 using RSA-OAEP (MGF1 with SHA-1). */
+    RSA_3072_OAEP_MGF1P(BenchmarkSupport.KeyType.RSA_3072, EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP),
+    /** RSA 3072 using RSA-OAEP (XML Encryption 1.1). */
+    RSA_3072_OAEP11(BenchmarkSupport.KeyType.RSA_3072, EncryptionConstants.ALGO_ID_KEYTRANSPORT_RSAOAEP11),
+    /** EC P-256 using ECDH-ES and AES-256 key wrap. */
+    EC_ECDH_ES_KW_AES256(BenchmarkSupport.KeyType.EC, EncryptionConstants.ALGO_ID_KEYWRAP_AES256),
+    /** EC P-256 using ECDH-ES and AES-128 key wrap. */
+    EC_ECDH_ES_KW_AES128(BenchmarkSupport.KeyType.EC, EncryptionConstants.ALGO_ID_KEYWRAP_AES128);
+
+    /** The key type. */
+    private final BenchmarkSupport.KeyType keyType;
+
+    /** The key transport (or key wrap) algorithm URI. */
+    private final String algorithm;
+
+    /**
+     * Constructor.
+     *
+     * @param keyType the key type
+     * @param algorithm the key transport (or key wrap) algorithm URI
+     */
+    KeyManagement(final BenchmarkSupport.KeyType keyType, final String algorithm) {
+      this.keyType = keyType;
+      this.algorithm = algorithm;
+    }
+  }
+
+  /** The data encryption algorithm. */
+  @Param({ "AES256_CBC", "AES192_CBC", "AES128_CBC", "AES256_GCM", "AES192_GCM", "AES128_GCM", "TRIPLEDES" })
+  public DataEncryption dataEncryption;
+
+  /** The key management. */
+  @Param({ "RSA_2048_OAEP_MGF1P", "RSA_2048_OAEP11", "RSA_3072_OAEP_MGF1P", "RSA_3072_OAEP11",
+      "EC_ECDH_ES_KW_AES256", "EC_ECDH_ES_KW_AES128" })
+  public KeyManagement keyManagement;
+
+  /** The size of the sign message (in bytes, UTF-8 encoded). */
+  @Param({ "200", "1024", "8192" })
+  public int messageSize;
+
+  /** The SignMessage encrypter. */
+  private SignMessageEncrypter encrypter;
+
+  /** The SignMessage decrypter. */
+  private SignMessageDecrypter decrypter;
+
+  /** The encryption configuration holding the algorithms for the benchmark. */
+  private BasicEncryptionConfiguration configuration;
+
+  /** The Base64-encoded message (the value of the Message element). */
+  private String messageValue;
+
+  /** An encrypted sign message (for the decryption benchmark). */
+  private SignMessage encryptedSignMessage;
+
+  /**
+   * Sets up the benchmark.
+   *
+   * @throws Exception for setup errors
+   */
+  @Setup
+  public void setup() throws Exception {
+    BenchmarkSupport.initializeOpenSAML();
+
+    final X509Credential credential = BenchmarkSupport.getCredential(this.keyManagement.keyType, 1);
+    final EntityDescriptor idpMetadata = EntityDescriptorBuilder.builder()
+        .entityID(BenchmarkSupport.IDP_ENTITYID)
+        .ssoDescriptor(IDPSSODescriptorBuilder.builder()
+            .keyDescriptors(KeyDescriptorBuilder.builder()
+                .use(UsageType.ENCRYPTION)
+                .certificate(new ByteArrayInputStream(credential.getEntityCertificate().getEncoded()))
+                .build())
+            .build())
+        .build();
+    final MetadataProvider metadataProvider = new StaticMetadataProvider(idpMetadata);
+    metadataProvider.initialize();
+    final MetadataResolver metadataResolver = metadataProvider.getMetadataResolver();
+
+    this.encrypter = new SignMessageEncrypter(new SAMLObjectEncrypter(metadataResolver), metadataResolver);
+    this.decrypter = new SignMessageDecrypter(credential);
+
+    this.configuration = new BasicEncryptionConfiguration();
+    this.configuration.setDataEncryptionAlgorithms(List.of(this.dataEncryption.algorithm));
+    this.configuration.setKeyTransportEncryptionAlgorithms(List.of(this.keyManagement.algorithm));
+    if (this.keyManagement.keyType == BenchmarkSupport.KeyType.EC) {
+      final KeyAgreementEncryptionConfiguration ecConfig = new KeyAgreementEncryptionConfiguration();
+      ecConfig.setAlgorithm(EncryptionConstants.ALGO_ID_KEYAGREEMENT_ECDH_ES);
+      ecConfig.setParameters(Set.of(new KeyWrap(), new ConcatKDF()));
+      this.configuration.setKeyAgreementConfigurations(Map.of(JCAConstants.KEY_ALGO_EC, ecConfig));
+    }
+
+    // The filler text contains non-ASCII characters, so the message is built based on its UTF-8 length.
+    final String text = "Jag godkänner att underteckna avtalet. ";
+    final StringBuilder sb = new StringBuilder(this.messageSize);
+    int bytes = 0;
+    for (int i = 0;; i = (i + 1) % text.length()) {
+      final int length = String.valueOf(text.charAt(i)).getBytes(StandardCharsets.UTF_8).length;
+      if (bytes + length > this.messageSize) {
+        break;
+      }
+      sb.append(text.charAt(i));
+      bytes += length;
+    }
+    while (bytes++ < this.messageSize) {
+      sb.append(' ');
+    }
+    final Message message = (Message) XMLObjectSupport.buildXMLObject(Message.DEFAULT_ELEMENT_NAME);
+    message.setContent(sb.toString());
+    this.messageValue = message.getValue();
+
+    this.encryptedSignMessage = this.encrypt();
+  }
+
+  /**
+   * Encrypts a sign message. A new {@code SignMessage} is created for each invocation (encryption replaces the
+   * {@code Message} with an {@code EncryptedMessage}).
+   *
+   * @return the encrypted sign message
+   * @throws Exception for encryption errors
+   */
+  @Benchmark
+  public SignMessage encrypt() throws Exception {
+    final Message message = (Message) XMLObjectSupport.buildXMLObject(Message.DEFAULT_ELEMENT_NAME);
+    message.setValue(this.messageValue);
+    final SignMessage signMessage = (SignMessage) XMLObjectSupport.buildXMLObject(SignMessage.DEFAULT_ELEMENT_NAME);
+    signMessage.setMimeType(SignMessageMimeTypeEnum.TEXT);
+    signMessage.setMessage(message);
+
+    this.encrypter.encrypt(signMessage, BenchmarkSupport.IDP_ENTITYID, this.configuration);
+    return signMessage;
+  }
+
+  /**
+   * Decrypts a sign message.
+   *
+   * @return the decrypted message
+   * @throws Exception for decryption errors
+   */
+  @Benchmark
+  public Message decrypt() throws Exception {
+    return this.decrypter.decrypt(this.encryptedSignMessage);
+  }
+
+}
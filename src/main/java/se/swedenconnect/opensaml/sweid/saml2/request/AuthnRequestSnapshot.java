@@ -0,0 +1,223 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.request;
+
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import se.swedenconnect.opensaml.sweid.LibraryVersion;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SADRequest;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * An immutable snapshot of the parts of an {@code AuthnRequest} that are needed when the corresponding response is
+ * validated. Instead of keeping the complete (DOM-backed) {@code AuthnRequest} object in the session until the response
+ * is received, an SP may save a snapshot.
+ * <p>
+ * The snapshot holds the request ID, the requested authentication context class references, the {@code SADRequest}
+ * data (if present) and whether the Holder-of-key profile is used.
+ * </p>
+ * <p>
+ * The snapshot may be used in place of the {@code AuthnRequest} when the assertion validators and the SAD validator
+ * are invoked directly. Note, however, that the response processor
+ * ({@code se.swedenconnect.opensaml.saml2.response.ResponseProcessorImpl}) checks the {@code InResponseTo} attribute of
+ * the response against the {@code AuthnRequest} returned by {@code ResponseProcessingInput.getAuthnRequest}. An SP
+ * that uses the response processor therefore still needs to supply the {@code AuthnRequest} through the processing
+ * input.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public final class AuthnRequestSnapshot implements Serializable {
+
+  /** For serializing. */
+  private static final long serialVersionUID = LibraryVersion.SERIAL_VERSION_UID;
+
+  /** The URI for the Holder-of-key Web Browser SSO profile. */
+  public static final String HOK_SSO_PROFILE_URI = "urn:oasis:names:tc:SAML:2.0:profiles:holder-of-key:SSO:browser";
+
+  /** The AuthnRequest ID. */
+  private final String id;
+
+  /** The requested authentication context class references. */
+  private final List<String> requestedAuthnContextClassRefs;
+
+  /** The SADRequest ID (if a SADRequest was included). */
+  private final String sadRequestID;
+
+  /** The SADRequest requester ID. */
+  private final String sadRequesterID;
+
+  /** The SADRequest SignRequest ID. */
+  private final String signRequestID;
+
+  /** The SADRequest document count. */
+  private final Integer docCount;
+
+  /** Whether the Holder-of-key profile is used. */
+  private final boolean holderOfKey;
+
+  /**
+   * Constructor creating a snapshot of the supplied {@code AuthnRequest}.
+   *
+   * @param authnRequest the AuthnRequest
+   */
+  public AuthnRequestSnapshot(final AuthnRequest authnRequest) {
+    Objects.requireNonNull(authnRequest, "authnRequest must not be null");
+    this.id = authnRequest.getID();
+    if (authnRequest.getRequestedAuthnContext() != null
+        && authnRequest.getRequestedAuthnContext().getAuthnContextClassRefs() != null) {
+      this.requestedAuthnContextClassRefs = authnRequest.getRequestedAuthnContext()
+          .getAuthnContextClassRefs()
+          .stream()
+          .map(AuthnContextClassRef::getURI)
+          .filter(Objects::nonNull)
+          .toList();
+    }
+    else {
+      this.requestedAuthnContextClassRefs = Collections.emptyList();
+    }
+    final SADRequest sadRequest = authnRequest.getExtensions() != null
+        ? authnRequest.getExtensions()
+        .getUnknownXMLObjects()
+        .stream()
+        .filter(SADRequest.class::isInstance)
+        .map(SADRequest.class::cast)
+        .findFirst()
+        .orElse(null)
+        : null;
+    if (sadRequest != null) {
+      this.sadRequestID = sadRequest.getID();
+      this.sadRequesterID = sadRequest.getRequesterID();
+      this.signRequestID = sadRequest.getSignRequestID();
+      this.docCount = sadRequest.getDocCount();
+    }
+    else {
+      this.sadRequestID = null;
+      this.sadRequesterID = null;
+      this.signRequestID = null;
+      this.docCount = null;
+    }
+    this.holderOfKey = HOK_SSO_PROFILE_URI.equals(authnRequest.getProtocolBinding());
+  }
+
+  /**
+   * Constructor assigning all fields (used when a snapshot is restored by a {@link PendingRequestStore}).
+   *
+   * @param id the AuthnRequest ID
+   * @param requestedAuthnContextClassRefs the requested authentication context class references
+   * @param sadRequestID the SADRequest ID
+   * @param sadRequesterID the SADRequest requester ID
+   * @param signRequestID the SADRequest SignRequest ID
+   * @param docCount the SADRequest document count
+   * @param holderOfKey whether the Holder-of-key profile is used
+   */
+  AuthnRequestSnapshot(final String id, final List<String> requestedAuthnContextClassRefs, final String sadRequestID,
+      final String sadRequesterID, final String signRequestID, final Integer docCount, final boolean holderOfKey) {
+    this.id = Objects.requireNonNull(id, "id must not be null");
+    this.requestedAuthnContextClassRefs = List.copyOf(requestedAuthnContextClassRefs);
+    this.sadRequestID = sadRequestID;
+    this.sadRequesterID = sadRequesterID;
+    this.signRequestID = signRequestID;
+    this.docCount = docCount;
+    this.holderOfKey = holderOfKey;
+  }
+
+  /**
+   * Gets the ID of the {@code AuthnRequest}.
+   *
+   * @return the ID
+   */
+  public String getId() {
+    return this.id;
+  }
+
+  /**
+   * Gets the requested authentication context class reference URI:s.
+   *
+   * @return a (possibly empty) list of URI:s
+   */
+  public List<String> getRequestedAuthnContextClassRefs() {
+    return this.requestedAuthnContextClassRefs;
+  }
+
+  /**
+   * Tells whether the {@code AuthnRequest} contained a {@code SADRequest} extension.
+   *
+   * @return {@code true} if a SADRequest was included and {@code false} otherwise
+   */
+  public boolean hasSADRequest() {
+    return this.sadRequestID != null;
+  }
+
+  /**
+   * Gets the ID of the {@code SADRequest}.
+   *
+   * @return the SADRequest ID, or {@code null} if no SADRequest was included
+   */
+  public String getSadRequestID() {
+    return this.sadRequestID;
+  }
+
+  /**
+   * Gets the requester ID of the {@code SADRequest}.
+   *
+   * @return the requester ID, or {@code null}
+   */
+  public String getSadRequesterID() {
+    return this.sadRequesterID;
+  }
+
+  /**
+   * Gets the SignRequest ID of the {@code SADRequest}.
+   *
+   * @return the SignRequest ID, or {@code null}
+   */
+  public String getSignRequestID() {
+    return this.signRequestID;
+  }
+
+  /**
+   * Gets the number of documents given in the {@code SADRequest}.
+   *
+   * @return the document count, or {@code null}
+   */
+  public Integer getDocCount() {
+    return this.docCount;
+  }
+
+  /**
+   * Tells whether the {@code AuthnRequest} was sent using the Holder-of-key profile.
+   *
+   * @return {@code true} if Holder-of-key is used and {@code false} otherwise
+   */
+  public boolean isHolderOfKey() {
+    return this.holderOfKey;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String toString() {
+    return String.format("id='%s', requested-authn-context-class-refs=%s, sad-request-id='%s', "
+            + "sad-requester-id='%s', sign-request-id='%s', doc-count=%s, holder-of-key=%s",
+        this.id, this.requestedAuthnContextClassRefs, this.sadRequestID, this.sadRequesterID, this.signRequestID,
+        this.docCount, this.holderOfKey);
+  }
+
+}
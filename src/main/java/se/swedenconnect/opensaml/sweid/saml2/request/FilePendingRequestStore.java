@@ -0,0 +1,382 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.request;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * A {@link PendingRequestStore} that keeps the pending requests in memory (see {@link InMemoryPendingRequestStore}),
+ * and also records all changes in a local journal file. When the store is created, the journal is read, so that
+ * pending requests survive an application restart.
+ * <p>
+ * Each stored request is appended to the journal, and so is the removal of a consumed request. The journal is compacted
+ * (rewritten with the non-expired requests only) when it is opened, and when it has grown to hold considerably more
+ * records than there are requests in the store. Since expired requests are not removed from the store until needed,
+ * the journal is also compacted when it has grown and the time-to-live has passed since the last compaction (all
+ * records older than that refer to consumed or expired requests).
+ * </p>
+ * <p>
+ * The journal is written to the operating system on each change, but is not forced to the storage device. This
+ * means that requests survive a restart of the application, but not necessarily a crash of the host.
+ * </p>
+ * <p>
+ * Stores and consumes are serialized using the store lock, so that the journal records always appear in the same
+ * order as the corresponding in-memory changes.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class FilePendingRequestStore extends InMemoryPendingRequestStore implements AutoCloseable {
+
+  /** Record type for a stored request. */
+  private static final byte RECORD_STORE = 1;
+
+  /** Record type for a consumed request. */
+  private static final byte RECORD_CONSUME = 2;
+
+  /** The minimum number of journal records before compaction is considered. */
+  private static final int COMPACT_THRESHOLD = 1024;
+
+  /** Logger instance. */
+  private static final Logger log = LoggerFactory.getLogger(FilePendingRequestStore.class);
+
+  /** The journal file. */
+  private final Path file;
+
+  /** The channel for appending to the journal. */
+  private FileChannel channel;
+
+  /** The minimum time (millis) between two compactions that are due to time (the time-to-live). */
+  private final long compactInterval;
+
+  /** The number of records in the journal. */
+  private int records;
+
+  /** The time of the last compaction (millis since 1970-01-01). */
+  private long lastCompaction;
+
+  /**
+   * Constructor using {@link #DEFAULT_TTL}, {@link #DEFAULT_MAX_ENTRIES} and {@link #DEFAULT_STRIPES}.
+   *
+   * @param file the journal file (created if it does not exist)
+   * @throws IOException if the journal can not be read or created
+   */
+  public FilePendingRequestStore(final Path file) throws IOException {
+    this(file, DEFAULT_TTL, DEFAULT_MAX_ENTRIES, DEFAULT_STRIPES);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param file the journal file (created if it does not exist)
+   * @param ttl the time-to-live for pending requests
+   * @param maxEntries the maximum number of entries to hold
+   * @param stripes the number of stripes (will be rounded up to the nearest power of two)
+   * @throws IOException if the journal can not be read or created
+   */
+  public FilePendingRequestStore(final Path file, final Duration ttl, final int maxEntries, final int stripes)
+      throws IOException {
+    super(ttl, maxEntries, stripes);
+    this.file = Objects.requireNonNull(file, "file must not be null");
+    this.compactInterval = ttl.toMillis();
+    this.load();
+    this.compact();
+  }
+
+  /**
+   * Appends a "store" record to the journal and then adds the request to the in-memory store. Both are done while
+   * holding the store lock, so that the "store" record is always written before any "consume" record for the request.
+   */
+  @Override
+  protected synchronized void put(final AuthnRequestSnapshot request, final long expiresAt) {
+    this.append(encodeStore(request, expiresAt));
+    super.put(request, expiresAt);
+    this.compactIfNeeded();
+  }
+
+  /**
+   * Consumes the request from the in-memory store and appends a "consume" record to the journal while holding the
+   * store lock (see {@link #put(AuthnRequestSnapshot, long)}).
+   */
+  @Override
+  public synchronized AuthnRequestSnapshot consume(final String requestID) {
+    final AuthnRequestSnapshot request = super.consume(requestID);
+    if (request != null) {
+      this.append(encodeConsume(requestID));
+      this.compactIfNeeded();
+    }
+    return request;
+  }
+
+  /**
+   * Closes the journal file.
+   *
+   * @throws IOException for errors closing the file
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (this.channel != null) {
+      this.channel.close();
+      this.channel = null;
+    }
+  }
+
+  /**
+   * Appends a record to the journal.
+   *
+   * @param record the record
+   */
+  private void append(final byte[] record) {
+    try {
+      if (this.channel == null) {
+        throw new IOException("Journal file is closed");
+      }
+      final ByteBuffer buffer = ByteBuffer.wrap(record);
+      while (buffer.hasRemaining()) {
+        this.channel.write(buffer);
+      }
+      this.records++;
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException("Failed to write to pending request journal " + this.file, e);
+    }
+  }
+
+  /**
+   * Compacts the journal if it holds more than twice as many records as there are requests in the store, or if the
+   * time-to-live has passed since the last compaction. In both cases, the journal must have grown beyond
+   * {@link #COMPACT_THRESHOLD} records. Must be invoked after the in-memory store has been updated, so that the
+   * compacted journal reflects the last change.
+   */
+  private void compactIfNeeded() {
+    if (this.records <= COMPACT_THRESHOLD) {
+      return;
+    }
+    if (this.records > 2 * this.size() || this.currentTimeMillis() - this.lastCompaction >= this.compactInterval) {
+      try {
+        this.compact();
+      }
+      catch (final IOException e) {
+        throw new UncheckedIOException("Failed to compact pending request journal " + this.file, e);
+      }
+    }
+  }
+
+  /**
+   * Reads the journal (if it exists) and restores the pending requests that have not expired.
+   *
+   * @throws IOException for read errors
+   */
+  private void load() throws IOException {
+    if (!Files.exists(this.file)) {
+      return;
+    }
+    final Map<String, Long> expiration = new HashMap<>();
+    final Map<String, AuthnRequestSnapshot> requests = new HashMap<>();
+    try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(this.file)))) {
+      while (true) {
+        final int type = in.read();
+        if (type == -1) {
+          break;
+        }
+        try {
+          if (type == RECORD_STORE) {
+            final long expiresAt = in.readLong();
+            final AuthnRequestSnapshot request = readSnapshot(in);
+            expiration.put(request.getId(), expiresAt);
+            requests.put(request.getId(), request);
+          }
+          else if (type == RECORD_CONSUME) {
+            final String id = in.readUTF();
+            expiration.remove(id);
+            requests.remove(id);
+          }
+          else {
+            log.warn("Unknown record type in pending request journal {} - ignoring remaining records", this.file);
+            break;
+          }
+        }
+        catch (final EOFException e) {
+          // A partially written record at the end of the journal ...
+          log.warn("Truncated record at end of pending request journal {} - ignoring", this.file);
+          break;
+        }
+      }
+    }
+    final long now = this.currentTimeMillis();
+    for (final Map.Entry<String, AuthnRequestSnapshot> e : requests.entrySet()) {
+      final long expiresAt = expiration.get(e.getKey());
+      if (expiresAt > now) {
+        super.put(e.getValue(), expiresAt);
+      }
+    }
+    log.debug("Restored pending requests from journal {}", this.file);
+  }
+
+  /**
+   * Rewrites the journal so that it only holds the pending requests that have not expired.
+   *
+   * @throws IOException for write errors
+   */
+  private synchronized void compact() throws IOException {
+    final List<byte[]> entries = new ArrayList<>();
+    this.forEach((r, e) -> entries.add(encodeStore(r, e)));
+
+    final Path tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+    try (final FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.TRUNCATE_EXISTING)) {
+      for (final byte[] entry : entries) {
+        final ByteBuffer buffer = ByteBuffer.wrap(entry);
+        while (buffer.hasRemaining()) {
+          out.write(buffer);
+        }
+      }
+      out.force(true);
+    }
+    if (this.channel != null) {
+      this.channel.close();
+    }
+    Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+        StandardOpenOption.APPEND);
+    this.records = entries.size();
+    this.lastCompaction = this.currentTimeMillis();
+  }
+
+  /**
+   * Encodes a "store" record.
+   *
+   * @param request the request
+   * @param expiresAt the expiration time
+   * @return the encoding
+   */
+  private static byte[] encodeStore(final AuthnRequestSnapshot request, final long expiresAt) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+      final DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(RECORD_STORE);
+      out.writeLong(expiresAt);
+      out.writeUTF(request.getId());
+      out.writeInt(request.getRequestedAuthnContextClassRefs().size());
+      for (final String uri : request.getRequestedAuthnContextClassRefs()) {
+        out.writeUTF(uri);
+      }
+      writeOptional(out, request.getSadRequestID());
+      writeOptional(out, request.getSadRequesterID());
+      writeOptional(out, request.getSignRequestID());
+      out.writeInt(request.getDocCount() != null ? request.getDocCount() : -1);
+      out.writeBoolean(request.isHolderOfKey());
+      out.flush();
+      return bytes.toByteArray();
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Encodes a "consume" record.
+   *
+   * @param requestID the request ID
+   * @return the encoding
+   */
+  private static byte[] encodeConsume(final String requestID) {
+    try {
+      final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+      final DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(RECORD_CONSUME);
+      out.writeUTF(requestID);
+      out.flush();
+      return bytes.toByteArray();
+    }
+    catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Reads a request snapshot (the part of a "store" record following the expiration time).
+   *
+   * @param in the input
+   * @return the request snapshot
+   * @throws IOException for read errors
+   */
+  private static AuthnRequestSnapshot readSnapshot(final DataInputStream in) throws IOException {
+    final String id = in.readUTF();
+    final int count = in.readInt();
+    if (count < 0 || count > 1024) {
+      throw new IOException("Invalid record in pending request journal");
+    }
+    final List<String> uris = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      uris.add(in.readUTF());
+    }
+    final String sadRequestID = readOptional(in);
+    final String sadRequesterID = readOptional(in);
+    final String signRequestID = readOptional(in);
+    final int docCount = in.readInt();
+    final boolean holderOfKey = in.readBoolean();
+    return new AuthnRequestSnapshot(id, uris, sadRequestID, sadRequesterID, signRequestID,
+        docCount >= 0 ? docCount : null, holderOfKey);
+  }
+
+  /**
+   * Writes an optional string.
+   *
+   * @param out the output
+   * @param value the value (may be {@code null})
+   * @throws IOException for write errors
+   */
+  private static void writeOptional(final DataOutputStream out, final String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  /**
+   * Reads an optional string.
+   *
+   * @param in the input
+   * @return the value (may be {@code null})
+   * @throws IOException for read errors
+   */
+  private static String readOptional(final DataInputStream in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+}
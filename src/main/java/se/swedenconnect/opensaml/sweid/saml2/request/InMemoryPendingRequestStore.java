@@ -0,0 +1,272 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.request;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * An in-memory {@link PendingRequestStore}.
+ * <p>
+ * Each request is kept for a configurable time-to-live. The entries are spread over a number of independent
+ * stripes, each holding at most {@code maxEntries / stripes} entries. When a stripe becomes full, its expired entries
+ * are purged, and if it is still full, the entry that expires first is evicted. Lookups and removals are single
+ * operations on the stripe map.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class InMemoryPendingRequestStore implements PendingRequestStore {
+
+  /** The default time-to-live for pending requests. */
+  public static final Duration DEFAULT_TTL = Duration.ofMinutes(15);
+
+  /** The default maximum number of entries. */
+  public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+  /** The default number of stripes. */
+  public static final int DEFAULT_STRIPES = 16;
+
+  /** Logger instance. */
+  private static final Logger log = LoggerFactory.getLogger(InMemoryPendingRequestStore.class);
+
+  /** The time-to-live for pending requests (in millis). */
+  private final long ttl;
+
+  /** The stripes. */
+  private final Stripe[] stripes;
+
+  /** Mask used to find the stripe for a given key. */
+  private final int stripeMask;
+
+  /** The maximum number of entries per stripe. */
+  private final int maxEntriesPerStripe;
+
+  /** The clock. */
+  private Clock clock = Clock.systemUTC();
+
+  /**
+   * Default constructor using {@link #DEFAULT_TTL}, {@link #DEFAULT_MAX_ENTRIES} and {@link #DEFAULT_STRIPES}.
+   */
+  public InMemoryPendingRequestStore() {
+    this(DEFAULT_TTL, DEFAULT_MAX_ENTRIES, DEFAULT_STRIPES);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param ttl the time-to-live for pending requests
+   * @param maxEntries the maximum number of entries to hold
+   * @param stripes the number of stripes (will be rounded up to the nearest power of two)
+   */
+  public InMemoryPendingRequestStore(final Duration ttl, final int maxEntries, final int stripes) {
+    if (ttl == null || ttl.isNegative() || ttl.isZero()) {
+      throw new IllegalArgumentException("ttl must be a positive duration");
+    }
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be greater than 0");
+    }
+    if (stripes <= 0) {
+      throw new IllegalArgumentException("stripes must be greater than 0");
+    }
+    this.ttl = ttl.toMillis();
+    final int n = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+    this.stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.stripeMask = n - 1;
+    this.maxEntriesPerStripe = Math.max(1, maxEntries / n);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public void store(final AuthnRequestSnapshot request) {
+    Objects.requireNonNull(request, "request must not be null");
+    this.put(request, this.clock.millis() + this.ttl);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public AuthnRequestSnapshot consume(final String requestID) {
+    if (requestID == null) {
+      return null;
+    }
+    final Stripe stripe = this.getStripe(requestID);
+    final Entry entry = stripe.entries.remove(requestID);
+    if (entry == null) {
+      log.debug("No pending request with ID '{}'", requestID);
+      return null;
+    }
+    stripe.size.decrementAndGet();
+    if (entry.expiresAt <= this.clock.millis()) {
+      log.debug("Pending request with ID '{}' has expired", requestID);
+      return null;
+    }
+    return entry.request;
+  }
+
+  /**
+   * Returns the number of entries currently held (including expired entries not yet purged).
+   *
+   * @return the number of entries
+   */
+  public int size() {
+    int size = 0;
+    for (final Stripe s : this.stripes) {
+      size += s.entries.size();
+    }
+    return size;
+  }
+
+  /**
+   * Assigns the clock to use. Mainly for testing.
+   *
+   * @param clock the clock
+   */
+  public void setClock(final Clock clock) {
+    this.clock = Objects.requireNonNull(clock, "clock must not be null");
+  }
+
+  /**
+   * Stores a request with the given expiration time.
+   *
+   * @param request the request snapshot
+   * @param expiresAt the expiration time (millis since 1970-01-01)
+   */
+  protected void put(final AuthnRequestSnapshot request, final long expiresAt) {
+    final Stripe stripe = this.getStripe(request.getId());
+    if (stripe.entries.put(request.getId(), new Entry(request, expiresAt)) == null
+        && stripe.size.incrementAndGet() > this.maxEntriesPerStripe) {
+      stripe.purge(this.clock.millis());
+      if (stripe.size.get() > this.maxEntriesPerStripe) {
+        stripe.evictFirstExpiring(request.getId());
+      }
+    }
+  }
+
+  /**
+   * Invokes the supplied consumer for each non-expired request in the store.
+   *
+   * @param consumer a consumer accepting the request snapshot and its expiration time (millis since 1970-01-01)
+   */
+  protected void forEach(final BiConsumer<AuthnRequestSnapshot, Long> consumer) {
+    final long now = this.clock.millis();
+    for (final Stripe s : this.stripes) {
+      s.entries.values().stream()
+          .filter(e -> e.expiresAt > now)
+          .forEach(e -> consumer.accept(e.request, e.expiresAt));
+    }
+  }
+
+  /**
+   * Gets the current time (millis since 1970-01-01) according to the store's clock.
+   *
+   * @return the current time
+   */
+  protected long currentTimeMillis() {
+    return this.clock.millis();
+  }
+
+  /**
+   * Gets the stripe for the given request ID.
+   *
+   * @param requestID the request ID
+   * @return the stripe
+   */
+  private Stripe getStripe(final String requestID) {
+    final int h = requestID.hashCode();
+    return this.stripes[(h ^ (h >>> 16)) & this.stripeMask];
+  }
+
+  /**
+   * A pending request and its expiration time.
+   */
+  private static class Entry {
+
+    /** The request. */
+    final AuthnRequestSnapshot request;
+
+    /** The expiration time (millis since 1970-01-01). */
+    final long expiresAt;
+
+    /**
+     * Constructor.
+     *
+     * @param request the request
+     * @param expiresAt the expiration time
+     */
+    Entry(final AuthnRequestSnapshot request, final long expiresAt) {
+      this.request = request;
+      this.expiresAt = expiresAt;
+    }
+  }
+
+  /**
+   * A stripe holding a map of entries and a counter.
+   */
+  private static class Stripe {
+
+    /** The entries, indexed by request ID. */
+    final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /** The number of entries. */
+    final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Removes all expired entries.
+     *
+     * @param now the current time (millis since 1970-01-01)
+     */
+    void purge(final long now) {
+      final Iterator<Map.Entry<String, Entry>> it = this.entries.entrySet().iterator();
+      while (it.hasNext()) {
+        final Map.Entry<String, Entry> e = it.next();
+        if (e.getValue().expiresAt <= now && this.entries.remove(e.getKey(), e.getValue())) {
+          this.size.decrementAndGet();
+        }
+      }
+    }
+
+    /**
+     * Evicts the entry that expires first (except for the entry with the given ID).
+     *
+     * @param keep the ID of the entry that should not be evicted
+     */
+    void evictFirstExpiring(final String keep) {
+      Map.Entry<String, Entry> first = null;
+      for (final Map.Entry<String, Entry> e : this.entries.entrySet()) {
+        if (!e.getKey().equals(keep) && (first == null || e.getValue().expiresAt < first.getValue().expiresAt)) {
+          first = e;
+        }
+      }
+      if (first != null && this.entries.remove(first.getKey(), first.getValue())) {
+        this.size.decrementAndGet();
+        log.warn("Pending request store is full - evicted request '{}'", first.getKey());
+      }
+    }
+  }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.request;
+
+/**
+ * A store for pending (sent but not yet answered) authentication requests. The store is used to correlate a received
+ * {@code Response} with the {@code AuthnRequest} (and {@code SADRequest}) that it was issued for.
+ * <p>
+ * A request is stored when it is generated (see
+ * {@link SwedishEidAuthnRequestGenerator#setPendingRequestStore(PendingRequestStore)}), and is removed from the store
+ * when the corresponding response is processed. Since a request can only be consumed once, the store also protects
+ * against replay of responses (based on their {@code InResponseTo} attribute).
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public interface PendingRequestStore {
+
+  /**
+   * Stores a pending request.
+   *
+   * @param request a snapshot of the request to store
+   */
+  void store(final AuthnRequestSnapshot request);
+
+  /**
+   * Gets and removes the pending request having the given ID.
+   *
+   * @param requestID the request ID (i.e., the {@code InResponseTo} attribute of the response)
+   * @return the request snapshot, or {@code null} if no such request is pending (it has never been stored, has
+   *     already been consumed or has expired)
+   */
+  AuthnRequestSnapshot consume(final String requestID);
+
+}
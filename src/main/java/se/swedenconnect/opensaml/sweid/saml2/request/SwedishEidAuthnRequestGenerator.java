@@ -16,8 +16,11 @@
 package se.swedenconnect.opensaml.sweid.saml2.request;
 
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.opensaml.saml.metadata.resolver.MetadataResolver;
+import org.opensaml.saml.saml2.core.AuthnRequest;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.security.x509.X509Credential;
 import org.slf4j.Logger;
@@ -30,6 +33,7 @@ import se.swedenconnect.opensaml.saml2.request.AuthnRequestGenerator;
 import se.swedenconnect.opensaml.saml2.request.AuthnRequestGeneratorContext;
 import se.swedenconnect.opensaml.saml2.request.DefaultAuthnRequestGenerator;
 import se.swedenconnect.opensaml.saml2.request.RequestGenerationException;
+import se.swedenconnect.opensaml.saml2.request.RequestHttpObject;
 import se.swedenconnect.opensaml.sweid.saml2.authn.psc.PrincipalSelection;
 import se.swedenconnect.opensaml.sweid.saml2.authn.umsg.UserMessage;
 import se.swedenconnect.opensaml.sweid.saml2.metadata.entitycategory.EntityCategoryConstants;
@@ -38,6 +42,12 @@ import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.SignMessage;
 
 /**
  * An {@link AuthnRequestGenerator} for the Swedish eID Framework.
+ * <p>
+ * The capabilities derived from IdP metadata ({@code UserMessage} support and the filtered assurance certification
+ * URIs) are calculated once per IdP and cached. A cached entry is only used for the same {@link EntityDescriptor}
+ * instance that it was calculated from, so a metadata refresh (which produces new instances) implicitly invalidates
+ * the cache.
+ * </p>
  *
  * @author Martin Lindström (martin@idsec.se)
  */
@@ -49,8 +59,14 @@ public class SwedishEidAuthnRequestGenerator extends DefaultAuthnRequestGenerato
   /** The sign message encrypter. */
   private SignMessageEncrypter signMessageEncrypter;
 
-  /** Is this SP a signature service? */
-  private Boolean signServiceFlag;
+  /** Is this SP a signature service? (Lazily calculated.) */
+  private volatile Boolean signServiceFlag;
+
+  /** Cached IdP capabilities, indexed by IdP entityID. */
+  private final Map<String, IdpCapabilities> idpCapabilities = new ConcurrentHashMap<>();
+
+  /** Optional store for pending requests. */
+  private PendingRequestStore pendingRequestStore;
 
   /**
    * Constructor.
@@ -76,6 +92,22 @@ public class SwedishEidAuthnRequestGenerator extends DefaultAuthnRequestGenerato
     super(spMetadata, signCredential, metadataResolver);
   }
 
+  /**
+   * Generates the {@code AuthnRequest}, and if a {@link PendingRequestStore} has been installed, saves a snapshot of
+   * the request in the store.
+   */
+  @Override
+  public RequestHttpObject<AuthnRequest> generateAuthnRequest(final String idpEntityID, final String relayState,
+      final AuthnRequestGeneratorContext context) throws RequestGenerationException {
+
+    final RequestHttpObject<AuthnRequest> request = super.generateAuthnRequest(idpEntityID, relayState, context);
+    if (this.pendingRequestStore != null) {
+      this.pendingRequestStore.store(new AuthnRequestSnapshot(request.getRequest()));
+      log.debug("AuthnRequest '{}' saved in pending request store", request.getRequest().getID());
+    }
+    return request;
+  }
+
   /**
    * If the {@code context} is a {@link SwedishEidAuthnRequestGeneratorContext}, the method will ask the context for
    * builders for the {@code SignMessage} and {@code PrincipalSelection} extensions, and add them if present.
@@ -103,15 +135,26 @@ public class SwedishEidAuthnRequestGenerator extends DefaultAuthnRequestGenerato
     }
   }
 
-  /** {@inheritDoc} */
+  /**
+   * Returns the assurance certification URIs of the IdP, excluding deprecated "sigm" URIs.
+   * <p>
+   * The URIs are read from the IdP metadata by the default implementation (the {@code context} is not used), so the
+   * filtered URIs are cached per IdP metadata instance. Any context-specific processing, such as selecting the
+   * requested authentication context, is done on top of these URIs by the caller. A subclass that makes the URIs
+   * themselves depend on the context must override this method.
+   * </p>
+   */
   @Override
   protected List<String> getAssuranceCertificationUris(
       final EntityDescriptor idpMetadata, final AuthnRequestGeneratorContext context)
       throws RequestGenerationException {
 
-    final List<String> defaultUris = super.getAssuranceCertificationUris(idpMetadata, context);
-
-    return defaultUris.stream()
+    final IdpCapabilities capabilities = this.getIdpCapabilities(idpMetadata);
+    final List<String> cached = capabilities.assuranceCertificationUris;
+    if (cached != null) {
+      return cached;
+    }
+    final List<String> uris = super.getAssuranceCertificationUris(idpMetadata, context).stream()
         .filter(uri -> {
           if (uri.contains("sigm")) {
             log.debug("Excluding '{}' from metadata for '{}' since this URI is deprecated",
@@ -121,6 +164,8 @@ public class SwedishEidAuthnRequestGenerator extends DefaultAuthnRequestGenerato
           return true;
         })
         .toList();
+    capabilities.assuranceCertificationUris = uris;
+    return uris;
   }
 
   /**
@@ -144,8 +189,26 @@ public class SwedishEidAuthnRequestGenerator extends DefaultAuthnRequestGenerato
    * @return {@code true} if the IdP supports the extension, and {@code false} otherwise
    */
   protected boolean supportsUserMessage(final EntityDescriptor idpMetadata) {
-    return EntityDescriptorUtils.getEntityCategories(idpMetadata).stream()
-        .anyMatch(c -> EntityCategoryConstants.GENERAL_CATEGORY_SUPPORTS_USER_MESSAGE.getUri().equals(c));
+    return this.getIdpCapabilities(idpMetadata).userMessage;
+  }
+
+  /**
+   * Gets the cached capabilities for the IdP, or calculates them if they have not been cached for the supplied
+   * metadata instance.
+   *
+   * @param idpMetadata the IdP metadata entry
+   * @return the IdP capabilities
+   */
+  private IdpCapabilities getIdpCapabilities(final EntityDescriptor idpMetadata) {
+    final String entityID = idpMetadata.getEntityID();
+    IdpCapabilities capabilities = entityID != null ? this.idpCapabilities.get(entityID) : null;
+    if (capabilities == null || capabilities.metadata != idpMetadata) {
+      capabilities = new IdpCapabilities(idpMetadata);
+      if (entityID != null) {
+        this.idpCapabilities.put(entityID, capabilities);
+      }
+    }
+    return capabilities;
   }
 
   /**
@@ -157,4 +220,40 @@ public class SwedishEidAuthnRequestGenerator extends DefaultAuthnRequestGenerato
     this.signMessageEncrypter = signMessageEncrypter;
   }
 
+  /**
+   * Assigns a {@link PendingRequestStore} in which snapshots of all generated requests are saved. By default, no
+   * store is used.
+   *
+   * @param pendingRequestStore the pending request store
+   */
+  public void setPendingRequestStore(final PendingRequestStore pendingRequestStore) {
+    this.pendingRequestStore = pendingRequestStore;
+  }
+
+  /**
+   * Capabilities derived from IdP metadata.
+   */
+  private static class IdpCapabilities {
+
+    /** The metadata that the capabilities were calculated from. */
+    private final EntityDescriptor metadata;
+
+    /** Whether the IdP supports the UserMessage extension. */
+    private final boolean userMessage;
+
+    /** The filtered assurance certification URIs (lazily calculated). */
+    private volatile List<String> assuranceCertificationUris;
+
+    /**
+     * Constructor.
+     *
+     * @param metadata the IdP metadata
+     */
+    IdpCapabilities(final EntityDescriptor metadata) {
+      this.metadata = metadata;
+      this.userMessage = EntityDescriptorUtils.getEntityCategories(metadata).stream()
+          .anyMatch(c -> EntityCategoryConstants.GENERAL_CATEGORY_SUPPORTS_USER_MESSAGE.getUri().equals(c));
+    }
+  }
+
 }
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opensaml.security.credential.Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A bounded pool of key decryption credentials.
+ * <p>
+ * When the key decryption key is held in an HSM, each unwrap operation occupies one HSM session, and using a single
+ * credential means that all decryptions are serialized over one session. By configuring a number of credentials for
+ * the same key, each backed by its own session (for example, one PKCS#11 provider instance per session), decryptions
+ * may be performed in parallel. See {@link SignMessageDecrypter#SignMessageDecrypter(DecryptionCredentialPool)}.
+ * </p>
+ * <p>
+ * A credential is checked out using {@link #checkout(Duration)} and is returned to the pool when the returned
+ * {@link Lease} is closed. Waiting threads are served in FIFO order, and a checkout fails if no credential becomes
+ * available within the given timeout. The pool keeps metrics about checkouts, timeouts and wait times.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class DecryptionCredentialPool {
+
+  /** Logger instance. */
+  private final Logger log = LoggerFactory.getLogger(DecryptionCredentialPool.class);
+
+  /** The number of credentials in the pool. */
+  private final int size;
+
+  /** Permits for the available credentials (fair). */
+  private final Semaphore permits;
+
+  /** The available credentials. */
+  private final Queue<Credential> available = new ConcurrentLinkedQueue<>();
+
+  /** The number of successful checkouts. */
+  private final LongAdder checkouts = new LongAdder();
+
+  /** The number of checkouts that timed out. */
+  private final LongAdder timeouts = new LongAdder();
+
+  /** The total time spent waiting for credentials (nanos). */
+  private final LongAdder totalWaitTime = new LongAdder();
+
+  /** The maximum time spent waiting for a credential (nanos). */
+  private final LongAccumulator maxWaitTime = new LongAccumulator(Math::max, 0L);
+
+  /** The number of credentials currently checked out. */
+  private final AtomicLong inUse = new AtomicLong();
+
+  /**
+   * Constructor.
+   *
+   * @param credentials the credentials (each credential should be backed by its own HSM session)
+   */
+  public DecryptionCredentialPool(final List<Credential> credentials) {
+    if (credentials == null || credentials.isEmpty()) {
+      throw new IllegalArgumentException("At least one credential must be supplied");
+    }
+    this.size = credentials.size();
+    this.available.addAll(credentials);
+    this.permits = new Semaphore(this.size, true);
+  }
+
+  /**
+   * Checks out a credential from the pool. The credential is returned to the pool when the returned lease is closed.
+   *
+   * @param timeout the maximum time to wait for a credential
+   * @return a lease holding the credential
+   * @throws TimeoutException if no credential became available within the given time
+   * @throws InterruptedException if the thread was interrupted while waiting
+   */
+  public Lease checkout(final Duration timeout) throws TimeoutException, InterruptedException {
+    final long start = System.nanoTime();
+    if (!this.permits.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+      this.timeouts.increment();
+      log.warn("Timed out waiting for decryption credential (waited {} ms)", timeout.toMillis());
+      throw new TimeoutException("No decryption credential available within " + timeout);
+    }
+    final long waited = System.nanoTime() - start;
+    this.checkouts.increment();
+    this.totalWaitTime.add(waited);
+    this.maxWaitTime.accumulate(waited);
+    this.inUse.incrementAndGet();
+
+    // A permit guarantees that there is a credential in the queue ...
+    return new Lease(this.available.poll());
+  }
+
+  /**
+   * Returns a credential to the pool.
+   *
+   * @param credential the credential
+   */
+  private void checkin(final Credential credential) {
+    this.available.offer(credential);
+    this.inUse.decrementAndGet();
+    this.permits.release();
+  }
+
+  /**
+   * Gets the number of credentials in the pool.
+   *
+   * @return the pool size
+   */
+  public int getSize() {
+    return this.size;
+  }
+
+  /**
+   * Gets the number of credentials currently checked out.
+   *
+   * @return the number of credentials in use
+   */
+  public int getInUse() {
+    return (int) this.inUse.get();
+  }
+
+  /**
+   * Gets the (approximate) number of threads waiting for a credential.
+   *
+   * @return the number of waiting threads
+   */
+  public int getWaiting() {
+    return this.permits.getQueueLength();
+  }
+
+  /**
+   * Gets the number of successful checkouts.
+   *
+   * @return the number of checkouts
+   */
+  public long getCheckouts() {
+    return this.checkouts.sum();
+  }
+
+  /**
+   * Gets the number of checkouts that timed out.
+   *
+   * @return the number of timeouts
+   */
+  public long getTimeouts() {
+    return this.timeouts.sum();
+  }
+
+  /**
+   * Gets the total time that successful checkouts have spent waiting for a credential.
+   *
+   * @return the total wait time
+   */
+  public Duration getTotalWaitTime() {
+    return Duration.ofNanos(this.totalWaitTime.sum());
+  }
+
+  /**
+   * Gets the average time that successful checkouts have spent waiting for a credential.
+   *
+   * @return the average wait time
+   */
+  public Duration getAverageWaitTime() {
+    final long n = this.checkouts.sum();
+    return n > 0 ? Duration.ofNanos(this.totalWaitTime.sum() / n) : Duration.ZERO;
+  }
+
+  /**
+   * Gets the longest time that a successful checkout has spent waiting for a credential.
+   *
+   * @return the maximum wait time
+   */
+  public Duration getMaxWaitTime() {
+    return Duration.ofNanos(this.maxWaitTime.get());
+  }
+
+  /**
+   * A checked out credential. Closing the lease returns the credential to the pool.
+   */
+  public final class Lease implements AutoCloseable {
+
+    /** The credential. */
+    private final Credential credential;
+
+    /** Whether the lease has been closed. */
+    private boolean closed = false;
+
+    /**
+     * Constructor.
+     *
+     * @param credential the credential
+     */
+    private Lease(final Credential credential) {
+      this.credential = credential;
+    }
+
+    /**
+     * Gets the checked out credential.
+     *
+     * @return the credential
+     */
+    public Credential getCredential() {
+      return this.credential;
+    }
+
+    /**
+     * Returns the credential to the pool.
+     */
+    @Override
+    public void close() {
+      if (!this.closed) {
+        this.closed = true;
+        DecryptionCredentialPool.this.checkin(this.credential);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in-memory {@link SADReplayChecker} that keeps track of seen SAD:s for the current JVM.
+ * <p>
+ * The entries are spread over a number of independent stripes, each holding at most {@code maxEntries / stripes}
+ * entries. Insertion is a {@code putIfAbsent} on the stripe, and each stripe also keeps its entries ordered by
+ * expiration time. Expired entries are overwritten when the same SAD is seen again, and once a stripe becomes full,
+ * the expired entries are removed from the head of the ordered index (each entry is removed at most once, so purging
+ * never scans the stripe). If a stripe is still full, the entry that expires first is evicted to make room for the
+ * new SAD. This means that a flood of SAD:s can not make the checker reject legitimate SAD:s, but also that an evicted
+ * SAD could be replayed before it expires. The {@code maxEntries} should therefore be set to cover the number of SAD:s
+ * issued within the SAD lifetime.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class InMemorySADReplayChecker implements SADReplayChecker {
+
+  /** The default maximum number of entries. */
+  public static final int DEFAULT_MAX_ENTRIES = 100_000;
+
+  /** The default number of stripes. */
+  public static final int DEFAULT_STRIPES = 16;
+
+  /** Logger instance. */
+  private static final Logger logger = LoggerFactory.getLogger(InMemorySADReplayChecker.class);
+
+  /** The stripes. */
+  private final Stripe[] stripes;
+
+  /** Mask used to find the stripe for a given key. */
+  private final int stripeMask;
+
+  /** The maximum number of entries per stripe. */
+  private final int maxEntriesPerStripe;
+
+  /**
+   * Default constructor using {@link #DEFAULT_MAX_ENTRIES} and {@link #DEFAULT_STRIPES}.
+   */
+  public InMemorySADReplayChecker() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_STRIPES);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param maxEntries the maximum number of entries to hold
+   * @param stripes the number of stripes (will be rounded up to the nearest power of two)
+   */
+  public InMemorySADReplayChecker(final int maxEntries, final int stripes) {
+    if (maxEntries <= 0) {
+      throw new IllegalArgumentException("maxEntries must be greater than 0");
+    }
+    if (stripes <= 0) {
+      throw new IllegalArgumentException("stripes must be greater than 0");
+    }
+    final int n = stripes == 1 ? 1 : Integer.highestOneBit(stripes - 1) << 1;
+    this.stripes = new Stripe[n];
+    for (int i = 0; i < n; i++) {
+      this.stripes[i] = new Stripe();
+    }
+    this.stripeMask = n - 1;
+    this.maxEntriesPerStripe = Math.max(1, maxEntries / n);
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean checkAndRecord(final String issuer, final String jwtId, final long expiresAt, final long now) {
+    final String key = issuer + '\u0000' + jwtId;
+    final Stripe stripe = this.stripes[spread(key.hashCode()) & this.stripeMask];
+
+    final Long existing = stripe.entries.putIfAbsent(key, expiresAt);
+    if (existing != null) {
+      if (existing <= now && stripe.entries.replace(key, existing, expiresAt)) {
+        // The previous entry had expired, so this is not regarded as a replay.
+        stripe.expirations.remove(new Expiration(existing, key));
+        stripe.expirations.add(new Expiration(expiresAt, key));
+        return true;
+      }
+      logger.debug("SAD with jti '{}' from '{}' has already been used", jwtId, issuer);
+      return false;
+    }
+    final Expiration expiration = new Expiration(expiresAt, key);
+    stripe.expirations.add(expiration);
+    if (stripe.size.incrementAndGet() > this.maxEntriesPerStripe) {
+      stripe.purge(now);
+      if (stripe.size.get() > this.maxEntriesPerStripe) {
+        final Expiration evicted = stripe.evictFirst(expiration);
+        if (evicted != null) {
+          logger.debug("SAD replay cache is full - evicted entry '{}' expiring at {}", evicted.key, evicted.expiresAt);
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the number of entries currently held (including expired entries not yet purged).
+   *
+   * @return the number of entries
+   */
+  public int size() {
+    int size = 0;
+    for (final Stripe s : this.stripes) {
+      size += s.entries.size();
+    }
+    return size;
+  }
+
+  /**
+   * Spreads the bits of the supplied hash code.
+   *
+   * @param h the hash code
+   * @return the spread hash
+   */
+  private static int spread(final int h) {
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * A stripe holding a map of entries, the entries ordered by expiration time and a counter.
+   */
+  private static class Stripe {
+
+    /** The entries, mapping keys to their expiration time. */
+    final ConcurrentHashMap<String, Long> entries = new ConcurrentHashMap<>();
+
+    /** The entries ordered by expiration time. */
+    final ConcurrentSkipListSet<Expiration> expirations = new ConcurrentSkipListSet<>();
+
+    /** The number of entries. */
+    final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Removes all expired entries. Only the expired entries at the head of the ordered index are visited.
+     *
+     * @param now the current time (seconds since 1970-01-01)
+     */
+    void purge(final long now) {
+      for (final Expiration e : this.expirations) {
+        if (e.expiresAt > now) {
+          return;
+        }
+        if (this.expirations.remove(e)) {
+          this.remove(e);
+        }
+      }
+    }
+
+    /**
+     * Evicts the entry that expires first, except for the supplied entry (the entry that was just added).
+     *
+     * @param keep the entry that must not be evicted
+     * @return the evicted entry, or {@code null} if no entry was evicted
+     */
+    Expiration evictFirst(final Expiration keep) {
+      for (final Expiration e : this.expirations) {
+        if (e.compareTo(keep) != 0 && this.expirations.remove(e)) {
+          this.remove(e);
+          return e;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Removes the entry (that has already been removed from the ordered index) from the map.
+     *
+     * @param expiration the entry
+     */
+    private void remove(final Expiration expiration) {
+      if (this.entries.remove(expiration.key, expiration.expiresAt)) {
+        this.size.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * An entry in the expiration index of a stripe, ordered by expiration time and key.
+   */
+  private static class Expiration implements Comparable<Expiration> {
+
+    /** The expiration time (seconds since 1970-01-01). */
+    final long expiresAt;
+
+    /** The entry key. */
+    final String key;
+
+    /**
+     * Constructor.
+     *
+     * @param expiresAt the expiration time
+     * @param key the entry key
+     */
+    Expiration(final long expiresAt, final String key) {
+      this.expiresAt = expiresAt;
+      this.key = key;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int compareTo(final Expiration o) {
+      final int c = Long.compare(this.expiresAt, o.expiresAt);
+      return c != 0 ? c : this.key.compareTo(o.key);
+    }
+  }
+
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+/**
+ * Interface for generating JWT identifiers ({@code jti}) for SAD:s.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @see SADFactory#setJwtIdGenerator(JwtIdGenerator)
+ * @see SecureRandomJwtIdGenerator
+ * @see TimeOrderedJwtIdGenerator
+ */
+@FunctionalInterface
+public interface JwtIdGenerator {
+
+  /**
+   * Generates a JWT identifier having the given length.
+   *
+   * @param length the number of characters of the identifier
+   * @return the JWT identifier
+   */
+  String generate(final int length);
+
+}
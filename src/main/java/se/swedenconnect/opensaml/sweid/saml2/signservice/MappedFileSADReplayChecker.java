@@ -0,0 +1,313 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link SADReplayChecker} backed by a memory-mapped file. All processes on a host that map the same file share the
+ * replay state, which makes it possible to detect replays across several signature service JVMs without any external
+ * service.
+ * <p>
+ * The file is a fixed-size open addressing hash table. Each slot holds a 64-bit fingerprint of the SAD issuer and JWT
+ * ID, and the time when the entry expires. Slots are claimed using compare-and-set operations directly on the mapped
+ * memory, and expired slots are re-used lazily when a new entry is recorded. Entries are never actively removed.
+ * </p>
+ * <p>
+ * Since two different SAD:s may (with a negligible probability) get the same fingerprint, a collision leads to the
+ * SAD being rejected as a replay. The same goes for a full probe sequence, i.e., the checker fails closed.
+ * </p>
+ * <p>
+ * <b>Note:</b> The file must be located on a local file system, and all processes sharing it must use the same
+ * version of this class.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class MappedFileSADReplayChecker implements SADReplayChecker {
+
+  /** The default number of slots. */
+  public static final int DEFAULT_SLOTS = 1 << 20;
+
+  /** The maximum number of slots that are examined when looking up or recording an entry. */
+  public static final int MAX_PROBES = 64;
+
+  /** Logger instance. */
+  private static final Logger logger = LoggerFactory.getLogger(MappedFileSADReplayChecker.class);
+
+  /** Magic value identifying the file format ("SADRPLY1"). */
+  private static final long MAGIC = 0x53414452504c5931L;
+
+  /** The size of the file header. */
+  private static final int HEADER_SIZE = 64;
+
+  /** The size of each slot (fingerprint + expiration time). */
+  private static final int SLOT_SIZE = 16;
+
+  /** The number of seconds a slot may stay in the claiming state before it is regarded as abandoned. */
+  private static final long CLAIM_TIMEOUT = 10;
+
+  /** For atomic access of 64-bit values in the mapped buffer. */
+  private static final VarHandle LONG =
+      MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+  /** The mapped file. */
+  private final MappedByteBuffer buffer;
+
+  /** The number of slots. */
+  private final int slots;
+
+  /** Mask for calculating slot indexes. */
+  private final int mask;
+
+  /**
+   * Constructor creating (or opening) the file with {@link #DEFAULT_SLOTS} slots.
+   *
+   * @param file the file
+   * @throws IOException for errors creating, opening or mapping the file
+   */
+  public MappedFileSADReplayChecker(final Path file) throws IOException {
+    this(file, DEFAULT_SLOTS);
+  }
+
+  /**
+   * Constructor creating (or opening) the file. If the file already exists, the number of slots is read from the file,
+   * and the {@code slots} parameter is ignored.
+   *
+   * @param file the file
+   * @param slots the number of slots (will be rounded up to the nearest power of two)
+   * @throws IOException for errors creating, opening or mapping the file
+   */
+  public MappedFileSADReplayChecker(final Path file, final int slots) throws IOException {
+    if (slots <= 0 || slots > (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE) {
+      throw new IllegalArgumentException("Invalid number of slots");
+    }
+    int n = slots == 1 ? 1 : Integer.highestOneBit(slots - 1) << 1;
+    if (n > (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE) {
+      n >>>= 1;
+    }
+
+    try (final FileChannel channel = FileChannel.open(file,
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+      // Lock the file while initializing it, so that several processes do not initialize the same file.
+      try (final FileLock lock = channel.lock()) {
+        if (channel.size() < HEADER_SIZE) {
+          final long size = HEADER_SIZE + (long) n * SLOT_SIZE;
+          this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+          this.buffer.order(ByteOrder.nativeOrder());
+          this.buffer.putLong(8, n);
+          this.buffer.putLong(0, MAGIC);
+          this.buffer.force();
+          logger.debug("Created SAD replay file {} with {} slots", file, n);
+        }
+        else {
+          final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+          header.order(ByteOrder.nativeOrder());
+          if (header.getLong(0) != MAGIC) {
+            throw new IOException(String.format("%s is not a SAD replay file", file));
+          }
+          final long existingSlots = header.getLong(8);
+          if (existingSlots <= 0 || Long.bitCount(existingSlots) != 1
+              || channel.size() < HEADER_SIZE + existingSlots * SLOT_SIZE) {
+            throw new IOException(String.format("%s is a corrupt SAD replay file", file));
+          }
+          if (existingSlots != n) {
+            logger.info("SAD replay file {} has {} slots - ignoring configured value {}", file, existingSlots, n);
+          }
+          n = (int) existingSlots;
+          this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) n * SLOT_SIZE);
+          this.buffer.order(ByteOrder.nativeOrder());
+        }
+      }
+    }
+    this.slots = n;
+    this.mask = n - 1;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public boolean checkAndRecord(final String issuer, final String jwtId, final long expiresAt, final long now) {
+    final long fingerprint = fingerprint(issuer, jwtId);
+    final int start = (int) (fingerprint ^ (fingerprint >>> 32)) & this.mask;
+    final int probes = Math.min(MAX_PROBES, this.slots);
+    final long expiry = Math.max(expiresAt, now + 1);
+
+    while (true) {
+      // Look for a live entry for the fingerprint, and remember the first free slot.
+      //
+      int free = -1;
+      long freeExpiry = 0;
+      for (int i = 0; i < probes; i++) {
+        final int slot = (start + i) & this.mask;
+        final long slotFingerprint = this.getFingerprint(slot);
+        final long slotExpiry = this.getExpiry(slot);
+        if (slotFingerprint == 0 && slotExpiry == 0) {
+          // Never used - no entries beyond this slot.
+          if (free == -1) {
+            free = slot;
+            freeExpiry = 0;
+          }
+          break;
+        }
+        if (slotFingerprint == fingerprint && !isFree(slotExpiry, now)) {
+          logger.debug("SAD with jti '{}' from '{}' has already been used", jwtId, issuer);
+          return false;
+        }
+        if (free == -1 && isFree(slotExpiry, now)) {
+          free = slot;
+          freeExpiry = slotExpiry;
+        }
+      }
+      if (free == -1) {
+        logger.warn("SAD replay file is full - rejecting SAD with jti '{}' from '{}'", jwtId, issuer);
+        return false;
+      }
+
+      // Claim the slot. If another party claimed it before us, start over.
+      //
+      if (!LONG.compareAndSet(this.buffer, expiryOffset(free), freeExpiry, -(now + CLAIM_TIMEOUT))) {
+        continue;
+      }
+      LONG.setVolatile(this.buffer, fingerprintOffset(free), fingerprint);
+      LONG.setVolatile(this.buffer, expiryOffset(free), expiry);
+
+      // Make sure that no one else recorded the same entry concurrently. If so, we back off
+      // (which means that both parties may reject the SAD).
+      //
+      for (int i = 0; i < probes; i++) {
+        final int slot = (start + i) & this.mask;
+        if (slot == free) {
+          continue;
+        }
+        final long slotFingerprint = this.getFingerprint(slot);
+        final long slotExpiry = this.getExpiry(slot);
+        if (slotFingerprint == 0 && slotExpiry == 0) {
+          break;
+        }
+        if (slotFingerprint == fingerprint && !isFree(slotExpiry, now)) {
+          LONG.setVolatile(this.buffer, expiryOffset(free), 0L);
+          logger.debug("SAD with jti '{}' from '{}' was concurrently used", jwtId, issuer);
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Returns the number of slots of the file.
+   *
+   * @return the number of slots
+   */
+  public int getSlots() {
+    return this.slots;
+  }
+
+  /**
+   * Tells whether a slot having the supplied expiration value is free. A slot is free if it has never been used, has
+   * expired, or if it was claimed by a process that never completed the claim.
+   *
+   * @param expiry the slot expiration value
+   * @param now the current time
+   * @return {@code true} if the slot is free and {@code false} otherwise
+   */
+  private static boolean isFree(final long expiry, final long now) {
+    return expiry >= 0 ? expiry <= now : -expiry <= now;
+  }
+
+  /**
+   * Reads the fingerprint of the given slot.
+   *
+   * @param slot the slot index
+   * @return the fingerprint
+   */
+  private long getFingerprint(final int slot) {
+    return (long) LONG.getVolatile(this.buffer, fingerprintOffset(slot));
+  }
+
+  /**
+   * Reads the expiration value of the given slot. A negative value means that the slot is being claimed, and the
+   * absolute value gives the time when the claim times out.
+   *
+   * @param slot the slot index
+   * @return the expiration value
+   */
+  private long getExpiry(final int slot) {
+    return (long) LONG.getVolatile(this.buffer, expiryOffset(slot));
+  }
+
+  /**
+   * Returns the buffer offset for the fingerprint of the given slot.
+   *
+   * @param slot the slot index
+   * @return the offset
+   */
+  private static int fingerprintOffset(final int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE;
+  }
+
+  /**
+   * Returns the buffer offset for the expiration time of the given slot.
+   *
+   * @param slot the slot index
+   * @return the offset
+   */
+  private static int expiryOffset(final int slot) {
+    return HEADER_SIZE + slot * SLOT_SIZE + 8;
+  }
+
+  /**
+   * Calculates a (non-zero) 64-bit fingerprint of the issuer and JWT ID.
+   *
+   * @param issuer the issuer
+   * @param jwtId the JWT ID
+   * @return the fingerprint
+   */
+  static long fingerprint(final String issuer, final String jwtId) {
+    long h = 0xcbf29ce484222325L;
+    if (issuer != null) {
+      for (int i = 0; i < issuer.length(); i++) {
+        h = (h ^ issuer.charAt(i)) * 0x100000001b3L;
+      }
+    }
+    h = (h ^ 0xffff) * 0x100000001b3L;
+    if (jwtId != null) {
+      for (int i = 0; i < jwtId.length(); i++) {
+        h = (h ^ jwtId.charAt(i)) * 0x100000001b3L;
+      }
+    }
+    // Final avalanche (MurmurHash3 fmix64)
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h == 0 ? 1 : h;
+  }
+
+}
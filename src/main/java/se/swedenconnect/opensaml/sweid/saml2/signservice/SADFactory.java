@@ -16,23 +16,27 @@
 package se.swedenconnect.opensaml.sweid.saml2.signservice;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
 import java.security.SignatureException;
-import java.util.Base64;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
 
-import org.apache.commons.lang3.RandomStringUtils;
 import org.opensaml.security.x509.X509Credential;
 
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JOSEObjectType;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.JWSHeader;
-import com.nimbusds.jose.JWSObject;
-import com.nimbusds.jose.Payload;
-import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.jwk.JWK;
 import com.nimbusds.jose.util.Base64URL;
 
 import se.swedenconnect.opensaml.sweid.saml2.attribute.AttributeConstants;
 import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SAD;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SADCodec;
 import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SADVersion;
 
 /**
@@ -54,7 +58,7 @@ public class SADFactory {
   /** The default size for generated JWT identifiers (24) */
   public static final int DEFAULT_JWT_ID_SIZE = 24;
 
-  /** The name of the default JWT signature algorithm to be used (RS256). */
+  /** The name of the default JWT signature algorithm to be used for RSA keys (RS256). */
   public static final String DEFAULT_JWT_SIGNING_ALGORITHM = JWSAlgorithm.RS256.getName();
 
   /** The entityID of the issuing IdP. */
@@ -72,8 +76,20 @@ public class SADFactory {
   /** The size of generated JWT identifiers. The default is {@link #DEFAULT_JWT_ID_SIZE}. */
   private int jwtIdSize = DEFAULT_JWT_ID_SIZE;
 
-  /** The JWT signature algorithm. The default is {@link #DEFAULT_JWT_SIGNING_ALGORITHM}. */
-  private String jwtSigningAlgorithm = DEFAULT_JWT_SIGNING_ALGORITHM;
+  /** The generator for JWT identifiers. */
+  private JwtIdGenerator jwtIdGenerator = new SecureRandomJwtIdGenerator();
+
+  /** The JWT signature algorithm. If not assigned, the algorithm is derived from the signing key type. */
+  private String jwtSigningAlgorithm;
+
+  /** The key identifier (kid) to include in the JWS header. If {@code null}, no kid is included. */
+  private String keyId;
+
+  /** The certificate SHA-256 thumbprint (x5t#S256) to include in the JWS header. If {@code null}, none is included. */
+  private Base64URL certificateThumbprint;
+
+  /** The signer and serialized header. Created on first use and reset when the configuration changes. */
+  private volatile SigningContext signingContext;
 
   /**
    * Constructor.
@@ -115,7 +131,8 @@ public class SADFactory {
   /**
    * Given a SAD, the method builds a JWT and signs it using the configured key.
    * <p>
-   * Note: Only RSA keys are supported.
+   * RSA, EC (P-256, P-384 and P-521) and Ed25519 keys are supported. The signer and the JWS header are created once
+   * and are then re-used for all JWT:s created by this factory.
    * </p>
    *
    * @param sad the SAD to include in the JWT
@@ -126,23 +143,52 @@ public class SADFactory {
    */
   public String createJwt(final SAD sad) throws IOException, SignatureException {
 
-    final String encodedSad = Base64.getUrlEncoder().withoutPadding().encodeToString(sad.toJsonBytes());
+    final String encodedSad = SADCodec.encodeBase64Url(sad);
 
     // Create JWT and sign ...
     //
     try {
-      final JWSHeader header =
-          new JWSHeader.Builder(new JWSAlgorithm(this.jwtSigningAlgorithm)).type(JOSEObjectType.JWT).build();
-      final JWSObject signedJwt = new JWSObject(header, new Payload(new Base64URL(encodedSad)));
-      signedJwt.sign(new RSASSASigner(this.signingCredential.getPrivateKey()));
+      final SigningContext context = this.getSigningContext();
+      final String signingInput = context.encodedHeader + '.' + encodedSad;
+      final Base64URL signature =
+          context.signer.sign(context.header, signingInput.getBytes(StandardCharsets.US_ASCII));
 
-      return signedJwt.serialize();
+      return signingInput + '.' + signature;
     }
     catch (final JOSEException e) {
       throw new SignatureException("Failed to sign JWT", e);
     }
   }
 
+  /**
+   * Returns the signing context (signer and JWS header). The context is created on the first call after the factory
+   * has been created or re-configured.
+   *
+   * @return the signing context
+   * @throws JOSEException if the signer can not be created
+   */
+  private SigningContext getSigningContext() throws JOSEException {
+    SigningContext context = this.signingContext;
+    if (context == null) {
+      final PublicKey publicKey = this.signingCredential.getEntityCertificate() != null
+          ? this.signingCredential.getEntityCertificate().getPublicKey()
+          : this.signingCredential.getPublicKey();
+      final JWSAlgorithm algorithm = this.jwtSigningAlgorithm != null
+          ? JWSAlgorithm.parse(this.jwtSigningAlgorithm)
+          : SADJwsSupport.getDefaultAlgorithm(publicKey);
+
+      final JWSHeader header = new JWSHeader.Builder(algorithm)
+          .type(JOSEObjectType.JWT)
+          .keyID(this.keyId)
+          .x509CertSHA256Thumbprint(this.certificateThumbprint)
+          .build();
+      context = new SigningContext(
+          SADJwsSupport.createSigner(algorithm, this.signingCredential.getPrivateKey(), publicKey), header);
+      this.signingContext = context;
+    }
+    return context;
+  }
+
   /**
    * Assigns the validity time for a SAD object (in seconds). The default is {@link #DEFAULT_VALIDITY_TIME}.
    *
@@ -181,12 +227,120 @@ public class SADFactory {
   }
 
   /**
-   * Assigns the JWT signature algorithm. The default is {@link #DEFAULT_JWT_SIGNING_ALGORITHM}.
+   * Assigns the generator for JWT identifiers ({@code jti}). The default is a {@link SecureRandomJwtIdGenerator}
+   * producing alphanumeric identifiers. Use a {@link TimeOrderedJwtIdGenerator} for identifiers that sort in creation
+   * order.
+   *
+   * @param jwtIdGenerator the JWT ID generator
+   */
+  public void setJwtIdGenerator(final JwtIdGenerator jwtIdGenerator) {
+    if (jwtIdGenerator == null) {
+      throw new IllegalArgumentException("jwtIdGenerator must not be null");
+    }
+    this.jwtIdGenerator = jwtIdGenerator;
+  }
+
+  /**
+   * Assigns the JWT signature algorithm. If not assigned, the algorithm is derived from the type of the signing key:
+   * {@link #DEFAULT_JWT_SIGNING_ALGORITHM} for RSA keys, ES256, ES384 or ES512 for EC keys (depending on the curve) and
+   * EdDSA for Ed25519 keys.
    *
    * @param jwtSigningAlgorithm JWT algorithm name
    */
   public void setJwtSigningAlgorithm(final String jwtSigningAlgorithm) {
     this.jwtSigningAlgorithm = jwtSigningAlgorithm;
+    this.signingContext = null;
+  }
+
+  /**
+   * Tells whether a key identifier ({@code kid}) should be included in the JWS header of the created SAD JWT:s. The
+   * key identifier is the JWK thumbprint (RFC 7638) of the signing key. This makes it possible for the
+   * {@link SADParser.SADValidator} to select the correct IdP key directly during a key rollover. The default is
+   * {@code false}.
+   *
+   * @param includeKeyId whether to include the kid header parameter
+   */
+  public void setIncludeKeyId(final boolean includeKeyId) {
+    if (includeKeyId) {
+      try {
+        this.keyId = calculateKeyId(this.signingCredential.getEntityCertificate());
+      }
+      catch (final JOSEException e) {
+        throw new IllegalArgumentException("Can not calculate key identifier for signing credential", e);
+      }
+    }
+    else {
+      this.keyId = null;
+    }
+    this.signingContext = null;
+  }
+
+  /**
+   * Tells whether the SHA-256 thumbprint of the signing certificate ({@code x5t#S256}) should be included in the JWS
+   * header of the created SAD JWT:s. This makes it possible for the {@link SADParser.SADValidator} to select the
+   * correct IdP certificate directly during a key rollover. The default is {@code false}.
+   *
+   * @param includeCertificateThumbprint whether to include the x5t#S256 header parameter
+   */
+  public void setIncludeCertificateThumbprint(final boolean includeCertificateThumbprint) {
+    if (includeCertificateThumbprint) {
+      try {
+        this.certificateThumbprint = Base64URL.encode(
+            MessageDigest.getInstance("SHA-256").digest(this.signingCredential.getEntityCertificate().getEncoded()));
+      }
+      catch (final NoSuchAlgorithmException | CertificateEncodingException e) {
+        throw new IllegalArgumentException("Can not calculate thumbprint for signing certificate", e);
+      }
+    }
+    else {
+      this.certificateThumbprint = null;
+    }
+    this.signingContext = null;
+  }
+
+  /**
+   * Calculates the key identifier that is used in the {@code kid} header parameter for SAD JWT:s signed using the
+   * supplied certificate. The key identifier is the JWK thumbprint (RFC 7638) of the certificate public key.
+   *
+   * @param certificate the certificate
+   * @return the key identifier
+   * @throws JOSEException if the key type is not supported
+   */
+  static String calculateKeyId(final X509Certificate certificate) throws JOSEException {
+    if (certificate == null) {
+      throw new JOSEException("No certificate available");
+    }
+    if (SADJwsSupport.isEd25519(certificate.getPublicKey())) {
+      return SADJwsSupport.calculateEd25519Thumbprint(certificate.getPublicKey());
+    }
+    return JWK.parse(certificate).computeThumbprint().toString();
+  }
+
+  /**
+   * Holds the signer and the JWS header used when creating SAD JWT:s.
+   */
+  private static class SigningContext {
+
+    /** The signer. */
+    private final JWSSigner signer;
+
+    /** The JWS header. */
+    private final JWSHeader header;
+
+    /** The Base64url-encoded header. */
+    private final String encodedHeader;
+
+    /**
+     * Constructor.
+     *
+     * @param signer the signer
+     * @param header the JWS header
+     */
+    SigningContext(final JWSSigner signer, final JWSHeader header) {
+      this.signer = signer;
+      this.header = header;
+      this.encodedHeader = header.toBase64URL().toString();
+    }
   }
 
   /**
@@ -237,7 +391,7 @@ public class SADFactory {
     public SAD buildSAD() {
 
       if (this.sad.getJwtId() == null) {
-        this.sad.setJwtId(RandomStringUtils.random(this.sadFactory.jwtIdSize, true, true));
+        this.sad.setJwtId(this.sadFactory.jwtIdGenerator.generate(this.sadFactory.jwtIdSize));
       }
 
       this.sad.setIssuedAt((int) (System.currentTimeMillis() / 1000));
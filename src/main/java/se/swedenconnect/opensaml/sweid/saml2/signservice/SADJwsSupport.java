@@ -0,0 +1,318 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSSigner;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.crypto.ECDSASigner;
+import com.nimbusds.jose.crypto.RSASSASigner;
+import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
+import com.nimbusds.jose.jca.JCAContext;
+import com.nimbusds.jose.jwk.Curve;
+import com.nimbusds.jose.proc.JWSVerifierFactory;
+import com.nimbusds.jose.util.Base64URL;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.EdECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Support methods for creating JWS signers and verifiers for SAD JWT:s based on the key type. RSA, EC (P-256, P-384
+ * and P-521) and Ed25519 keys are supported.
+ * <p>
+ * The Ed25519 signer and verifier use the JDK implementation, which means that no additional crypto libraries are
+ * needed, and that any {@link PrivateKey} (for example a HSM key) may be used.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+final class SADJwsSupport {
+
+  /** The JWS verifier factory used for RSA and EC keys. */
+  private static final JWSVerifierFactory verifierFactory = new DefaultJWSVerifierFactory();
+
+  /** The length of a raw Ed25519 public key. */
+  private static final int ED25519_RAW_KEY_LENGTH = 32;
+
+  // Hidden constructor
+  private SADJwsSupport() {
+  }
+
+  /**
+   * Returns the default JWS algorithm for the supplied public key, i.e., RS256 for RSA keys, ES256, ES384 or ES512 for
+   * EC keys depending on the curve, and EdDSA for Ed25519 keys.
+   *
+   * @param publicKey the public key
+   * @return the JWS algorithm
+   * @throws JOSEException if the key type is not supported
+   */
+  static JWSAlgorithm getDefaultAlgorithm(final PublicKey publicKey) throws JOSEException {
+    if (publicKey instanceof RSAPublicKey) {
+      return JWSAlgorithm.RS256;
+    }
+    if (publicKey instanceof final ECPublicKey ecKey) {
+      final Curve curve = getCurve(ecKey);
+      if (Curve.P_256.equals(curve)) {
+        return JWSAlgorithm.ES256;
+      }
+      if (Curve.P_384.equals(curve)) {
+        return JWSAlgorithm.ES384;
+      }
+      if (Curve.P_521.equals(curve)) {
+        return JWSAlgorithm.ES512;
+      }
+      throw new JOSEException("Unsupported EC curve");
+    }
+    if (isEd25519(publicKey)) {
+      return JWSAlgorithm.EdDSA;
+    }
+    throw new JOSEException("Unsupported key type: " + publicKey.getAlgorithm());
+  }
+
+  /**
+   * Predicate that tells whether the supplied public key may be used with the given JWS algorithm.
+   *
+   * @param algorithm the JWS algorithm
+   * @param publicKey the public key
+   * @return {@code true} if the key may be used with the algorithm and {@code false} otherwise
+   */
+  static boolean isCompatible(final JWSAlgorithm algorithm, final PublicKey publicKey) {
+    if (JWSAlgorithm.Family.RSA.contains(algorithm)) {
+      return publicKey instanceof RSAPublicKey;
+    }
+    if (JWSAlgorithm.Family.EC.contains(algorithm)) {
+      try {
+        return publicKey instanceof ECPublicKey && algorithm.equals(getDefaultAlgorithm(publicKey));
+      }
+      catch (final JOSEException e) {
+        return false;
+      }
+    }
+    if (JWSAlgorithm.EdDSA.equals(algorithm)) {
+      return isEd25519(publicKey);
+    }
+    return false;
+  }
+
+  /**
+   * Creates a signer for the given algorithm and key. The returned signer may be used by several threads
+   * concurrently.
+   *
+   * @param algorithm the JWS algorithm
+   * @param privateKey the private key
+   * @param publicKey the corresponding public key
+   * @return a JWS signer
+   * @throws JOSEException if the algorithm is not supported or does not match the key
+   */
+  static JWSSigner createSigner(final JWSAlgorithm algorithm, final PrivateKey privateKey, final PublicKey publicKey)
+      throws JOSEException {
+    if (!isCompatible(algorithm, publicKey)) {
+      throw new JOSEException(String.format("Algorithm %s can not be used with %s key", algorithm,
+          publicKey.getAlgorithm()));
+    }
+    if (JWSAlgorithm.Family.RSA.contains(algorithm)) {
+      return new RSASSASigner(privateKey);
+    }
+    if (JWSAlgorithm.Family.EC.contains(algorithm)) {
+      return new ECDSASigner(privateKey, getCurve((ECPublicKey) publicKey));
+    }
+    return new Ed25519Signer(privateKey);
+  }
+
+  /**
+   * Creates a verifier for the given algorithm and key. The returned verifier may be used by several threads
+   * concurrently.
+   *
+   * @param header the JWS header
+   * @param publicKey the public key
+   * @return a JWS verifier
+   * @throws JOSEException if the algorithm is not supported or does not match the key
+   */
+  static JWSVerifier createVerifier(final JWSHeader header, final PublicKey publicKey) throws JOSEException {
+    if (JWSAlgorithm.EdDSA.equals(header.getAlgorithm())) {
+      if (!isEd25519(publicKey)) {
+        throw new JOSEException("EdDSA requires an Ed25519 key");
+      }
+      return new Ed25519Verifier(publicKey);
+    }
+    return verifierFactory.createJWSVerifier(header, publicKey);
+  }
+
+  /**
+   * Calculates the JWK thumbprint (RFC 7638) of an Ed25519 public key.
+   *
+   * @param publicKey the Ed25519 public key
+   * @return the thumbprint
+   * @throws JOSEException if the key is not an Ed25519 key
+   */
+  static String calculateEd25519Thumbprint(final PublicKey publicKey) throws JOSEException {
+    if (!isEd25519(publicKey)) {
+      throw new JOSEException("Not an Ed25519 key");
+    }
+    // The X.509 encoding of an Ed25519 key ends with the raw 32 byte key ...
+    final byte[] encoded = publicKey.getEncoded();
+    final byte[] raw = Arrays.copyOfRange(encoded, encoded.length - ED25519_RAW_KEY_LENGTH, encoded.length);
+    final String json = "{\"crv\":\"Ed25519\",\"kty\":\"OKP\",\"x\":\"" + Base64URL.encode(raw) + "\"}";
+    try {
+      return Base64URL.encode(MessageDigest.getInstance("SHA-256").digest(json.getBytes(StandardCharsets.UTF_8)))
+          .toString();
+    }
+    catch (final GeneralSecurityException e) {
+      throw new JOSEException("Failed to calculate thumbprint", e);
+    }
+  }
+
+  /**
+   * Predicate that tells whether the supplied key is an Ed25519 key.
+   *
+   * @param publicKey the key
+   * @return {@code true} for Ed25519 keys and {@code false} otherwise
+   */
+  static boolean isEd25519(final PublicKey publicKey) {
+    if (publicKey instanceof final EdECPublicKey edKey) {
+      return "Ed25519".equalsIgnoreCase(edKey.getParams().getName());
+    }
+    return publicKey != null && "Ed25519".equalsIgnoreCase(publicKey.getAlgorithm());
+  }
+
+  /**
+   * Gets the curve for the supplied EC key.
+   *
+   * @param publicKey the EC public key
+   * @return the curve
+   * @throws JOSEException if the curve is not known
+   */
+  private static Curve getCurve(final ECPublicKey publicKey) throws JOSEException {
+    final Curve curve = Curve.forECParameterSpec(publicKey.getParams());
+    if (curve == null) {
+      throw new JOSEException("Unsupported EC curve");
+    }
+    return curve;
+  }
+
+  /**
+   * A JWS signer for Ed25519 that uses the JDK {@link Signature} implementation.
+   */
+  static class Ed25519Signer implements JWSSigner {
+
+    /** The private key. */
+    private final PrivateKey privateKey;
+
+    /** The JCA context. */
+    private final JCAContext jcaContext = new JCAContext();
+
+    /**
+     * Constructor.
+     *
+     * @param privateKey the Ed25519 private key
+     */
+    Ed25519Signer(final PrivateKey privateKey) {
+      this.privateKey = privateKey;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Base64URL sign(final JWSHeader header, final byte[] signingInput) throws JOSEException {
+      if (!JWSAlgorithm.EdDSA.equals(header.getAlgorithm())) {
+        throw new JOSEException("Unsupported algorithm: " + header.getAlgorithm());
+      }
+      try {
+        final Signature signature = Signature.getInstance("Ed25519");
+        signature.initSign(this.privateKey);
+        signature.update(signingInput);
+        return Base64URL.encode(signature.sign());
+      }
+      catch (final GeneralSecurityException e) {
+        throw new JOSEException("Ed25519 signing failed - " + e.getMessage(), e);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Set<JWSAlgorithm> supportedJWSAlgorithms() {
+      return Set.of(JWSAlgorithm.EdDSA);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public JCAContext getJCAContext() {
+      return this.jcaContext;
+    }
+  }
+
+  /**
+   * A JWS verifier for Ed25519 that uses the JDK {@link Signature} implementation.
+   */
+  static class Ed25519Verifier implements JWSVerifier {
+
+    /** The public key. */
+    private final PublicKey publicKey;
+
+    /** The JCA context. */
+    private final JCAContext jcaContext = new JCAContext();
+
+    /**
+     * Constructor.
+     *
+     * @param publicKey the Ed25519 public key
+     */
+    Ed25519Verifier(final PublicKey publicKey) {
+      this.publicKey = publicKey;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean verify(final JWSHeader header, final byte[] signingInput, final Base64URL signature)
+        throws JOSEException {
+      if (!JWSAlgorithm.EdDSA.equals(header.getAlgorithm())) {
+        throw new JOSEException("Unsupported algorithm: " + header.getAlgorithm());
+      }
+      try {
+        final Signature verifier = Signature.getInstance("Ed25519");
+        verifier.initVerify(this.publicKey);
+        verifier.update(signingInput);
+        return verifier.verify(signature.decode());
+      }
+      catch (final GeneralSecurityException e) {
+        throw new JOSEException("Ed25519 verification failed - " + e.getMessage(), e);
+      }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Set<JWSAlgorithm> supportedJWSAlgorithms() {
+      return Set.of(JWSAlgorithm.EdDSA);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public JCAContext getJCAContext() {
+      return this.jcaContext;
+    }
+  }
+
+}
@@ -17,44 +17,42 @@ package se.swedenconnect.opensaml.sweid.saml2.signservice;
 
 import com.nimbusds.jose.JOSEException;
 import com.nimbusds.jose.JWSVerifier;
-import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
-import com.nimbusds.jose.proc.JWSVerifierFactory;
 import com.nimbusds.jwt.SignedJWT;
 import net.shibboleth.shared.resolver.ResolverException;
 import org.opensaml.core.xml.io.MarshallingException;
-import org.opensaml.saml.common.xml.SAMLConstants;
 import org.opensaml.saml.saml2.core.Assertion;
 import org.opensaml.saml.saml2.core.Attribute;
 import org.opensaml.saml.saml2.core.AuthnRequest;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
-import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
-import org.opensaml.security.credential.UsageType;
-import org.opensaml.security.x509.X509Credential;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import se.swedenconnect.opensaml.saml2.attribute.AttributeUtils;
-import se.swedenconnect.opensaml.saml2.metadata.EntityDescriptorUtils;
 import se.swedenconnect.opensaml.saml2.metadata.provider.MetadataProvider;
 import se.swedenconnect.opensaml.saml2.metadata.provider.StaticMetadataProvider;
 import se.swedenconnect.opensaml.sweid.saml2.attribute.AttributeConstants;
+import se.swedenconnect.opensaml.sweid.saml2.request.AuthnRequestSnapshot;
 import se.swedenconnect.opensaml.sweid.saml2.signservice.SADValidationException.ErrorCode;
 import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SAD;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SADCodec;
 import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SADRequest;
-import tools.jackson.core.JacksonException;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.security.cert.X509Certificate;
 import java.text.ParseException;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.Arrays;
-import java.util.Base64;
-import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
 
 /**
  * Class for parsing and validation of SAD JWT:s.
@@ -81,8 +79,7 @@ public class SADParser {
   public static SAD parse(final String sadJwt) throws IOException {
     try {
       final SignedJWT signedJwt = SignedJWT.parse(sadJwt);
-      final String payload = signedJwt.getPayload().toBase64URL().toString();
-      return SAD.fromJson(new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.UTF_8));
+      return SADCodec.decode(signedJwt.getPayload().toBase64URL().decode());
     }
     catch (final ParseException e) {
       throw new IOException(e);
@@ -135,17 +132,24 @@ public class SADParser {
     /** Logger instance. */
     private static final Logger logger = LoggerFactory.getLogger(SADValidator.class);
 
-    /** The certificate(s) to use when verifying the JWT signature. */
-    private List<X509Certificate> validationCertificates;
-
-    /** A provider for federation metadata (in which we later will locate the IdP signing keys). */
-    private MetadataProvider metadataProvider;
-
-    private static final JWSVerifierFactory verifierFactory = new DefaultJWSVerifierFactory();
+    /** The cache holding the certificates and verifiers to use when verifying the JWT signature. */
+    private final SADVerifierCache verifierCache;
 
     /** Allowed clock skew. */
     private Duration allowedClockSkew = DEFAULT_ALLOWED_CLOCK_SKEW;
 
+    /** The replay checker (by default, no replay checking is performed). */
+    private SADReplayChecker replayChecker;
+
+    /** The executor used by {@link #validateAll(Collection)}. If not assigned, virtual threads are used. */
+    private Executor executor;
+
+    /** Whether the SAD claims should be checked before the JWT signature is verified. */
+    private boolean checkClaimsFirst = false;
+
+    /** Whether stack traces should be filled in for SAD validation (non-parse) errors. */
+    private boolean includeStackTraces = false;
+
     /**
      * Constructor initializing the validator with a set of certificates that are to be used for JWT signature
      * validation. These certificates are the IdP signing certificates obtained from the IdP metadata entry.
@@ -153,7 +157,7 @@ public class SADParser {
      * @param certificates certificate(s) to be used when verifying the JWT signature
      */
     public SADValidator(final X509Certificate... certificates) {
-      this.validationCertificates = Arrays.asList(certificates);
+      this.verifierCache = new SADVerifierCache(Arrays.asList(certificates));
     }
 
     /**
@@ -164,7 +168,7 @@ public class SADParser {
      * @param metadataProvider metadata provider
      */
     public SADValidator(final MetadataProvider metadataProvider) {
-      this.metadataProvider = metadataProvider;
+      this.verifierCache = new SADVerifierCache(metadataProvider);
     }
 
     /**
@@ -175,7 +179,7 @@ public class SADParser {
      */
     public SADValidator(final EntityDescriptor idpMetadata) {
       try {
-        this.metadataProvider = new StaticMetadataProvider(idpMetadata);
+        this.verifierCache = new SADVerifierCache(new StaticMetadataProvider(idpMetadata));
       }
       catch (final MarshallingException e) {
         throw new SecurityException("Invalid IdP metadata", e);
@@ -197,40 +201,128 @@ public class SADParser {
     public SAD validate(final AuthnRequest authnRequest, final Assertion assertion) throws SADValidationException,
         IllegalArgumentException {
 
-      final long now = System.currentTimeMillis() / 1000;
+      final SADRequest sadRequest = getSADRequest(authnRequest);
+      if (sadRequest == null) {
+        logger.info("AuthnRequest '{}' does not contain a SADRequest", authnRequest.getID());
+        throw new IllegalArgumentException("AuthnRequest '" + authnRequest.getID() + "' does not contain a SADRequest");
+      }
+      return this.validate(sadRequest.getID(), sadRequest.getRequesterID(), sadRequest.getDocCount(),
+          sadRequest.getSignRequestID(), assertion, null);
+    }
 
-      // First locate the SADRequest extension.
-      //
-      final SADRequest sadRequest = authnRequest.getExtensions() != null
-          ? authnRequest.getExtensions()
-          .getUnknownXMLObjects()
-          .stream()
-          .filter(SADRequest.class::isInstance)
-          .map(SADRequest.class::cast)
-          .findFirst()
-          .orElse(null)
-          : null;
+    /**
+     * Validates the SAD issued in an {@code Assertion} if the {@code AuthnRequest} contained a {@code SADRequest},
+     * using the supplied (already resolved) IdP metadata to find the keys for verifying the JWT signature. This method
+     * is intended to be used when the assertion has already been processed, for example by a response processor, and
+     * the IdP metadata is at hand.
+     * <p>
+     * Unlike {@link #validate(AuthnRequest, Assertion)}, this method does not regard a missing {@code SADRequest} as
+     * an error. Instead {@code null} is returned, meaning that no SAD was requested.
+     * </p>
+     * <p>
+     * If the validator was configured with a set of certificates, these are used instead of the metadata.
+     * </p>
+     *
+     * @param authnRequest the AuthnRequest
+     * @param assertion the Assertion holding the sad attribute (as an encoded JWT)
+     * @param idpMetadata the metadata for the IdP that issued the assertion (if {@code null}, the keys are looked up as
+     *     for {@link #validate(AuthnRequest, Assertion)})
+     * @return a SAD object, or {@code null} if the AuthnRequest does not contain a SADRequest (i.e., no SAD was
+     *     requested)
+     * @throws SADValidationException for SAD validation errors
+     * @throws IllegalArgumentException if the supplied AuthnRequest or Assertion is invalid (e.g., missing LoA)
+     */
+    public SAD validateIfRequested(final AuthnRequest authnRequest, final Assertion assertion,
+        final EntityDescriptor idpMetadata) throws SADValidationException, IllegalArgumentException {
 
+      final SADRequest sadRequest = getSADRequest(authnRequest);
       if (sadRequest == null) {
-        final String msg = String.format("AuthnRequest '%s' does not contain a SADRequest", authnRequest.getID());
-        logger.info(msg);
-        throw new IllegalArgumentException(msg);
+        logger.debug("AuthnRequest '{}' does not contain a SADRequest - no SAD to validate", authnRequest.getID());
+        return null;
+      }
+      return this.validate(sadRequest.getID(), sadRequest.getRequesterID(), sadRequest.getDocCount(),
+          sadRequest.getSignRequestID(), assertion,
+          idpMetadata != null ? this.verifierCache.getKeys(idpMetadata) : null);
+    }
+
+    /**
+     * Validates the SAD issued in an {@code Assertion} based on an {@link AuthnRequestSnapshot} of the
+     * {@code AuthnRequest} containing a {@code SADRequest}. This method is equivalent to
+     * {@link #validate(AuthnRequest, Assertion)} but does not require the complete {@code AuthnRequest}.
+     *
+     * @param authnRequest the AuthnRequest snapshot
+     * @param assertion the Assertion holding the sad attribute (as an encoded JWT)
+     * @return a SAD object
+     * @throws SADValidationException for SAD validation errors
+     * @throws IllegalArgumentException if the AuthnRequest did not contain a SADRequest extension, or is invalid by
+     *     other means (e.g., missing LoA)
+     */
+    public SAD validate(final AuthnRequestSnapshot authnRequest, final Assertion assertion)
+        throws SADValidationException, IllegalArgumentException {
+
+      if (!authnRequest.hasSADRequest()) {
+        logger.info("AuthnRequest '{}' does not contain a SADRequest", authnRequest.getId());
+        throw new IllegalArgumentException("AuthnRequest '" + authnRequest.getId() + "' does not contain a SADRequest");
+      }
+      return this.validate(authnRequest.getSadRequestID(), authnRequest.getSadRequesterID(),
+          authnRequest.getDocCount(), authnRequest.getSignRequestID(), assertion, null);
+    }
+
+    /**
+     * Validates the SAD issued in an {@code Assertion} if the {@link AuthnRequestSnapshot} tells that the
+     * {@code AuthnRequest} contained a {@code SADRequest}, using the supplied (already resolved) IdP metadata to find
+     * the keys for verifying the JWT signature. See
+     * {@link #validateIfRequested(AuthnRequest, Assertion, EntityDescriptor)}.
+     *
+     * @param authnRequest the AuthnRequest snapshot
+     * @param assertion the Assertion holding the sad attribute (as an encoded JWT)
+     * @param idpMetadata the metadata for the IdP that issued the assertion (may be {@code null})
+     * @return a SAD object, or {@code null} if the AuthnRequest did not contain a SADRequest
+     * @throws SADValidationException for SAD validation errors
+     * @throws IllegalArgumentException if the supplied AuthnRequest or Assertion is invalid (e.g., missing LoA)
+     */
+    public SAD validateIfRequested(final AuthnRequestSnapshot authnRequest, final Assertion assertion,
+        final EntityDescriptor idpMetadata) throws SADValidationException, IllegalArgumentException {
+
+      if (!authnRequest.hasSADRequest()) {
+        logger.debug("AuthnRequest '{}' does not contain a SADRequest - no SAD to validate", authnRequest.getId());
+        return null;
       }
+      return this.validate(authnRequest.getSadRequestID(), authnRequest.getSadRequesterID(),
+          authnRequest.getDocCount(), authnRequest.getSignRequestID(), assertion,
+          idpMetadata != null ? this.verifierCache.getKeys(idpMetadata) : null);
+    }
+
+    /**
+     * Validates the SAD issued in an {@code Assertion} based on the supplied {@code SADRequest} data.
+     *
+     * @param sadRequestID the ID of the SADRequest
+     * @param requesterID the requester ID of the SADRequest (i.e., the expected SAD audience)
+     * @param docCount the number of documents given in the SADRequest
+     * @param signRequestID the SignRequest ID of the SADRequest
+     * @param assertion the Assertion holding the sad attribute (as an encoded JWT)
+     * @param idpKeys the IdP keys to use (if {@code null}, the keys are looked up)
+     * @return a SAD object
+     * @throws SADValidationException for SAD validation errors
+     * @throws IllegalArgumentException if the SADRequest data or the Assertion is invalid (e.g., missing LoA)
+     */
+    private SAD validate(final String sadRequestID, final String requesterID, final Integer docCount,
+        final String signRequestID, final Assertion assertion, final SADVerifierCache.IdpKeys idpKeys)
+        throws SADValidationException, IllegalArgumentException {
+
+      final long now = System.currentTimeMillis() / 1000;
 
       // Next, locate the SAD attribute.
       //
       if (assertion.getAttributeStatements().isEmpty()) {
-        final String msg =
-            String.format("Assertion '%s' does not contain any attributes (and thus no SAD)", assertion.getID());
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.NO_SAD_ATTRIBUTE, msg);
+        throw this.reject(ErrorCode.NO_SAD_ATTRIBUTE,
+            "Assertion '%s' does not contain any attributes (and thus no SAD)", assertion.getID(), null);
       }
       final List<Attribute> attributes = assertion.getAttributeStatements().getFirst().getAttributes();
       final Attribute sadAttribute = AttributeUtils.getAttribute(AttributeConstants.ATTRIBUTE_NAME_SAD, attributes);
       if (sadAttribute == null) {
-        final String msg = String.format("Assertion '%s' does not contain a SAD attribute", assertion.getID());
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.NO_SAD_ATTRIBUTE, msg);
+        throw this.reject(ErrorCode.NO_SAD_ATTRIBUTE, "Assertion '%s' does not contain a SAD attribute",
+            assertion.getID(), null);
       }
 
       // Parse the JWT and SAD.
@@ -239,10 +331,9 @@ public class SADParser {
       final SAD sad;
       try {
         signedJwt = SignedJWT.parse(AttributeUtils.getAttributeStringValue(sadAttribute));
-        final String payload = signedJwt.getPayload().toBase64URL().toString();
-        sad = SAD.fromJson(new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.UTF_8));
+        sad = SADCodec.decode(signedJwt.getPayload().toBase64URL().decode());
       }
-      catch (final ParseException | JacksonException e) {
+      catch (final ParseException | IOException e) {
         throw new SADValidationException(ErrorCode.JWT_PARSE_ERROR, "Failed to parse SAD JWT", e);
       }
 
@@ -250,23 +341,18 @@ public class SADParser {
       // used as the user subject. Let's find that attribute value ...
       //
       if (sad.getSeElnSadext() == null) {
-        final String msg = "seElnSadext extension claims are missing from SAD";
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.BAD_SAD_FORMAT, msg);
+        throw this.reject(ErrorCode.BAD_SAD_FORMAT, "seElnSadext extension claims are missing from SAD", null, null);
       }
       if (sad.getSeElnSadext().getAttributeName() == null) {
-        final String msg = "SAD does not contain the attribute name (attr) for the subject";
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.BAD_SAD_FORMAT, msg);
+        throw this.reject(ErrorCode.BAD_SAD_FORMAT, "SAD does not contain the attribute name (attr) for the subject",
+            null, null);
       }
       final Attribute subjectAttribute =
           AttributeUtils.getAttribute(sad.getSeElnSadext().getAttributeName(), attributes);
       if (subjectAttribute == null) {
-        final String msg = String.format(
+        throw this.reject(ErrorCode.MISSING_SUBJECT_ATTRIBUTE,
             "Assertion '%s' does not contain a '%s' attribute - this is listed as the subject attribute in the SAD",
             assertion.getID(), sad.getSeElnSadext().getAttributeName());
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.MISSING_SUBJECT_ATTRIBUTE, msg);
       }
 
       // Next, get hold of the AuthnContextClassRef holding the LoA.
@@ -274,25 +360,42 @@ public class SADParser {
       //
       final String loa = getLoa(assertion);
       if (loa == null) {
-        final String msg = String.format("Assertion '%s' does not contain a LoA URI", assertion.getID());
-        logger.error(msg);
-        throw new IllegalArgumentException(msg);
+        logger.error("Assertion '{}' does not contain a LoA URI", assertion.getID());
+        throw new IllegalArgumentException("Assertion '" + assertion.getID() + "' does not contain a LoA URI");
       }
 
-      if (sadRequest.getDocCount() == null) {
+      if (docCount == null) {
         throw new IllegalArgumentException("Bad SADRequest - missing DocCount");
       }
 
       // Now, validate!
       //
-      return this.validate(signedJwt, sad, now,
+      return this.validate(signedJwt, sad, now, idpKeys,
           assertion.getIssuer().getValue(), /* The IdP entityID = issuer of the SAD. */
-          sadRequest.getRequesterID(), /* The requester ID = expected recipient ID of the SAD. */
+          requesterID, /* The requester ID = expected recipient ID of the SAD. */
           AttributeUtils.getAttributeStringValue(subjectAttribute), /* The expected subject name. */
           loa, /* The expected LoA. */
-          sadRequest.getID(), /* The expected in-response-to ID. */
-          sadRequest.getDocCount(), /* The expected number of documents indicated in the SAD. */
-          sadRequest.getSignRequestID()); /* The SignRequest ID. */
+          sadRequestID, /* The expected in-response-to ID. */
+          docCount, /* The expected number of documents indicated in the SAD. */
+          signRequestID); /* The SignRequest ID. */
+    }
+
+    /**
+     * Locates the {@code SADRequest} extension of the supplied {@code AuthnRequest}.
+     *
+     * @param authnRequest the AuthnRequest
+     * @return the SADRequest, or {@code null} if not present
+     */
+    private static SADRequest getSADRequest(final AuthnRequest authnRequest) {
+      return authnRequest.getExtensions() != null
+          ? authnRequest.getExtensions()
+          .getUnknownXMLObjects()
+          .stream()
+          .filter(SADRequest.class::isInstance)
+          .map(SADRequest.class::cast)
+          .findFirst()
+          .orElse(null)
+          : null;
     }
 
     /**
@@ -324,22 +427,119 @@ public class SADParser {
         final String expectedSubject, final String expectedLoa, final String sadRequestID, final int expectedNoDocs,
         final String signRequestID) throws SADValidationException {
 
+      return this.validate(new SADValidationInput(sadJwt, idpEntityID, expectedRecipientEntityID, expectedSubject,
+          expectedLoa, sadRequestID, expectedNoDocs, signRequestID), null, System.currentTimeMillis() / 1000);
+    }
+
+    /**
+     * Validates a batch of SAD:s. The SAD:s are validated in parallel using the configured executor (see
+     * {@link #setExecutor(Executor)}), and the IdP certificates and verifiers are looked up once per IdP for the entire
+     * batch.
+     * <p>
+     * A validation error for one SAD does not affect the other SAD:s of the batch. Instead, the error is reported in
+     * the corresponding {@link SADValidationResult}. This also holds for unexpected errors (for example, a runtime
+     * exception from the {@link SADReplayChecker}), which are reported using the
+     * {@link ErrorCode#VALIDATION_PROCESSING_ERROR} error code. If the executor rejects a task, the SAD is validated in
+     * the calling thread.
+     * </p>
+     *
+     * @param inputs the SAD:s to validate along with their expected data
+     * @return a list of validation results (in the same order as the supplied inputs)
+     */
+    public List<SADValidationResult> validateAll(final Collection<SADValidationInput> inputs) {
       final long now = System.currentTimeMillis() / 1000;
 
+      // Resolve the IdP keys once per IdP ...
+      //
+      final Map<String, SADVerifierCache.IdpKeys> idpKeys = new HashMap<>();
+      final Map<String, SADValidationException> idpErrors = new HashMap<>();
+      for (final SADValidationInput input : inputs) {
+        final String idp = input.getIdpEntityID();
+        if (idp != null && !idpKeys.containsKey(idp) && !idpErrors.containsKey(idp)) {
+          try {
+            idpKeys.put(idp, this.getIdpKeys(idp));
+          }
+          catch (final SADValidationException e) {
+            idpErrors.put(idp, e);
+          }
+        }
+      }
+
+      final Function<SADValidationInput, SADValidationResult> task = input -> {
+        final SADValidationException idpError = idpErrors.get(input.getIdpEntityID());
+        if (idpError != null) {
+          return new SADValidationResult(input, idpError);
+        }
+        try {
+          return new SADValidationResult(input, this.validate(input, idpKeys.get(input.getIdpEntityID()), now));
+        }
+        catch (final SADValidationException e) {
+          return new SADValidationResult(input, e);
+        }
+        catch (final RuntimeException e) {
+          logger.warn("Unexpected error during SAD validation - {}", e.getMessage(), e);
+          return new SADValidationResult(input, new SADValidationException(ErrorCode.VALIDATION_PROCESSING_ERROR,
+              "Unexpected error during SAD validation - " + e.getMessage(), e));
+        }
+      };
+
+      if (this.executor != null) {
+        return runAll(inputs, task, this.executor);
+      }
+      try (final ExecutorService virtualThreads = Executors.newVirtualThreadPerTaskExecutor()) {
+        return runAll(inputs, task, virtualThreads);
+      }
+    }
+
+    /**
+     * Runs the supplied task for all inputs using the given executor and waits for the results. If the executor
+     * rejects a task, the task is run in the calling thread.
+     *
+     * @param inputs the inputs
+     * @param task the validation task
+     * @param executor the executor
+     * @return the results (in the same order as the inputs)
+     */
+    private static List<SADValidationResult> runAll(final Collection<SADValidationInput> inputs,
+        final Function<SADValidationInput, SADValidationResult> task, final Executor executor) {
+      final List<CompletableFuture<SADValidationResult>> futures = inputs.stream()
+          .map(input -> {
+            try {
+              return CompletableFuture.supplyAsync(() -> task.apply(input), executor);
+            }
+            catch (final RejectedExecutionException e) {
+              return CompletableFuture.completedFuture(task.apply(input));
+            }
+          })
+          .toList();
+      return futures.stream().map(CompletableFuture::join).toList();
+    }
+
+    /**
+     * Validates a SAD based on the supplied input.
+     *
+     * @param input the SAD JWT and the expected data
+     * @param idpKeys the keys for the IdP (if {@code null}, the keys are looked up)
+     * @param now the current time (seconds since 1970-01-01)
+     * @return a SAD object
+     * @throws SADValidationException for validation errors
+     */
+    private SAD validate(final SADValidationInput input, final SADVerifierCache.IdpKeys idpKeys, final long now)
+        throws SADValidationException {
       try {
         // Parse the JWT
         //
-        final SignedJWT signedJwt = SignedJWT.parse(sadJwt);
+        final SignedJWT signedJwt = SignedJWT.parse(input.getSadJwt());
 
         // Next, parse the SAD.
         //
-        final String payload = signedJwt.getPayload().toBase64URL().toString();
-        final SAD sad = SAD.fromJson(new String(Base64.getUrlDecoder().decode(payload), StandardCharsets.UTF_8));
+        final SAD sad = SADCodec.decode(signedJwt.getPayload().toBase64URL().decode());
 
-        return this.validate(signedJwt, sad, now, idpEntityID, expectedRecipientEntityID, expectedSubject, expectedLoa,
-            sadRequestID, expectedNoDocs, signRequestID);
+        return this.validate(signedJwt, sad, now, idpKeys, input.getIdpEntityID(),
+            input.getExpectedRecipientEntityID(), input.getExpectedSubject(), input.getExpectedLoa(),
+            input.getSadRequestID(), input.getExpectedNoDocs(), input.getSignRequestID());
       }
-      catch (final ParseException | JacksonException e) {
+      catch (final ParseException | IOException e) {
         throw new SADValidationException(ErrorCode.JWT_PARSE_ERROR, "Failed to parse SAD JWT", e);
       }
     }
@@ -350,6 +550,7 @@ public class SADParser {
      * @param signedJwt the SAD JWT
      * @param sad the SAD (parsed for pre-checks)
      * @param now the current time (seconds since 1970-01-01)
+     * @param idpKeys the keys for the IdP (if {@code null}, the keys are looked up)
      * @param idpEntityID the entityID of the issuing IdP (the issuer of the received assertion holding the sad
      *     attribute)
      * @param expectedRecipientEntityID the entityID of the recipient (the signature service SP that issued the
@@ -363,115 +564,110 @@ public class SADParser {
      * @return a SAD object
      * @throws SADValidationException for validation errors
      */
-    private SAD validate(final SignedJWT signedJwt, final SAD sad, final long now, final String idpEntityID,
+    private SAD validate(final SignedJWT signedJwt, final SAD sad, final long now,
+        final SADVerifierCache.IdpKeys idpKeys, final String idpEntityID,
         final String expectedRecipientEntityID, final String expectedSubject, final String expectedLoa,
         final String sadRequestID, final int expectedNoDocs, final String signRequestID)
         throws SADValidationException {
 
-      // Verify the JWT signature
+      // Verify the JWT signature (unless we have been configured to check the claims first).
       //
-      this.verifyJwtSignature(signedJwt, idpEntityID);
+      if (!this.checkClaimsFirst) {
+        this.verifyJwtSignature(signedJwt, idpKeys != null ? idpKeys : this.getIdpKeys(idpEntityID));
+      }
 
       // Ensure that we have a JWT ID.
       //
       if (sad.getJwtId() == null || sad.getJwtId().isEmpty()) {
-        final String msg = "Invalid SAD JWT - jti is missing";
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.BAD_SAD_FORMAT, msg);
+        throw this.reject(ErrorCode.BAD_SAD_FORMAT, "Invalid SAD JWT - jti is missing", null, null);
       }
 
       // Make sure that the SAD issuer is the same as the IdP that issued the Assertion
       // that contained the SAD.
       //
       if (!Objects.equals(idpEntityID, sad.getIssuer())) {
-        final String msg = String.format("SAD contains issuer '%s' - expected '%s'", sad.getIssuer(), idpEntityID);
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.VALIDATION_BAD_ISSUER, msg);
+        throw this.reject(ErrorCode.VALIDATION_BAD_ISSUER, "SAD contains issuer '%s' - expected '%s'",
+            sad.getIssuer(), idpEntityID);
       }
 
       // Make sure that this SAD was issued for "me".
       //
       if (!Objects.equals(expectedRecipientEntityID, sad.getAudience())) {
-        final String msg =
-            String.format("SAD contains audience '%s' - expected '%s'", sad.getAudience(), expectedRecipientEntityID);
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.VALIDATION_BAD_AUDIENCE, msg);
+        throw this.reject(ErrorCode.VALIDATION_BAD_AUDIENCE, "SAD contains audience '%s' - expected '%s'",
+            sad.getAudience(), expectedRecipientEntityID);
       }
 
       // Make sure that the SAD is still valid.
       //
       if (sad.getExpiry() == null || sad.getIssuedAt() == null) {
-        final String msg = "SAD is missing 'exp' and/or 'iat' - Invalid SAD";
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.BAD_SAD_FORMAT, msg);
+        throw this.reject(ErrorCode.BAD_SAD_FORMAT, "SAD is missing 'exp' and/or 'iat' - Invalid SAD", null, null);
       }
 
       if (sad.getExpiry() < now - this.allowedClockSkew.getSeconds()) {
-        final String msg = String.format("SAD has expired - expiration: '%s', current time: '%s'",
+        throw this.reject(ErrorCode.SAD_EXPIRED, "SAD has expired - expiration: '%s', current time: '%s'",
             sad.getExpiryDateTime(), Instant.ofEpochSecond(now));
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.SAD_EXPIRED, msg);
       }
 
       if (sad.getIssuedAt() > now + this.allowedClockSkew.getSeconds()) {
-        final String msg = String.format("SAD is not yet valid - issue-time: '%s', current time: '%s'",
+        throw this.reject(ErrorCode.BAD_SAD_FORMAT,
+            "SAD is not yet valid - issue-time: '%s', current time: '%s'",
             sad.getIssuedAtDateTime(), Instant.ofEpochSecond(now));
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.BAD_SAD_FORMAT, msg);
       }
 
       // Assert that we received a SAD for the expected subject ID (userID).
       //
       if (!Objects.equals(expectedSubject, sad.getSubject())) {
-        final String msg =
-            String.format("SAD contains subject '%s' - expected '%s'", sad.getSubject(), expectedSubject);
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.VALIDATION_BAD_SUBJECT, msg);
+        throw this.reject(ErrorCode.VALIDATION_BAD_SUBJECT, "SAD contains subject '%s' - expected '%s'",
+            sad.getSubject(), expectedSubject);
       }
 
       // Ensure SAD format.
       //
       if (sad.getSeElnSadext() == null) {
-        final String msg = "seElnSadext extension claims are missing from SAD";
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.BAD_SAD_FORMAT, msg);
+        throw this.reject(ErrorCode.BAD_SAD_FORMAT, "seElnSadext extension claims are missing from SAD", null, null);
       }
 
       // Assert that the SAD was issued based on the given SAD request.
       //
       if (!Objects.equals(sadRequestID, sad.getSeElnSadext().getInResponseTo())) {
-        final String msg =
-            String.format("SAD contains in-response-to (irt) '%s' - expected SAD to belong to SADRequest with ID '%s'",
-                sad.getSeElnSadext().getInResponseTo(), sadRequestID);
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.VALIDATION_BAD_IRT, msg);
+        throw this.reject(ErrorCode.VALIDATION_BAD_IRT,
+            "SAD contains in-response-to (irt) '%s' - expected SAD to belong to SADRequest with ID '%s'",
+            sad.getSeElnSadext().getInResponseTo(), sadRequestID);
       }
 
       // Assert that the SAD was issued under the LoA that we expects (should be the same as found in the assertion).
       //
       if (!Objects.equals(expectedLoa, sad.getSeElnSadext().getLoa())) {
-        final String msg =
-            String.format("SAD contains LoA '%s' - expected '%s'", sad.getSeElnSadext().getLoa(), expectedLoa);
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.VALIDATION_BAD_LOA, msg);
+        throw this.reject(ErrorCode.VALIDATION_BAD_LOA, "SAD contains LoA '%s' - expected '%s'",
+            sad.getSeElnSadext().getLoa(), expectedLoa);
       }
 
       // Assert the the number of documents indicated in the SAD corresponds with the number given in the SADRequest.
       //
       if (!Objects.equals(expectedNoDocs, sad.getSeElnSadext().getNumberOfDocuments())) {
-        final String msg = String.format("SAD indicated '%s' number of documents - expected '%d'",
+        throw this.reject(ErrorCode.VALIDATION_BAD_DOCS, "SAD indicated '%s' number of documents - expected '%d'",
             sad.getSeElnSadext().getNumberOfDocuments(), expectedNoDocs);
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.VALIDATION_BAD_DOCS, msg);
       }
 
       // Assert that the given SignRequest ID corresponds with the SAD reqid.
       //
       if (!Objects.equals(signRequestID, sad.getSeElnSadext().getRequestID())) {
-        final String msg = String.format("SAD contains SignRequest ID (reqid) '%s' - expected '%s'",
+        throw this.reject(ErrorCode.VALIDATION_BAD_SIGNREQUESTID,
+            "SAD contains SignRequest ID (reqid) '%s' - expected '%s'",
             sad.getSeElnSadext().getRequestID(), signRequestID);
-        logger.info(msg);
-        throw new SADValidationException(ErrorCode.VALIDATION_BAD_SIGNREQUESTID, msg);
+      }
+
+      // If the claims were checked first, it is time to verify the signature.
+      //
+      if (this.checkClaimsFirst) {
+        this.verifyJwtSignature(signedJwt, idpKeys != null ? idpKeys : this.getIdpKeys(idpEntityID));
+      }
+
+      // Finally, make sure that the SAD has not been used before.
+      //
+      if (this.replayChecker != null && !this.replayChecker.checkAndRecord(sad.getIssuer(), sad.getJwtId(),
+          sad.getExpiry() + this.allowedClockSkew.getSeconds(), now)) {
+        throw this.reject(ErrorCode.SAD_REPLAY, "SAD with ID '%s' has already been used", sad.getJwtId(), null);
       }
 
       logger.debug("SAD with ID '{}' was successfully validated", sad.getJwtId());
@@ -502,36 +698,24 @@ public class SADParser {
      * @throws SADValidationException for signature validation errors
      */
     private void verifyJwtSignature(final SignedJWT signedJwt, final String idpEntityID) throws SADValidationException {
+      this.verifyJwtSignature(signedJwt, this.getIdpKeys(idpEntityID));
+    }
+
+    /**
+     * Returns the keys (certificates and verifiers) for the given IdP.
+     *
+     * @param idpEntityID the IdP entityID
+     * @return the IdP keys
+     * @throws SADValidationException if no keys could be found
+     */
+    private SADVerifierCache.IdpKeys getIdpKeys(final String idpEntityID) throws SADValidationException {
       try {
-        // Verify the JWT signature
-        //
-        final List<X509Certificate> idpCerts = this.getValidationCertificates(idpEntityID);
-        if (idpCerts.isEmpty()) {
+        final SADVerifierCache.IdpKeys idpKeys = this.verifierCache.getKeys(idpEntityID);
+        if (idpKeys.isEmpty()) {
           throw new SADValidationException(ErrorCode.SIGNATURE_VALIDATION_ERROR,
               "No suitable IdP signature certificate was found - can not verify SAD JWT signature");
         }
-        logger.debug("Verifying SAD JWT signature. Will try {} IdP key(s) ...", idpCerts.size());
-
-        boolean verificationSuccess = false;
-        for (final X509Certificate idpCert : idpCerts) {
-          try {
-            final JWSVerifier verifier =
-                verifierFactory.createJWSVerifier(signedJwt.getHeader(), idpCert.getPublicKey());
-            if (verifier.verify(signedJwt.getHeader(), signedJwt.getSigningInput(), signedJwt.getSignature())) {
-              logger.debug("SAD JWT signature successfully verified");
-              verificationSuccess = true;
-              break;
-            }
-          }
-          catch (final JOSEException e) {
-            logger.debug("Failed to perform signature validation of SAD JWT - {}", e.getMessage());
-            logger.trace("", e);
-          }
-        }
-        if (!verificationSuccess) {
-          throw new SADValidationException(ErrorCode.SIGNATURE_VALIDATION_ERROR,
-              "Signature on SAD JWT could not be validated using any of the IdP certificates found");
-        }
+        return idpKeys;
       }
       catch (final ResolverException e) {
         throw new SADValidationException(ErrorCode.SIGNATURE_VALIDATION_ERROR, "Failed to find validation certificate",
@@ -540,33 +724,64 @@ public class SADParser {
     }
 
     /**
-     * Returns a list of possible IdP validation certificates to use when verifying the SAD signature.
+     * Verifies the signature on the supplied SAD JWT using the supplied IdP keys.
      *
-     * @param idpEntityID the IdP entityID
-     * @return a list of certificates
-     * @throws ResolverException for metadata resolver errors
+     * @param signedJwt the SAD JWT
+     * @param idpKeys the IdP keys
+     * @throws SADValidationException for signature validation errors
      */
-    private List<X509Certificate> getValidationCertificates(final String idpEntityID) throws ResolverException {
-      if (this.validationCertificates != null && !this.validationCertificates.isEmpty()) {
-        return this.validationCertificates;
-      }
-      else if (this.metadataProvider != null) {
-        final IDPSSODescriptor metadata = Optional.ofNullable(this.metadataProvider.getEntityDescriptor(idpEntityID))
-            .map(e -> e.getIDPSSODescriptor(SAMLConstants.SAML20P_NS)).orElse(null);
-
-        if (metadata == null) {
-          logger.warn("No metadata found for IdP '{}' - cannot find key to use when verifying SAD JWT signature",
-              idpEntityID);
-          return Collections.emptyList();
+    private void verifyJwtSignature(final SignedJWT signedJwt, final SADVerifierCache.IdpKeys idpKeys)
+        throws SADValidationException {
+      // Verify the JWT signature
+      //
+      final List<SADVerifierCache.VerificationKey> candidates = idpKeys.getKeys(signedJwt.getHeader());
+      logger.debug("Verifying SAD JWT signature. Will try {} IdP key(s) ...", candidates.size());
+
+      boolean verificationSuccess = false;
+      for (final SADVerifierCache.VerificationKey idpKey : candidates) {
+        try {
+          final JWSVerifier verifier = idpKey.getVerifier(signedJwt.getHeader());
+          if (verifier.verify(signedJwt.getHeader(), signedJwt.getSigningInput(), signedJwt.getSignature())) {
+            logger.debug("SAD JWT signature successfully verified");
+            verificationSuccess = true;
+            break;
+          }
+        }
+        catch (final JOSEException e) {
+          logger.debug("Failed to perform signature validation of SAD JWT - {}", e.getMessage());
+          logger.trace("", e);
         }
-        final List<X509Credential> creds = EntityDescriptorUtils.getMetadataCertificates(metadata, UsageType.SIGNING);
-        return creds.stream().map(X509Credential::getEntityCertificate).collect(Collectors.toList());
       }
-      else {
-        return Collections.emptyList();
+      if (!verificationSuccess) {
+        throw this.reject(ErrorCode.SIGNATURE_VALIDATION_ERROR,
+            "Signature on SAD JWT could not be validated using any of the IdP certificates found", null, null);
       }
     }
 
+    /**
+     * Creates a {@link SADValidationException} for a SAD that was rejected. The rejection is logged at INFO level with
+     * the error code only, and the detailed message is logged at DEBUG level. This way, the message is not formatted
+     * until it is needed (not at all unless DEBUG logging is enabled or the caller reads the message), and the stack
+     * trace is only filled in if the validator has been configured to do so (see
+     * {@link #setIncludeStackTraces(boolean)}).
+     *
+     * @param errorCode the error code
+     * @param messageFormat the message format (with the actual and expected values as arguments)
+     * @param actual the actual value
+     * @param expected the expected value
+     * @return a SADValidationException
+     */
+    private SADValidationException reject(final ErrorCode errorCode, final String messageFormat, final Object actual,
+        final Object expected) {
+      final SADValidationException e =
+          new SADValidationException(errorCode, messageFormat, actual, expected, this.includeStackTraces);
+      logger.info("SAD rejected ({})", errorCode);
+      if (logger.isDebugEnabled()) {
+        logger.debug("SAD rejected ({}) - {}", errorCode, e.getMessage());
+      }
+      return e;
+    }
+
     /**
      * Returns the LoA (level of assurance) URI from the supplied assertion.
      *
@@ -593,6 +808,55 @@ public class SADParser {
       }
     }
 
+    /**
+     * Assigns the {@link SADReplayChecker} used to detect replayed SAD:s, for example an
+     * {@link InMemorySADReplayChecker} or a {@link MappedFileSADReplayChecker}. By default, no replay checker is
+     * installed, and the same SAD may be validated more than once (for example when a request is retried).
+     *
+     * @param replayChecker the replay checker
+     */
+    public void setReplayChecker(final SADReplayChecker replayChecker) {
+      this.replayChecker = replayChecker;
+    }
+
+    /**
+     * Tells whether the SAD claims ({@code iss}, {@code aud}, {@code exp}, {@code iat}, {@code sub}, {@code irt},
+     * {@code loa}, {@code docs} and {@code reqid}) should be checked before the JWT signature is verified. The default
+     * is {@code false}, meaning that the signature is verified first.
+     * <p>
+     * Checking the claims first means that stale or misrouted SAD:s are rejected without performing any public key
+     * operations, which is useful under high load. The same error codes are used in both modes, but a SAD with an
+     * invalid signature and invalid claims will be reported with the claim error code when this mode is active. The
+     * replay check is always performed after the signature has been verified.
+     * </p>
+     *
+     * @param checkClaimsFirst whether claims should be checked before the signature is verified
+     */
+    public void setCheckClaimsFirst(final boolean checkClaimsFirst) {
+      this.checkClaimsFirst = checkClaimsFirst;
+    }
+
+    /**
+     * Tells whether stack traces should be filled in for the {@link SADValidationException}s thrown when a SAD is
+     * rejected by the validation checks (parse errors always include a stack trace). The default is {@code false},
+     * since the stack trace gives no information about why a SAD was rejected and is costly to create.
+     *
+     * @param includeStackTraces whether stack traces should be filled in
+     */
+    public void setIncludeStackTraces(final boolean includeStackTraces) {
+      this.includeStackTraces = includeStackTraces;
+    }
+
+    /**
+     * Assigns the executor that {@link #validateAll(Collection)} uses to validate SAD:s in parallel. If not assigned, a
+     * new virtual thread is started for each SAD.
+     *
+     * @param executor the executor
+     */
+    public void setExecutor(final Executor executor) {
+      this.executor = executor;
+    }
+
   }
 
 }
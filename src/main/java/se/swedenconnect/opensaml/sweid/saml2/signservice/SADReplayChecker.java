@@ -0,0 +1,44 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+/**
+ * Interface for checking whether a SAD has already been used (replay protection).
+ * <p>
+ * A SAD is identified by its issuer ({@code iss}) and JWT ID ({@code jti}). An implementation records each SAD that is
+ * checked and remembers it until its expiration time has passed.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ * @see InMemorySADReplayChecker
+ */
+public interface SADReplayChecker {
+
+  /**
+   * Checks whether the SAD identified by the supplied issuer and JWT ID has been seen before, and if not, records it.
+   * The check-and-record operation must be atomic, i.e., if several threads (or processes) present the same SAD
+   * concurrently, at most one of them may be accepted.
+   *
+   * @param issuer the SAD issuer (entityID of the issuing IdP)
+   * @param jwtId the SAD JWT ID
+   * @param expiresAt the time (seconds since 1970-01-01) until which the SAD must be remembered
+   * @param now the current time (seconds since 1970-01-01)
+   * @return {@code true} if the SAD has not been seen before (and was recorded), and {@code false} if the SAD is a
+   *     replay or if it could not be recorded
+   */
+  boolean checkAndRecord(final String issuer, final String jwtId, final long expiresAt, final long now);
+
+}
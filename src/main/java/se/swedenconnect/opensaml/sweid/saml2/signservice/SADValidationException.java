@@ -17,8 +17,16 @@ package se.swedenconnect.opensaml.sweid.saml2.signservice;
 
 import se.swedenconnect.opensaml.sweid.LibraryVersion;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+
 /**
  * Exception class for SAD validation errors.
+ * <p>
+ * For validation failures where a SAD claim does not match an expected value, the exception may be created with a
+ * message format along with the actual and expected values. The message is then not formatted until it is read, and
+ * the exception may be created without a stack trace. This keeps the cost of rejecting SADs low.
+ * </p>
  *
  * @author Martin Lindström (martin@idsec.se)
  */
@@ -66,7 +74,13 @@ public class SADValidationException extends Exception {
     NO_SAD_ATTRIBUTE,
 
     /** The attribute name given in the SAD for the subject was not found in the assertion. */
-    MISSING_SUBJECT_ATTRIBUTE
+    MISSING_SUBJECT_ATTRIBUTE,
+
+    /** The SAD has already been used (replay). */
+    SAD_REPLAY,
+
+    /** An unexpected error occurred during validation (e.g., in the replay checker). */
+    VALIDATION_PROCESSING_ERROR
 
   }
 
@@ -76,6 +90,18 @@ public class SADValidationException extends Exception {
   /** The SAD validation error code. */
   private ErrorCode errorCode;
 
+  /** The message format (used if the message is formatted lazily). */
+  private final String messageFormat;
+
+  /** The actual value (that caused the validation error). */
+  private transient Object actual;
+
+  /** The expected value. */
+  private transient Object expected;
+
+  /** The formatted message (if the message is formatted lazily). */
+  private String formattedMessage;
+
   /**
    * Constructor assigning the error code and error message.
    *
@@ -85,6 +111,7 @@ public class SADValidationException extends Exception {
   public SADValidationException(final ErrorCode errorCode, final String message) {
     super(message);
     this.errorCode = errorCode;
+    this.messageFormat = null;
   }
 
   /**
@@ -97,6 +124,27 @@ public class SADValidationException extends Exception {
   public SADValidationException(final ErrorCode errorCode, final String message, final Throwable cause) {
     super(message, cause);
     this.errorCode = errorCode;
+    this.messageFormat = null;
+  }
+
+  /**
+   * Constructor assigning the error code, a message format along with the actual and expected values. The message is
+   * formatted (using {@link String#format(String, Object...)} with the actual and expected values as arguments, in that
+   * order) first when it is read.
+   *
+   * @param errorCode the error code
+   * @param messageFormat the message format
+   * @param actual the actual value (may be {@code null})
+   * @param expected the expected value (may be {@code null})
+   * @param writableStackTrace whether the stack trace should be filled in
+   */
+  public SADValidationException(final ErrorCode errorCode, final String messageFormat, final Object actual,
+      final Object expected, final boolean writableStackTrace) {
+    super(null, null, true, writableStackTrace);
+    this.errorCode = errorCode;
+    this.messageFormat = messageFormat;
+    this.actual = actual;
+    this.expected = expected;
   }
 
   /**
@@ -108,4 +156,52 @@ public class SADValidationException extends Exception {
     return this.errorCode;
   }
 
+  /**
+   * Returns the actual value that caused the validation error.
+   * <p>
+   * Only available if the exception was created with actual and expected values (and not after deserialization).
+   * </p>
+   *
+   * @return the actual value, or {@code null}
+   */
+  public Object getActual() {
+    return this.actual;
+  }
+
+  /**
+   * Returns the expected value.
+   * <p>
+   * Only available if the exception was created with actual and expected values (and not after deserialization).
+   * </p>
+   *
+   * @return the expected value, or {@code null}
+   */
+  public Object getExpected() {
+    return this.expected;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String getMessage() {
+    if (this.messageFormat == null) {
+      return super.getMessage();
+    }
+    if (this.formattedMessage == null) {
+      this.formattedMessage = String.format(this.messageFormat, this.actual, this.expected);
+    }
+    return this.formattedMessage;
+  }
+
+  /**
+   * Makes sure that the message is formatted before the exception is serialized (the actual and expected values are
+   * not serialized).
+   *
+   * @param out the output stream
+   * @throws IOException for write errors
+   */
+  private void writeObject(final ObjectOutputStream out) throws IOException {
+    this.getMessage();
+    out.defaultWriteObject();
+  }
+
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import java.util.Objects;
+
+/**
+ * Input to {@link SADParser.SADValidator#validateAll(java.util.Collection)}, i.e., an encoded SAD JWT along with the
+ * data it is expected to contain. See {@link SADParser.SADValidator#validate(String, String, String, String, String,
+ * String, int, String)} for a description of the parameters.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class SADValidationInput {
+
+  /** The encoded SAD JWT. */
+  private final String sadJwt;
+
+  /** The entityID of the issuing IdP. */
+  private final String idpEntityID;
+
+  /** The entityID of the expected recipient (the signature service). */
+  private final String expectedRecipientEntityID;
+
+  /** The expected subject. */
+  private final String expectedSubject;
+
+  /** The expected LoA. */
+  private final String expectedLoa;
+
+  /** The ID of the SADRequest. */
+  private final String sadRequestID;
+
+  /** The expected number of documents. */
+  private final int expectedNoDocs;
+
+  /** The SignRequest ID. */
+  private final String signRequestID;
+
+  /**
+   * Constructor.
+   *
+   * @param sadJwt the encoded SAD JWT (found in the sad attribute of a received assertion)
+   * @param idpEntityID the entityID of the issuing IdP (the issuer of the received assertion holding the sad
+   *     attribute)
+   * @param expectedRecipientEntityID the entityID of the recipient (the signature service SP that issued the
+   *     SADRequest)
+   * @param expectedSubject the expected subject name (user ID)
+   * @param expectedLoa the expected level of assurance to be found in the SAD (should be the LoA found in the
+   *     assertion)
+   * @param sadRequestID the ID of the SADRequest extension that was sent to the IdP
+   * @param expectedNoDocs expected number of documents (from the DocCount element of the SADRequest)
+   * @param signRequestID ID for the SignRequest that was included in the SADRequest
+   */
+  public SADValidationInput(final String sadJwt, final String idpEntityID, final String expectedRecipientEntityID,
+      final String expectedSubject, final String expectedLoa, final String sadRequestID, final int expectedNoDocs,
+      final String signRequestID) {
+    this.sadJwt = Objects.requireNonNull(sadJwt, "sadJwt must not be null");
+    this.idpEntityID = idpEntityID;
+    this.expectedRecipientEntityID = expectedRecipientEntityID;
+    this.expectedSubject = expectedSubject;
+    this.expectedLoa = expectedLoa;
+    this.sadRequestID = sadRequestID;
+    this.expectedNoDocs = expectedNoDocs;
+    this.signRequestID = signRequestID;
+  }
+
+  /**
+   * Returns the encoded SAD JWT.
+   *
+   * @return the SAD JWT
+   */
+  public String getSadJwt() {
+    return this.sadJwt;
+  }
+
+  /**
+   * Returns the entityID of the issuing IdP.
+   *
+   * @return the IdP entityID
+   */
+  public String getIdpEntityID() {
+    return this.idpEntityID;
+  }
+
+  /**
+   * Returns the entityID of the expected recipient.
+   *
+   * @return the recipient entityID
+   */
+  public String getExpectedRecipientEntityID() {
+    return this.expectedRecipientEntityID;
+  }
+
+  /**
+   * Returns the expected subject.
+   *
+   * @return the expected subject
+   */
+  public String getExpectedSubject() {
+    return this.expectedSubject;
+  }
+
+  /**
+   * Returns the expected LoA.
+   *
+   * @return the expected LoA
+   */
+  public String getExpectedLoa() {
+    return this.expectedLoa;
+  }
+
+  /**
+   * Returns the ID of the SADRequest.
+   *
+   * @return the SADRequest ID
+   */
+  public String getSadRequestID() {
+    return this.sadRequestID;
+  }
+
+  /**
+   * Returns the expected number of documents.
+   *
+   * @return the expected number of documents
+   */
+  public int getExpectedNoDocs() {
+    return this.expectedNoDocs;
+  }
+
+  /**
+   * Returns the SignRequest ID.
+   *
+   * @return the SignRequest ID
+   */
+  public String getSignRequestID() {
+    return this.signRequestID;
+  }
+
+}
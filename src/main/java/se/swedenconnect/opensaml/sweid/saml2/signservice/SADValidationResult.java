@@ -0,0 +1,98 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SAD;
+
+/**
+ * The result of validating one {@link SADValidationInput} using
+ * {@link SADParser.SADValidator#validateAll(java.util.Collection)}. The result holds either the validated SAD, or the
+ * {@link SADValidationException} that was raised during validation.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class SADValidationResult {
+
+  /** The validation input. */
+  private final SADValidationInput input;
+
+  /** The validated SAD. */
+  private final SAD sad;
+
+  /** The validation error. */
+  private final SADValidationException error;
+
+  /**
+   * Constructor for a successful validation.
+   *
+   * @param input the validation input
+   * @param sad the validated SAD
+   */
+  public SADValidationResult(final SADValidationInput input, final SAD sad) {
+    this.input = input;
+    this.sad = sad;
+    this.error = null;
+  }
+
+  /**
+   * Constructor for a failed validation.
+   *
+   * @param input the validation input
+   * @param error the validation error
+   */
+  public SADValidationResult(final SADValidationInput input, final SADValidationException error) {
+    this.input = input;
+    this.sad = null;
+    this.error = error;
+  }
+
+  /**
+   * Returns the validation input.
+   *
+   * @return the input
+   */
+  public SADValidationInput getInput() {
+    return this.input;
+  }
+
+  /**
+   * Tells whether the SAD was successfully validated.
+   *
+   * @return {@code true} if the SAD is valid and {@code false} otherwise
+   */
+  public boolean isValid() {
+    return this.error == null;
+  }
+
+  /**
+   * Returns the validated SAD.
+   *
+   * @return the SAD, or {@code null} if validation failed
+   */
+  public SAD getSad() {
+    return this.sad;
+  }
+
+  /**
+   * Returns the validation error.
+   *
+   * @return the validation error, or {@code null} if validation succeeded
+   */
+  public SADValidationException getError() {
+    return this.error;
+  }
+
+}
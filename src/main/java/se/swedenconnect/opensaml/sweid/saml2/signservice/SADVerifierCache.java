@@ -0,0 +1,626 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import com.nimbusds.jose.JOSEException;
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jose.JWSVerifier;
+import com.nimbusds.jose.util.Base64URL;
+import net.shibboleth.shared.resolver.ResolverException;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.metadata.resolver.MetadataResolver;
+import org.opensaml.saml.metadata.resolver.RefreshableMetadataResolver;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.security.credential.UsageType;
+import org.opensaml.security.x509.X509Credential;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import se.swedenconnect.opensaml.saml2.metadata.EntityDescriptorUtils;
+import se.swedenconnect.opensaml.saml2.metadata.provider.MetadataProvider;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A cache holding the IdP signature certificates, and the {@link JWSVerifier} instances created for them, that are
+ * used when verifying SAD JWT signatures.
+ * <p>
+ * For a validator configured with static certificates, the verification keys are set up once. For a validator backed
+ * by a {@link MetadataProvider}, an index of IdP entityID to verification keys is built from all IdP:s found in the
+ * metadata. The index is immutable and is replaced as a whole (copy-on-write) when the metadata provider reports that
+ * its metadata has been updated, so lookups do not need any locking. IdP:s that are not part of the index (for
+ * example when metadata is queried dynamically) are resolved on demand and added to a new copy of the index. IdP:s
+ * for which no metadata could be resolved are remembered for the current metadata version (but at most
+ * {@link #UNKNOWN_IDP_TTL}), so that repeated lookups of an unknown IdP do not hit the metadata provider.
+ * </p>
+ * <p>
+ * Verification keys are matched by the certificate (SHA-256) fingerprint when the index is rebuilt, so verifiers for
+ * certificates that are unchanged after a metadata update are re-used.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+class SADVerifierCache {
+
+  /** The maximum time an unknown IdP is remembered (also if the metadata version does not change). */
+  static final Duration UNKNOWN_IDP_TTL = Duration.ofMinutes(5);
+
+  /** The maximum number of unknown IdP:s remembered. */
+  private static final int MAX_UNKNOWN_IDPS = 10_000;
+
+  /** Logger instance. */
+  private static final Logger logger = LoggerFactory.getLogger(SADVerifierCache.class);
+
+  /** The keys to use if the cache was initialized with static certificates. */
+  private final IdpKeys staticKeys;
+
+  /** A provider for federation metadata (in which we locate the IdP signing keys). */
+  private final MetadataProvider metadataProvider;
+
+  /** The current index of IdP keys. Replaced (never modified) on updates. */
+  private volatile KeyIndex index;
+
+  /** The IdP:s for which no metadata could be resolved. Replaced when the metadata version changes. */
+  private volatile UnknownIdps unknownIdps = new UnknownIdps(null);
+
+  /** Keys for IdP metadata supplied by the caller (see {@link #getKeys(EntityDescriptor)}), indexed by entityID. */
+  private final Map<String, DescriptorKeys> descriptorKeys = new ConcurrentHashMap<>();
+
+  /**
+   * Constructor setting up the cache with a fixed set of certificates that are to be used for all IdP:s.
+   *
+   * @param certificates the validation certificates
+   */
+  SADVerifierCache(final List<X509Certificate> certificates) {
+    this.staticKeys = new IdpKeys(certificates.stream().map(VerificationKey::new).toList());
+    this.metadataProvider = null;
+  }
+
+  /**
+   * Constructor setting up the cache with a metadata provider from which IdP signing certificates are read.
+   *
+   * @param metadataProvider the metadata provider
+   */
+  SADVerifierCache(final MetadataProvider metadataProvider) {
+    this.staticKeys = null;
+    this.metadataProvider = metadataProvider;
+  }
+
+  /**
+   * Gets the verification keys for the given IdP.
+   *
+   * @param idpEntityID the IdP entityID
+   * @return the IdP keys (may be empty)
+   * @throws ResolverException for metadata resolver errors
+   */
+  IdpKeys getKeys(final String idpEntityID) throws ResolverException {
+    if (this.staticKeys != null && !this.staticKeys.isEmpty()) {
+      return this.staticKeys;
+    }
+    if (this.metadataProvider == null || idpEntityID == null) {
+      return IdpKeys.EMPTY;
+    }
+    final Instant version = getMetadataVersion(this.metadataProvider);
+
+    KeyIndex current = this.index;
+    if (current == null || !Objects.equals(version, current.version)) {
+      current = this.rebuildIndex(version);
+    }
+    final IdpKeys keys = current.keys.get(idpEntityID);
+    if (keys != null) {
+      return keys;
+    }
+    return this.isUnknown(idpEntityID, version) ? IdpKeys.EMPTY : this.addToIndex(idpEntityID, version);
+  }
+
+  /**
+   * Gets the verification keys for the IdP described by the supplied (already resolved) metadata. If the cache was
+   * initialized with static certificates, these are returned.
+   *
+   * @param idpMetadata the IdP metadata
+   * @return the IdP keys (may be empty)
+   */
+  IdpKeys getKeys(final EntityDescriptor idpMetadata) {
+    if (this.staticKeys != null && !this.staticKeys.isEmpty()) {
+      return this.staticKeys;
+    }
+    // The same metadata object is normally handed to us until the metadata is refreshed ...
+    final DescriptorKeys cached = this.descriptorKeys.get(idpMetadata.getEntityID());
+    if (cached != null && cached.descriptor == idpMetadata) {
+      return cached.keys;
+    }
+    final KeyIndex current = this.index;
+    IdpKeys previous = cached != null ? cached.keys : null;
+    if (previous == null && current != null) {
+      previous = current.keys.get(idpMetadata.getEntityID());
+    }
+    final IdpKeys keys = Optional.ofNullable(createKeys(idpMetadata, previous)).orElse(IdpKeys.EMPTY);
+    this.descriptorKeys.put(idpMetadata.getEntityID(), new DescriptorKeys(idpMetadata, keys));
+    return keys;
+  }
+
+  /**
+   * Builds a new index holding the keys for all IdP:s found in the metadata.
+   *
+   * @param version the metadata version
+   * @return the new index
+   * @throws ResolverException for metadata resolver errors
+   */
+  private synchronized KeyIndex rebuildIndex(final Instant version) throws ResolverException {
+    final KeyIndex previous = this.index;
+    if (previous != null && Objects.equals(version, previous.version)) {
+      // Another thread already did the job ...
+      return previous;
+    }
+    final Map<String, IdpKeys> keys = new HashMap<>();
+    for (final EntityDescriptor idp : this.metadataProvider.getIdentityProviders()) {
+      final IdpKeys idpKeys = createKeys(idp, previous != null ? previous.keys.get(idp.getEntityID()) : null);
+      if (idpKeys != null) {
+        keys.put(idp.getEntityID(), idpKeys);
+      }
+    }
+    final KeyIndex newIndex = new KeyIndex(version, keys);
+    logger.debug("Indexed SAD verification keys for {} IdP(s)", keys.size());
+    this.index = newIndex;
+    return newIndex;
+  }
+
+  /**
+   * Resolves the keys for an IdP that is not part of the current index, and adds them to a copy of the index.
+   *
+   * @param idpEntityID the IdP entityID
+   * @param version the metadata version
+   * @return the IdP keys (may be empty)
+   * @throws ResolverException for metadata resolver errors
+   */
+  private synchronized IdpKeys addToIndex(final String idpEntityID, final Instant version)
+      throws ResolverException {
+    final KeyIndex current = this.index;
+    if (current != null) {
+      final IdpKeys keys = current.keys.get(idpEntityID);
+      if (keys != null) {
+        return keys;
+      }
+    }
+    if (this.isUnknown(idpEntityID, version)) {
+      // Another thread already tried ...
+      return IdpKeys.EMPTY;
+    }
+    final IdpKeys keys;
+    try {
+      keys = createKeys(this.metadataProvider.getEntityDescriptor(idpEntityID), null);
+    }
+    catch (final ResolverException e) {
+      this.addUnknown(idpEntityID, version);
+      throw e;
+    }
+    if (keys == null) {
+      logger.warn("No metadata found for IdP '{}' - cannot find key to use when verifying SAD JWT signature",
+          idpEntityID);
+      this.addUnknown(idpEntityID, version);
+      return IdpKeys.EMPTY;
+    }
+    if (current != null && Objects.equals(version, current.version)) {
+      final Map<String, IdpKeys> copy = new HashMap<>(current.keys);
+      copy.put(idpEntityID, keys);
+      this.index = new KeyIndex(version, copy);
+    }
+    return keys;
+  }
+
+  /**
+   * Tells whether the supplied IdP is known to be missing from the metadata of the given version.
+   *
+   * @param idpEntityID the IdP entityID
+   * @param version the metadata version
+   * @return {@code true} if no metadata could be resolved for the IdP, and {@code false} otherwise
+   */
+  private boolean isUnknown(final String idpEntityID, final Instant version) {
+    final UnknownIdps unknown = this.unknownIdps;
+    if (!Objects.equals(version, unknown.version)) {
+      return false;
+    }
+    final Long expiresAt = unknown.entries.get(idpEntityID);
+    return expiresAt != null && expiresAt > System.currentTimeMillis();
+  }
+
+  /**
+   * Remembers that no metadata could be resolved for the supplied IdP.
+   *
+   * @param idpEntityID the IdP entityID
+   * @param version the metadata version
+   */
+  private void addUnknown(final String idpEntityID, final Instant version) {
+    UnknownIdps unknown = this.unknownIdps;
+    if (!Objects.equals(version, unknown.version) || unknown.entries.size() >= MAX_UNKNOWN_IDPS) {
+      unknown = new UnknownIdps(version);
+      this.unknownIdps = unknown;
+    }
+    unknown.entries.put(idpEntityID, System.currentTimeMillis() + UNKNOWN_IDP_TTL.toMillis());
+  }
+
+  /**
+   * Creates the verification keys for the supplied IdP metadata.
+   *
+   * @param entityDescriptor the IdP metadata (may be {@code null})
+   * @param previous the previous keys for the IdP (may be {@code null})
+   * @return the IdP keys, or {@code null} if no IdP metadata is available
+   */
+  private static IdpKeys createKeys(final EntityDescriptor entityDescriptor, final IdpKeys previous) {
+    final IDPSSODescriptor metadata = Optional.ofNullable(entityDescriptor)
+        .map(e -> e.getIDPSSODescriptor(SAMLConstants.SAML20P_NS))
+        .orElse(null);
+    if (metadata == null) {
+      return null;
+    }
+    final List<X509Credential> creds = EntityDescriptorUtils.getMetadataCertificates(metadata, UsageType.SIGNING);
+    final List<VerificationKey> keys = new ArrayList<>(creds.size());
+    for (final X509Credential cred : creds) {
+      final VerificationKey key = new VerificationKey(cred.getEntityCertificate());
+      // Re-use the verifiers from the previous keys if the certificate was unchanged ...
+      keys.add(previous != null ? previous.getByFingerprint(key.getFingerprint()).orElse(key) : key);
+    }
+    return new IdpKeys(keys);
+  }
+
+  /**
+   * Gets the "version" of the metadata held by the supplied provider, i.e., the time when the metadata was last
+   * updated.
+   *
+   * @param metadataProvider the metadata provider
+   * @return the last update time, or {@code null} if the provider is not refreshable
+   */
+  private static Instant getMetadataVersion(final MetadataProvider metadataProvider) {
+    final MetadataResolver resolver = metadataProvider.getMetadataResolver();
+    return resolver instanceof final RefreshableMetadataResolver refreshable ? refreshable.getLastUpdate() : null;
+  }
+
+  /**
+   * An immutable index of IdP entityID:s to their verification keys.
+   */
+  private static class KeyIndex {
+
+    /** The metadata version from which the index was built. */
+    private final Instant version;
+
+    /** The keys, indexed by IdP entityID. */
+    private final Map<String, IdpKeys> keys;
+
+    /**
+     * Constructor.
+     *
+     * @param version the metadata version
+     * @param keys the keys
+     */
+    KeyIndex(final Instant version, final Map<String, IdpKeys> keys) {
+      this.version = version;
+      this.keys = Map.copyOf(keys);
+    }
+  }
+
+  /**
+   * The IdP:s for which no metadata could be resolved for a given metadata version.
+   */
+  private static class UnknownIdps {
+
+    /** The metadata version. */
+    private final Instant version;
+
+    /** The unknown IdP entityID:s, mapped to the time (millis since 1970-01-01) until which they are remembered. */
+    private final Map<String, Long> entries = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param version the metadata version
+     */
+    UnknownIdps(final Instant version) {
+      this.version = version;
+    }
+  }
+
+  /**
+   * The verification keys for a given IdP metadata object.
+   */
+  private static class DescriptorKeys {
+
+    /** The IdP metadata. */
+    private final EntityDescriptor descriptor;
+
+    /** The keys. */
+    private final IdpKeys keys;
+
+    /**
+     * Constructor.
+     *
+     * @param descriptor the IdP metadata
+     * @param keys the keys
+     */
+    DescriptorKeys(final EntityDescriptor descriptor, final IdpKeys keys) {
+      this.descriptor = descriptor;
+      this.keys = keys;
+    }
+  }
+
+  /**
+   * Holds the verification keys for an IdP.
+   */
+  static class IdpKeys {
+
+    /** Empty keys. */
+    static final IdpKeys EMPTY = new IdpKeys(Collections.emptyList());
+
+    /** The verification keys. */
+    private final List<VerificationKey> keys;
+
+    /** The verification keys indexed by their certificate SHA-256 thumbprints (x5t#S256). */
+    private final Map<Base64URL, VerificationKey> byThumbprint;
+
+    /** The verification keys indexed by their key identifiers (kid). */
+    private final Map<String, VerificationKey> byKeyId;
+
+    /**
+     * The verification keys that may be used for a given JWS algorithm. The map is built once and only holds the
+     * algorithms supported by at least one key, so header values can never add entries to it.
+     */
+    private final Map<JWSAlgorithm, List<VerificationKey>> byAlgorithm;
+
+    /**
+     * Constructor.
+     *
+     * @param keys the verification keys
+     */
+    IdpKeys(final List<VerificationKey> keys) {
+      this.keys = Collections.unmodifiableList(keys);
+      final Map<Base64URL, VerificationKey> thumbprints = new HashMap<>();
+      final Map<String, VerificationKey> keyIds = new HashMap<>();
+      final Map<JWSAlgorithm, List<VerificationKey>> algorithms = new HashMap<>();
+      for (final VerificationKey key : keys) {
+        thumbprints.putIfAbsent(key.getFingerprint(), key);
+        if (key.getKeyId() != null) {
+          keyIds.putIfAbsent(key.getKeyId(), key);
+        }
+        for (final JWSAlgorithm algorithm : key.getSupportedAlgorithms()) {
+          algorithms.computeIfAbsent(algorithm, a -> new ArrayList<>()).add(key);
+        }
+      }
+      this.byThumbprint = Collections.unmodifiableMap(thumbprints);
+      this.byKeyId = Collections.unmodifiableMap(keyIds);
+      algorithms.replaceAll((a, l) -> List.copyOf(l));
+      this.byAlgorithm = Map.copyOf(algorithms);
+    }
+
+    /**
+     * Gets the verification keys.
+     *
+     * @return a list of keys
+     */
+    List<VerificationKey> getKeys() {
+      return this.keys;
+    }
+
+    /**
+     * Gets the keys that should be tried when verifying a JWS having the supplied header. Only keys that may be used
+     * with the JWS algorithm of the header are considered (if no key supports the algorithm, an empty list is returned).
+     * If the header contains an {@code x5t#S256} or {@code kid} parameter matching one of these keys, only this key is
+     * returned. Otherwise, all keys that may be used with the algorithm are returned.
+     *
+     * @param header the JWS header
+     * @return a list of keys to try
+     */
+    List<VerificationKey> getKeys(final JWSHeader header) {
+      final List<VerificationKey> candidates =
+          header.getAlgorithm() != null ? this.byAlgorithm.get(header.getAlgorithm()) : null;
+      if (candidates == null) {
+        logger.debug("No IdP key supports JWS algorithm '{}'", header.getAlgorithm());
+        return List.of();
+      }
+      if (candidates.size() > 1) {
+        if (header.getX509CertSHA256Thumbprint() != null) {
+          final VerificationKey key = this.byThumbprint.get(header.getX509CertSHA256Thumbprint());
+          if (key != null && candidates.contains(key)) {
+            return List.of(key);
+          }
+          logger.debug("No IdP key matches x5t#S256 '{}' - will try all keys", header.getX509CertSHA256Thumbprint());
+        }
+        if (header.getKeyID() != null) {
+          final VerificationKey key = this.byKeyId.get(header.getKeyID());
+          if (key != null && candidates.contains(key)) {
+            return List.of(key);
+          }
+          logger.debug("No IdP key matches kid '{}' - will try all keys", header.getKeyID());
+        }
+      }
+      return candidates;
+    }
+
+    /**
+     * Predicate telling whether there are any keys.
+     *
+     * @return {@code true} if no keys are available and {@code false} otherwise
+     */
+    boolean isEmpty() {
+      return this.keys.isEmpty();
+    }
+
+    /**
+     * Gets the key having the given fingerprint.
+     *
+     * @param fingerprint the certificate fingerprint
+     * @return the key or an empty {@link Optional}
+     */
+    Optional<VerificationKey> getByFingerprint(final Base64URL fingerprint) {
+      return this.keys.stream().filter(k -> k.getFingerprint().equals(fingerprint)).findFirst();
+    }
+
+  }
+
+  /**
+   * A certificate and its verifiers.
+   */
+  static class VerificationKey {
+
+    /** The certificate. */
+    private final X509Certificate certificate;
+
+    /** The SHA-256 fingerprint of the certificate (this is also the x5t#S256 header value). */
+    private final Base64URL fingerprint;
+
+    /** The key identifier, i.e., the JWK thumbprint of the public key (RFC 7638). May be null. */
+    private final String keyId;
+
+    /** The default JWS algorithm for the key type (and curve). Null if the key type is not supported. */
+    private final JWSAlgorithm defaultAlgorithm;
+
+    /** The verifiers created for this key, indexed by JWS algorithm. */
+    private final Map<JWSAlgorithm, JWSVerifier> verifiers = new ConcurrentHashMap<>();
+
+    /**
+     * Constructor.
+     *
+     * @param certificate the certificate
+     */
+    VerificationKey(final X509Certificate certificate) {
+      this.certificate = certificate;
+      this.fingerprint = calculateFingerprint(certificate);
+      this.keyId = calculateKeyId(certificate);
+      this.defaultAlgorithm = getDefaultAlgorithm(certificate);
+    }
+
+    /**
+     * Gets the certificate.
+     *
+     * @return the certificate
+     */
+    X509Certificate getCertificate() {
+      return this.certificate;
+    }
+
+    /**
+     * Gets the certificate SHA-256 fingerprint.
+     *
+     * @return the fingerprint
+     */
+    Base64URL getFingerprint() {
+      return this.fingerprint;
+    }
+
+    /**
+     * Gets the key identifier, i.e., the JWK thumbprint of the public key (RFC 7638).
+     *
+     * @return the key identifier, or {@code null} if it could not be calculated
+     */
+    String getKeyId() {
+      return this.keyId;
+    }
+
+    /**
+     * Gets the JWS algorithms that this key may be used to verify signatures with.
+     *
+     * @return a (possibly empty) set of JWS algorithms
+     */
+    Set<JWSAlgorithm> getSupportedAlgorithms() {
+      if (this.defaultAlgorithm == null) {
+        return Set.of();
+      }
+      return JWSAlgorithm.RS256.equals(this.defaultAlgorithm) ? JWSAlgorithm.Family.RSA : Set.of(this.defaultAlgorithm);
+    }
+
+    /**
+     * Gets a verifier for the supplied JWS header. The verifier is created on the first call for a given algorithm.
+     *
+     * @param header the JWS header
+     * @return a verifier
+     * @throws JOSEException if no verifier can be created
+     */
+    JWSVerifier getVerifier(final JWSHeader header) throws JOSEException {
+      JWSVerifier verifier = this.verifiers.get(header.getAlgorithm());
+      if (verifier == null) {
+        final PublicKey publicKey = this.certificate.getPublicKey();
+        verifier = SADJwsSupport.createVerifier(header, publicKey);
+        this.verifiers.put(header.getAlgorithm(), verifier);
+      }
+      return verifier;
+    }
+
+    /**
+     * Calculates the SHA-256 fingerprint of the supplied certificate.
+     *
+     * @param certificate the certificate
+     * @return the fingerprint
+     */
+    private static Base64URL calculateFingerprint(final X509Certificate certificate) {
+      try {
+        return Base64URL.encode(MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded()));
+      }
+      catch (final NoSuchAlgorithmException | CertificateEncodingException e) {
+        throw new SecurityException("Failed to calculate certificate fingerprint", e);
+      }
+    }
+
+    /**
+     * Gets the default JWS algorithm for the key of the supplied certificate.
+     *
+     * @param certificate the certificate
+     * @return the JWS algorithm, or {@code null} if the key type is not supported
+     */
+    private static JWSAlgorithm getDefaultAlgorithm(final X509Certificate certificate) {
+      try {
+        return SADJwsSupport.getDefaultAlgorithm(certificate.getPublicKey());
+      }
+      catch (final JOSEException e) {
+        logger.debug("Certificate '{}' can not be used to verify SAD JWT:s - {}",
+            certificate.getSubjectX500Principal(), e.getMessage());
+        return null;
+      }
+    }
+
+    /**
+     * Calculates the key identifier for the supplied certificate. See {@link SADFactory#calculateKeyId(X509Certificate)}.
+     *
+     * @param certificate the certificate
+     * @return the key identifier, or {@code null} if it can not be calculated
+     */
+    private static String calculateKeyId(final X509Certificate certificate) {
+      try {
+        return SADFactory.calculateKeyId(certificate);
+      }
+      catch (final JOSEException e) {
+        logger.debug("Could not calculate key identifier for certificate '{}' - {}",
+            certificate.getSubjectX500Principal(), e.getMessage());
+        return null;
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import java.security.SecureRandom;
+
+/**
+ * A {@link JwtIdGenerator} that generates random identifiers using a {@link SecureRandom}.
+ * <p>
+ * Random bytes are fetched in bulk into a per-thread buffer, and each character is picked using 6 bits of randomness.
+ * For the alphanumeric alphabet, values outside the alphabet (62 and 63) are discarded, so that all characters are
+ * equally likely.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class SecureRandomJwtIdGenerator implements JwtIdGenerator {
+
+  /**
+   * The alphabets that may be used.
+   */
+  public enum Alphabet {
+
+    /** The characters A-Z, a-z and 0-9. */
+    ALPHANUMERIC("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789"),
+
+    /** The Base64url alphabet, i.e., the alphanumeric characters plus '-' and '_'. */
+    BASE64URL("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_");
+
+    /** The characters. */
+    private final char[] characters;
+
+    Alphabet(final String characters) {
+      this.characters = characters.toCharArray();
+    }
+  }
+
+  /** The size of the per-thread buffer holding random bytes. */
+  private static final int BUFFER_SIZE = 256;
+
+  /** The source of randomness. */
+  private static final SecureRandom secureRandom = new SecureRandom();
+
+  /** Per-thread buffers of random bytes. */
+  private static final ThreadLocal<RandomBuffer> buffers = ThreadLocal.withInitial(RandomBuffer::new);
+
+  /** The alphabet characters. */
+  private final char[] characters;
+
+  /**
+   * Default constructor using the {@link Alphabet#ALPHANUMERIC} alphabet.
+   */
+  public SecureRandomJwtIdGenerator() {
+    this(Alphabet.ALPHANUMERIC);
+  }
+
+  /**
+   * Constructor setting the alphabet to use.
+   *
+   * @param alphabet the alphabet
+   */
+  public SecureRandomJwtIdGenerator(final Alphabet alphabet) {
+    this.characters = alphabet.characters;
+  }
+
+  /** {@inheritDoc} */
+  @Override
+  public String generate(final int length) {
+    final char[] id = new char[length];
+    this.fill(id, 0, length);
+    return new String(id);
+  }
+
+  /**
+   * Fills the supplied character array with random characters.
+   *
+   * @param chars the array to fill
+   * @param offset the offset in the array
+   * @param length the number of characters to fill
+   */
+  void fill(final char[] chars, final int offset, final int length) {
+    final RandomBuffer buffer = buffers.get();
+    final int alphabetSize = this.characters.length;
+    int i = offset;
+    final int end = offset + length;
+    while (i < end) {
+      final int value = buffer.next() & 0x3F;
+      if (value < alphabetSize) {
+        chars[i++] = this.characters[value];
+      }
+    }
+  }
+
+  /**
+   * A buffer of random bytes that is refilled when exhausted.
+   */
+  private static class RandomBuffer {
+
+    /** The bytes. */
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+
+    /** The position of the next unused byte. */
+    private int position = BUFFER_SIZE;
+
+    /**
+     * Returns the next random byte.
+     *
+     * @return a random byte
+     */
+    int next() {
+      if (this.position == BUFFER_SIZE) {
+        secureRandom.nextBytes(this.bytes);
+        this.position = 0;
+      }
+      return this.bytes[this.position++];
+    }
+  }
+
+}
@@ -15,8 +15,17 @@
  */
 package se.swedenconnect.opensaml.sweid.saml2.signservice;
 
+import java.security.interfaces.ECKey;
+import java.time.Duration;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.opensaml.security.credential.Credential;
 import org.opensaml.xmlsec.DecryptionParameters;
@@ -25,7 +34,10 @@ import org.opensaml.xmlsec.encryption.support.DecryptionException;
 import org.opensaml.xmlsec.encryption.support.EncryptedKeyResolver;
 import org.opensaml.xmlsec.encryption.support.InlineEncryptedKeyResolver;
 import org.opensaml.xmlsec.keyinfo.KeyInfoCredentialResolver;
+import org.opensaml.xmlsec.keyinfo.impl.BasicProviderKeyInfoCredentialResolver;
+import org.opensaml.xmlsec.keyinfo.impl.ChainingKeyInfoCredentialResolver;
 import org.opensaml.xmlsec.keyinfo.impl.StaticKeyInfoCredentialResolver;
+import org.opensaml.xmlsec.keyinfo.impl.provider.AgreementMethodKeyInfoProvider;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -35,11 +47,32 @@ import se.swedenconnect.opensaml.xmlsec.encryption.support.Pkcs11Decrypter;
 
 /**
  * A bean for decrypting encrypted messages within {@link SignMessage} objects.
+ * <p>
+ * Concurrency model: The decrypter is configured using its constructor and setters, and is then safe to use from any
+ * number of threads. The {@link DecryptionParameters} are built once (on first use) and are never modified after that.
+ * {@link Decrypter} instances are not shared between concurrent calls. Instead, each call to
+ * {@link #decrypt(SignMessage)} borrows a decrypter from a lock-free pool (and creates one if the pool is empty), and
+ * returns it after use. Changing the configuration using any of the setters discards the current parameters and
+ * pool.
+ * </p>
+ * <p>
+ * If the decrypter is created with a {@link DecryptionCredentialPool}, each decryption checks out a key decryption
+ * credential from that pool (waiting at most {@link #setCredentialCheckoutTimeout(Duration)}), so that the number of
+ * concurrent key unwrap operations is bounded by the number of credentials (HSM sessions).
+ * </p>
+ * <p>
+ * Messages encrypted using ECDH-ES key agreement (an {@code AgreementMethod} in the {@code EncryptedKey}) are
+ * supported when the decrypter is given EC credentials. The key encryption key is then derived from the local EC
+ * private key and the originator's ephemeral public key.
+ * </p>
  *
  * @author Martin Lindström (martin@idsec.se)
  */
 public class SignMessageDecrypter {
 
+  /** Default timeout for checking out a credential from a {@link DecryptionCredentialPool}. */
+  public static final Duration DEFAULT_CREDENTIAL_CHECKOUT_TIMEOUT = Duration.ofSeconds(5);
+
   /** Logger instance. */
   private Logger logger = LoggerFactory.getLogger(SignMessageDecrypter.class);
 
@@ -55,8 +88,20 @@ public class SignMessageDecrypter {
   /** Optional white list of algorithms. */
   private Collection<String> whitelistedAlgorithms;
 
-  /** The decrypter. */
-  private Decrypter decrypter;
+  /** The maximum number of idle decrypters kept in the pool. */
+  private int maxIdleDecrypters = Runtime.getRuntime().availableProcessors() * 2;
+
+  /** The pool of decrypters (created on first use). */
+  private volatile DecrypterPool pool;
+
+  /** Optional pool of key decryption credentials. */
+  private DecryptionCredentialPool credentialPool;
+
+  /** The timeout for checking out a credential from the credential pool. */
+  private Duration credentialCheckoutTimeout = DEFAULT_CREDENTIAL_CHECKOUT_TIMEOUT;
+
+  /** The decrypter pools for each credential of the credential pool. */
+  private volatile Map<Credential, DecrypterPool> credentialDecrypters = new ConcurrentHashMap<>();
 
   /**
    * If using a HSM it is likely that the SunPKCS11 crypto provider is used. This provider does not have support for
@@ -72,7 +117,7 @@ public class SignMessageDecrypter {
    * @param decryptionCredential decryption credential
    */
   public SignMessageDecrypter(final Credential decryptionCredential) {
-    this.keyEncryptionKeyResolver = new StaticKeyInfoCredentialResolver(decryptionCredential);
+    this.keyEncryptionKeyResolver = createKeyEncryptionKeyResolver(List.of(decryptionCredential));
   }
 
   /**
@@ -82,7 +127,7 @@ public class SignMessageDecrypter {
    * @param decryptionCredentials decryption credentials
    */
   public SignMessageDecrypter(final List<Credential> decryptionCredentials) {
-    this.keyEncryptionKeyResolver = new StaticKeyInfoCredentialResolver(decryptionCredentials);
+    this.keyEncryptionKeyResolver = createKeyEncryptionKeyResolver(decryptionCredentials);
   }
 
   /**
@@ -94,6 +139,17 @@ public class SignMessageDecrypter {
     this.keyEncryptionKeyResolver = keyEncryptionKeyResolver;
   }
 
+  /**
+   * Constructor accepting a pool of key decryption credentials. Each decryption checks out a credential from the pool.
+   * This is useful when the key decryption key is held in an HSM, and each credential of the pool is backed by its own
+   * HSM session.
+   *
+   * @param credentialPool the credential pool
+   */
+  public SignMessageDecrypter(final DecryptionCredentialPool credentialPool) {
+    this.credentialPool = Objects.requireNonNull(credentialPool, "credentialPool must not be null");
+  }
+
   /**
    * Decrypts the encrypted message of a {@link SignMessage} and returns the cleartext {@code Message}.
    *
@@ -111,25 +167,101 @@ public class SignMessageDecrypter {
       logger.error(msg);
       throw new DecryptionException(msg);
     }
-    return (Message) this.getDecrypter().decryptData(signMessage.getEncryptedMessage().getEncryptedData());
+    if (this.credentialPool != null) {
+      try (final DecryptionCredentialPool.Lease lease =
+          this.credentialPool.checkout(this.credentialCheckoutTimeout)) {
+        final Map<Credential, DecrypterPool> decrypters = this.credentialDecrypters;
+        return decrypt(signMessage, decrypters.computeIfAbsent(lease.getCredential(),
+            c -> this.createPool(createKeyEncryptionKeyResolver(List.of(c)))));
+      }
+      catch (final TimeoutException e) {
+        throw new DecryptionException("Failed to decrypt SignMessage - " + e.getMessage(), e);
+      }
+      catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new DecryptionException("Interrupted while waiting for decryption credential", e);
+      }
+    }
+    return decrypt(signMessage, this.getPool());
+  }
+
+  /**
+   * Decrypts the encrypted message of the supplied {@link SignMessage} using a decrypter from the given pool.
+   *
+   * @param signMessage the element holding the encrypted message
+   * @param pool the decrypter pool
+   * @return a cleartext {@code Message} element
+   * @throws DecryptionException for decryption errors
+   */
+  private static Message decrypt(final SignMessage signMessage, final DecrypterPool pool) throws DecryptionException {
+    final Decrypter decrypter = pool.borrow();
+    try {
+      return (Message) decrypter.decryptData(signMessage.getEncryptedMessage().getEncryptedData());
+    }
+    finally {
+      pool.release(decrypter);
+    }
+  }
+
+  /**
+   * Returns the decrypter pool. The pool, and its decryption parameters, are created on first use.
+   *
+   * @return the decrypter pool
+   */
+  private DecrypterPool getPool() {
+    DecrypterPool p = this.pool;
+    if (p == null) {
+      synchronized (this) {
+        p = this.pool;
+        if (p == null) {
+          p = this.createPool(this.keyEncryptionKeyResolver);
+          this.pool = p;
+        }
+      }
+    }
+    return p;
   }
 
   /**
-   * Returns the decrypter to use.
+   * Creates the key encryption key resolver for the given credentials. If any of the credentials holds an EC key, the
+   * resolver is also capable of deriving key encryption keys from {@code AgreementMethod} elements (ECDH-ES).
    *
-   * @return the decrypter
-   */
-  private Decrypter getDecrypter() {
-    if (this.decrypter == null) {
-      DecryptionParameters pars = new DecryptionParameters();
-      pars.setKEKKeyInfoCredentialResolver(this.keyEncryptionKeyResolver);
-      pars.setEncryptedKeyResolver(this.encryptedKeyResolver);
-      pars.setExcludedAlgorithms(this.blacklistedAlgorithms);
-      pars.setIncludedAlgorithms(this.whitelistedAlgorithms);
-      this.decrypter = this.pkcs11Workaround ? new Pkcs11Decrypter(pars) : new Decrypter(pars);
-      this.decrypter.setRootInNewDocument(true);
+   * @param credentials the decryption credentials
+   * @return a KeyInfoCredentialResolver
+   */
+  private static KeyInfoCredentialResolver createKeyEncryptionKeyResolver(final List<Credential> credentials) {
+    final List<Credential> ecCredentials = credentials.stream()
+        .filter(c -> c.getPublicKey() instanceof ECKey || c.getPrivateKey() instanceof ECKey)
+        .toList();
+    if (ecCredentials.isEmpty()) {
+      return new StaticKeyInfoCredentialResolver(credentials);
     }
-    return this.decrypter;
+    return new ChainingKeyInfoCredentialResolver(List.of(
+        new BasicProviderKeyInfoCredentialResolver(List.of(new AgreementMethodKeyInfoProvider(ecCredentials))),
+        new StaticKeyInfoCredentialResolver(credentials)));
+  }
+
+  /**
+   * Creates a decrypter pool using the supplied key encryption key resolver.
+   *
+   * @param kekResolver the key encryption key resolver
+   * @return a decrypter pool
+   */
+  private DecrypterPool createPool(final KeyInfoCredentialResolver kekResolver) {
+    final DecryptionParameters pars = new DecryptionParameters();
+    pars.setKEKKeyInfoCredentialResolver(kekResolver);
+    pars.setEncryptedKeyResolver(this.encryptedKeyResolver);
+    pars.setExcludedAlgorithms(this.blacklistedAlgorithms);
+    pars.setIncludedAlgorithms(this.whitelistedAlgorithms);
+    return new DecrypterPool(pars, this.pkcs11Workaround, this.maxIdleDecrypters);
+  }
+
+  /**
+   * Discards the current decrypter pools (after a configuration change).
+   */
+  private void reset() {
+    this.pool = null;
+    this.credentialDecrypters = new ConcurrentHashMap<>();
   }
 
   /**
@@ -139,6 +271,7 @@ public class SignMessageDecrypter {
    */
   public void setBlacklistedAlgorithms(final Collection<String> blacklistedAlgorithms) {
     this.blacklistedAlgorithms = blacklistedAlgorithms;
+    this.reset();
   }
 
   /**
@@ -148,6 +281,7 @@ public class SignMessageDecrypter {
    */
   public void setWhitelistedAlgorithms(final Collection<String> whitelistedAlgorithms) {
     this.whitelistedAlgorithms = whitelistedAlgorithms;
+    this.reset();
   }
 
   /**
@@ -160,6 +294,97 @@ public class SignMessageDecrypter {
    */
   public void setPkcs11Workaround(final boolean pkcs11Workaround) {
     this.pkcs11Workaround = pkcs11Workaround;
+    this.reset();
+  }
+
+  /**
+   * Assigns the maximum number of idle {@link Decrypter} instances that are kept for re-use. The default is two times
+   * the number of available processors. Decrypters are created on demand, so this setting does not limit the number of
+   * concurrent decryptions.
+   *
+   * @param maxIdleDecrypters the maximum number of idle decrypters
+   */
+  public void setMaxIdleDecrypters(final int maxIdleDecrypters) {
+    if (maxIdleDecrypters < 0) {
+      throw new IllegalArgumentException("maxIdleDecrypters must not be negative");
+    }
+    this.maxIdleDecrypters = maxIdleDecrypters;
+    this.reset();
+  }
+
+  /**
+   * Assigns the maximum time to wait for a credential when the decrypter was created with a
+   * {@link DecryptionCredentialPool}. The default is {@link #DEFAULT_CREDENTIAL_CHECKOUT_TIMEOUT}.
+   *
+   * @param credentialCheckoutTimeout the timeout
+   */
+  public void setCredentialCheckoutTimeout(final Duration credentialCheckoutTimeout) {
+    this.credentialCheckoutTimeout =
+        Objects.requireNonNull(credentialCheckoutTimeout, "credentialCheckoutTimeout must not be null");
+  }
+
+  /**
+   * A pool of {@link Decrypter} instances that share the same (immutable) decryption parameters.
+   */
+  private static class DecrypterPool {
+
+    /** The decryption parameters. */
+    private final DecryptionParameters parameters;
+
+    /** Whether to create {@link Pkcs11Decrypter} instances. */
+    private final boolean pkcs11Workaround;
+
+    /** The maximum number of idle decrypters. */
+    private final int maxIdle;
+
+    /** The idle decrypters. */
+    private final Queue<Decrypter> idle = new ConcurrentLinkedQueue<>();
+
+    /** The number of idle decrypters. */
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Constructor.
+     *
+     * @param parameters the decryption parameters
+     * @param pkcs11Workaround whether to create {@link Pkcs11Decrypter} instances
+     * @param maxIdle the maximum number of idle decrypters
+     */
+    DecrypterPool(final DecryptionParameters parameters, final boolean pkcs11Workaround, final int maxIdle) {
+      this.parameters = parameters;
+      this.pkcs11Workaround = pkcs11Workaround;
+      this.maxIdle = maxIdle;
+    }
+
+    /**
+     * Gets an idle decrypter, or creates a new one if none is available.
+     *
+     * @return a decrypter
+     */
+    Decrypter borrow() {
+      final Decrypter decrypter = this.idle.poll();
+      if (decrypter != null) {
+        this.idleCount.decrementAndGet();
+        return decrypter;
+      }
+      final Decrypter d = this.pkcs11Workaround ? new Pkcs11Decrypter(this.parameters) : new Decrypter(this.parameters);
+      d.setRootInNewDocument(true);
+      return d;
+    }
+
+    /**
+     * Returns a decrypter to the pool (or discards it if the pool is full).
+     *
+     * @param decrypter the decrypter
+     */
+    void release(final Decrypter decrypter) {
+      if (this.idleCount.incrementAndGet() <= this.maxIdle) {
+        this.idle.offer(decrypter);
+      }
+      else {
+        this.idleCount.decrementAndGet();
+      }
+    }
   }
 
 }
@@ -15,11 +15,10 @@
  */
 package se.swedenconnect.opensaml.sweid.saml2.signservice;
 
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Base64;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import org.opensaml.saml.ext.saml2alg.DigestMethod;
@@ -39,6 +38,13 @@ import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.Message;
 
 /**
  * Utility bean that may be used by Identity Providers to issue a signMessageDigest attribute.
+ * <p>
+ * The digest preference of each recipient (see {@link #getDigestPreference(EntityDescriptor)}) is cached per entityID.
+ * A cached preference is only used if it was calculated from the same {@link EntityDescriptor} instance as the one
+ * supplied, so a metadata refresh (which produces new instances) implicitly invalidates the cache. The cache holds at
+ * most {@link #setMaxCachedPreferences(int)} entries, and may be explicitly invalidated using
+ * {@link #invalidatePreference(String)} and {@link #invalidatePreferences()}.
+ * </p>
  *
  * @author Martin Lindström (martin@idsec.se)
  */
@@ -50,9 +56,18 @@ public class SignMessageDigestIssuer {
   /** SHA-256 is the default digest method. */
   public static final String DEFAULT_DIGEST_METHOD = SignatureConstants.ALGO_ID_DIGEST_SHA256;
 
+  /** The default maximum number of cached digest preferences. */
+  public static final int DEFAULT_MAX_CACHED_PREFERENCES = 1000;
+
   /** The default digest method to use. If not assigned, {@value #DEFAULT_DIGEST_METHOD} is used. */
   private String defaultDigestMethod;
 
+  /** The maximum number of cached digest preferences. */
+  private int maxCachedPreferences = DEFAULT_MAX_CACHED_PREFERENCES;
+
+  /** Cached digest preferences, indexed by entityID. */
+  private final Map<String, CachedPreference> preferences = new ConcurrentHashMap<>();
+
   /**
    * Creates a signMessageDigest attribute using the default digest method.
    *
@@ -66,6 +81,9 @@ public class SignMessageDigestIssuer {
   /**
    * Creates a signMessageDigest attribute using the preferred digest method of the recipient, or the default digest
    * method if none is specified in the recipient metadata.
+   * <p>
+   * The digest is calculated directly over the Base64-decoded {@code Message} value (the UTF-8 encoded message).
+   * </p>
    *
    * @param message the sign message
    * @param recipient the recipient metadata (may be null)
@@ -78,7 +96,7 @@ public class SignMessageDigestIssuer {
     String digestAlgorithm = null;
     if (recipient != null) {
       try {
-        digestAlgorithm = SignMessageDigestIssuer.getDigestPreference(recipient);
+        digestAlgorithm = this.getCachedDigestPreference(recipient);
       }
       catch (final Exception e) {
         log.error("Error during recipient metadata analyze (looking for preferred digest algorithm)", e);
@@ -89,28 +107,75 @@ public class SignMessageDigestIssuer {
     }
     log.debug("Using digest algorithm '{}' when issuing signMessageDigest", digestAlgorithm);
 
-    final AlgorithmRegistry registry = AlgorithmSupport.getGlobalAlgorithmRegistry();
-    final AlgorithmDescriptor descriptor = registry.get(digestAlgorithm);
-    if (descriptor == null) {
-      // Should never happen
-      throw new SecurityException(digestAlgorithm + " is not supported");
-    }
-    MessageDigest messageDigest;
-    try {
-      messageDigest = MessageDigest.getInstance(descriptor.getJCAAlgorithmID());
-    }
-    catch (final NoSuchAlgorithmException e) {
-      throw new SecurityException(e);
-    }
-    final byte[] digestValue = messageDigest.digest(message.getContent().getBytes(StandardCharsets.UTF_8));
-    final String attributeValue =
-        String.format("%s;%s", digestAlgorithm, Base64.getEncoder().encodeToString(digestValue));
+    final String attributeValue = SignMessageDigestSupport.toAttributeValue(
+        digestAlgorithm, SignMessageDigestSupport.digest(message, digestAlgorithm));
 
     return AttributeConstants.ATTRIBUTE_TEMPLATE_SIGNMESSAGE_DIGEST.createBuilder()
         .value(attributeValue)
         .build();
   }
 
+  /**
+   * Gets the digest preference for the recipient, using the cache if possible.
+   *
+   * @param metadata the recipient's metadata
+   * @return the preferred digest algorithm, or null if none is specified
+   */
+  private String getCachedDigestPreference(final EntityDescriptor metadata) {
+    final String entityID = metadata.getEntityID();
+    if (entityID == null) {
+      return SignMessageDigestIssuer.getDigestPreference(metadata);
+    }
+    final CachedPreference cached = this.preferences.get(entityID);
+    if (cached != null && cached.metadata == metadata) {
+      return cached.digestAlgorithm;
+    }
+    final String digestAlgorithm = SignMessageDigestIssuer.getDigestPreference(metadata);
+    if (cached == null && this.preferences.size() >= this.maxCachedPreferences) {
+      final Iterator<String> i = this.preferences.keySet().iterator();
+      if (i.hasNext()) {
+        i.next();
+        i.remove();
+      }
+    }
+    if (this.maxCachedPreferences > 0) {
+      this.preferences.put(entityID, new CachedPreference(metadata, digestAlgorithm));
+    }
+    return digestAlgorithm;
+  }
+
+  /**
+   * Removes the cached digest preference for the given recipient.
+   *
+   * @param entityID the recipient entityID
+   */
+  public void invalidatePreference(final String entityID) {
+    if (entityID != null) {
+      this.preferences.remove(entityID);
+    }
+  }
+
+  /**
+   * Removes all cached digest preferences.
+   */
+  public void invalidatePreferences() {
+    this.preferences.clear();
+  }
+
+  /**
+   * Assigns the maximum number of cached digest preferences. The default is {@value #DEFAULT_MAX_CACHED_PREFERENCES}.
+   * Setting the value to 0 disables caching.
+   *
+   * @param maxCachedPreferences the maximum number of cached preferences
+   */
+  public void setMaxCachedPreferences(final int maxCachedPreferences) {
+    if (maxCachedPreferences < 0) {
+      throw new IllegalArgumentException("maxCachedPreferences must not be negative");
+    }
+    this.maxCachedPreferences = maxCachedPreferences;
+    this.preferences.clear();
+  }
+
   /**
    * The recipient may specify the digest algorithm it prefers by including the {@code <alg:DigestMethod>} element in
    * its metadata.
@@ -171,4 +236,27 @@ public class SignMessageDigestIssuer {
     this.defaultDigestMethod = defaultDigestMethod;
   }
 
+  /**
+   * A cached digest preference.
+   */
+  private static class CachedPreference {
+
+    /** The metadata from which the preference was calculated. */
+    private final EntityDescriptor metadata;
+
+    /** The preferred digest algorithm (may be null). */
+    private final String digestAlgorithm;
+
+    /**
+     * Constructor.
+     *
+     * @param metadata the metadata
+     * @param digestAlgorithm the preferred digest algorithm
+     */
+    CachedPreference(final EntityDescriptor metadata, final String digestAlgorithm) {
+      this.metadata = metadata;
+      this.digestAlgorithm = digestAlgorithm;
+    }
+  }
+
 }
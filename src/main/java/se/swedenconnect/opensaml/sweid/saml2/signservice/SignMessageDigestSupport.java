@@ -0,0 +1,227 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.opensaml.xmlsec.algorithm.AlgorithmDescriptor;
+import org.opensaml.xmlsec.algorithm.AlgorithmDescriptor.AlgorithmType;
+import org.opensaml.xmlsec.algorithm.AlgorithmSupport;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+
+import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.Message;
+
+/**
+ * Support methods for calculating and encoding signMessageDigest values.
+ * <p>
+ * The digest is calculated over the Base64-decoded value of the {@code Message} element, i.e., the UTF-8 encoded
+ * message bytes, without going via a {@code String}. {@link MessageDigest} instances are cached per thread and
+ * algorithm, so the algorithm registry and the JCA provider lookup are only consulted the first time an algorithm is
+ * used by a thread.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+final class SignMessageDigestSupport {
+
+  /** The Base64 alphabet. */
+  private static final byte[] BASE64_ALPHABET =
+      "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+
+  /** Commonly used digest algorithms (matched without creating substrings when parsing attribute values). */
+  private static final List<String> KNOWN_ALGORITHMS = List.of(
+      SignatureConstants.ALGO_ID_DIGEST_SHA256,
+      SignatureConstants.ALGO_ID_DIGEST_SHA384,
+      SignatureConstants.ALGO_ID_DIGEST_SHA512,
+      SignatureConstants.ALGO_ID_DIGEST_SHA224,
+      SignatureConstants.ALGO_ID_DIGEST_SHA1);
+
+  /** Per-thread message digest instances, indexed by algorithm URI. */
+  private static final ThreadLocal<Map<String, MessageDigest>> digests = ThreadLocal.withInitial(HashMap::new);
+
+  // Hidden constructor
+  private SignMessageDigestSupport() {
+  }
+
+  /**
+   * Gets a (reset) message digest instance for the given algorithm URI. The instance is owned by the calling thread,
+   * and must not be handed over to other threads.
+   *
+   * @param digestAlgorithm the digest algorithm URI
+   * @return a MessageDigest
+   * @throws SecurityException if the algorithm is not a supported digest algorithm
+   */
+  static MessageDigest getMessageDigest(final String digestAlgorithm) throws SecurityException {
+    final Map<String, MessageDigest> map = digests.get();
+    MessageDigest messageDigest = map.get(digestAlgorithm);
+    if (messageDigest == null) {
+      final AlgorithmDescriptor descriptor = AlgorithmSupport.getGlobalAlgorithmRegistry().get(digestAlgorithm);
+      if (descriptor == null || descriptor.getType() != AlgorithmType.MessageDigest) {
+        throw new SecurityException(digestAlgorithm + " is not supported");
+      }
+      try {
+        messageDigest = MessageDigest.getInstance(descriptor.getJCAAlgorithmID());
+      }
+      catch (final NoSuchAlgorithmException e) {
+        throw new SecurityException(e);
+      }
+      map.put(digestAlgorithm, messageDigest);
+    }
+    else {
+      messageDigest.reset();
+    }
+    return messageDigest;
+  }
+
+  /**
+   * Calculates the digest of the supplied message, i.e., the digest of the Base64-decoded {@code Message} value.
+   *
+   * @param message the message
+   * @param digestAlgorithm the digest algorithm URI
+   * @return the digest value
+   * @throws IllegalArgumentException if the message is empty or not valid Base64
+   * @throws SecurityException if the algorithm is not a supported digest algorithm
+   */
+  static byte[] digest(final Message message, final String digestAlgorithm)
+      throws IllegalArgumentException, SecurityException {
+    if (message == null || message.getValue() == null) {
+      throw new IllegalArgumentException("Supplied sign message is null or empty");
+    }
+    final byte[] content = Base64.getMimeDecoder().decode(message.getValue());
+    return getMessageDigest(digestAlgorithm).digest(content);
+  }
+
+  /**
+   * Creates the signMessageDigest attribute value, i.e., {@code <algorithm URI>;<Base64-encoded digest>}. The value is
+   * built in a single buffer of the exact size.
+   *
+   * @param digestAlgorithm the digest algorithm URI
+   * @param digestValue the digest value
+   * @return the attribute value
+   */
+  static String toAttributeValue(final String digestAlgorithm, final byte[] digestValue) {
+    final int algLength = digestAlgorithm.length();
+    final byte[] buffer = new byte[algLength + 1 + 4 * ((digestValue.length + 2) / 3)];
+    for (int i = 0; i < algLength; i++) {
+      buffer[i] = (byte) digestAlgorithm.charAt(i);
+    }
+    buffer[algLength] = ';';
+
+    int pos = algLength + 1;
+    int i = 0;
+    for (; i + 2 < digestValue.length; i += 3) {
+      final int bits = (digestValue[i] & 0xff) << 16 | (digestValue[i + 1] & 0xff) << 8 | digestValue[i + 2] & 0xff;
+      buffer[pos++] = BASE64_ALPHABET[bits >>> 18];
+      buffer[pos++] = BASE64_ALPHABET[bits >>> 12 & 0x3f];
+      buffer[pos++] = BASE64_ALPHABET[bits >>> 6 & 0x3f];
+      buffer[pos++] = BASE64_ALPHABET[bits & 0x3f];
+    }
+    final int remaining = digestValue.length - i;
+    if (remaining > 0) {
+      final int bits = (digestValue[i] & 0xff) << 16 | (remaining == 2 ? (digestValue[i + 1] & 0xff) << 8 : 0);
+      buffer[pos++] = BASE64_ALPHABET[bits >>> 18];
+      buffer[pos++] = BASE64_ALPHABET[bits >>> 12 & 0x3f];
+      buffer[pos++] = remaining == 2 ? BASE64_ALPHABET[bits >>> 6 & 0x3f] : (byte) '=';
+      buffer[pos] = '=';
+    }
+    return new String(buffer, StandardCharsets.ISO_8859_1);
+  }
+
+  /**
+   * Gets the algorithm URI that is the prefix (up to {@code length}) of the supplied attribute value. For well-known
+   * algorithms, the constant is returned and no new string is created.
+   *
+   * @param attributeValue the attribute value
+   * @param length the length of the algorithm part
+   * @return the algorithm URI
+   */
+  static String getAlgorithm(final String attributeValue, final int length) {
+    for (final String algorithm : KNOWN_ALGORITHMS) {
+      if (algorithm.length() == length && attributeValue.startsWith(algorithm)) {
+        return algorithm;
+      }
+    }
+    return attributeValue.substring(0, length);
+  }
+
+  /**
+   * Decodes the (padded) Base64-encoded digest that starts at {@code offset} in the supplied attribute value.
+   *
+   * @param attributeValue the attribute value
+   * @param offset the offset where the Base64 data starts
+   * @return the decoded bytes, or {@code null} if the data is not valid Base64
+   */
+  static byte[] decodeDigest(final String attributeValue, final int offset) {
+    final int length = attributeValue.length() - offset;
+    if (length == 0 || length % 4 != 0) {
+      return null;
+    }
+    int padding = 0;
+    if (attributeValue.charAt(attributeValue.length() - 1) == '=') {
+      padding = attributeValue.charAt(attributeValue.length() - 2) == '=' ? 2 : 1;
+    }
+    final byte[] result = new byte[length / 4 * 3 - padding];
+    int pos = 0;
+    for (int i = offset; i < attributeValue.length(); i += 4) {
+      int bits = 0;
+      for (int j = 0; j < 4; j++) {
+        final char c = attributeValue.charAt(i + j);
+        final int v;
+        if (c == '=' && i + 4 == attributeValue.length() && j >= 4 - padding) {
+          v = 0;
+        }
+        else if ((v = decodeChar(c)) < 0) {
+          return null;
+        }
+        bits = bits << 6 | v;
+      }
+      result[pos++] = (byte) (bits >> 16);
+      if (pos < result.length) {
+        result[pos++] = (byte) (bits >> 8);
+      }
+      if (pos < result.length) {
+        result[pos++] = (byte) bits;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Decodes a Base64 character.
+   *
+   * @param c the character
+   * @return the 6-bit value, or -1 if the character is not part of the Base64 alphabet
+   */
+  private static int decodeChar(final char c) {
+    if (c >= 'A' && c <= 'Z') {
+      return c - 'A';
+    }
+    if (c >= 'a' && c <= 'z') {
+      return c - 'a' + 26;
+    }
+    if (c >= '0' && c <= '9') {
+      return c - '0' + 52;
+    }
+    return c == '+' ? 62 : c == '/' ? 63 : -1;
+  }
+
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opensaml.saml.saml2.core.Attribute;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import se.swedenconnect.opensaml.saml2.attribute.AttributeUtils;
+import se.swedenconnect.opensaml.sweid.LibraryVersion;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.Message;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.SignMessage;
+
+/**
+ * Utility bean that may be used by signature services to verify a signMessageDigest attribute received from the
+ * Identity Provider against the {@code SignMessage} that was sent in the authentication request.
+ * <p>
+ * The attribute value ({@code <algorithm URI>;<Base64-encoded digest>}) is parsed without splitting it into temporary
+ * strings, and the digests are compared in constant time. A signature service may also calculate the digests of the
+ * message when the request is sent, see {@link #precompute(Message, Collection)}, and verify the received attribute
+ * against those digests using {@link #verify(String, PrecomputedDigests)}.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class SignMessageDigestVerifier {
+
+  /** Logger instance. */
+  private final Logger log = LoggerFactory.getLogger(SignMessageDigestVerifier.class);
+
+  /**
+   * Verifies the supplied signMessageDigest attribute against the sign message.
+   *
+   * @param attribute the signMessageDigest attribute
+   * @param signMessage the sign message that was sent (must hold a cleartext message)
+   * @return true if the attribute value matches the message, and false otherwise
+   * @throws IllegalArgumentException if the sign message does not hold a cleartext message
+   */
+  public boolean verify(final Attribute attribute, final SignMessage signMessage) throws IllegalArgumentException {
+    return this.verify(attribute != null ? AttributeUtils.getAttributeStringValue(attribute) : null, signMessage);
+  }
+
+  /**
+   * Verifies the supplied signMessageDigest attribute value against the sign message.
+   *
+   * @param attributeValue the signMessageDigest attribute value
+   * @param signMessage the sign message that was sent (must hold a cleartext message)
+   * @return true if the attribute value matches the message, and false otherwise
+   * @throws IllegalArgumentException if the sign message does not hold a cleartext message
+   */
+  public boolean verify(final String attributeValue, final SignMessage signMessage) throws IllegalArgumentException {
+    if (signMessage == null || signMessage.getMessage() == null) {
+      throw new IllegalArgumentException("Supplied sign message is null or does not hold a cleartext message");
+    }
+    return this.verify(attributeValue, signMessage.getMessage());
+  }
+
+  /**
+   * Verifies the supplied signMessageDigest attribute value against the message.
+   *
+   * @param attributeValue the signMessageDigest attribute value
+   * @param message the message that was sent
+   * @return true if the attribute value matches the message, and false otherwise
+   * @throws IllegalArgumentException if the message is null or empty
+   */
+  public boolean verify(final String attributeValue, final Message message) throws IllegalArgumentException {
+    if (message == null || message.getValue() == null) {
+      throw new IllegalArgumentException("Supplied sign message is null or empty");
+    }
+    final int separator = this.getSeparatorIndex(attributeValue);
+    if (separator < 0) {
+      return false;
+    }
+    final String algorithm = SignMessageDigestSupport.getAlgorithm(attributeValue, separator);
+    final byte[] digest;
+    try {
+      digest = SignMessageDigestSupport.digest(message, algorithm);
+    }
+    catch (final SecurityException e) {
+      log.info("signMessageDigest uses unsupported digest algorithm '{}'", algorithm);
+      return false;
+    }
+    return this.compare(attributeValue, separator, digest);
+  }
+
+  /**
+   * Verifies the supplied signMessageDigest attribute value against precomputed digests.
+   *
+   * @param attributeValue the signMessageDigest attribute value
+   * @param digests the precomputed digests
+   * @return true if the attribute value matches the digests, and false otherwise
+   */
+  public boolean verify(final String attributeValue, final PrecomputedDigests digests) {
+    if (digests == null) {
+      throw new IllegalArgumentException("digests must not be null");
+    }
+    final int separator = this.getSeparatorIndex(attributeValue);
+    if (separator < 0) {
+      return false;
+    }
+    final byte[] digest = digests.get(SignMessageDigestSupport.getAlgorithm(attributeValue, separator));
+    if (digest == null) {
+      log.info("No precomputed digest for the algorithm used in signMessageDigest ({})",
+          attributeValue.substring(0, separator));
+      return false;
+    }
+    return this.compare(attributeValue, separator, digest);
+  }
+
+  /**
+   * Calculates the digests of the message for the given algorithms. The result may be stored together with the
+   * request state and later be used in a call to {@link #verify(String, PrecomputedDigests)}.
+   *
+   * @param message the message to calculate the digests for
+   * @param digestAlgorithms the digest algorithm URIs (typically the algorithms the signature service declares in its
+   *          metadata along with the default {@link SignMessageDigestIssuer#DEFAULT_DIGEST_METHOD})
+   * @return the precomputed digests
+   * @throws IllegalArgumentException if the message is null or empty
+   * @throws SecurityException if any of the algorithms is not a supported digest algorithm
+   */
+  public static PrecomputedDigests precompute(final Message message, final Collection<String> digestAlgorithms)
+      throws IllegalArgumentException, SecurityException {
+    final Map<String, byte[]> digests = new HashMap<>();
+    for (final String algorithm : digestAlgorithms) {
+      digests.put(algorithm, SignMessageDigestSupport.digest(message, algorithm));
+    }
+    return new PrecomputedDigests(digests);
+  }
+
+  /**
+   * Gets the index of the separator between the algorithm and the digest value.
+   *
+   * @param attributeValue the attribute value
+   * @return the index, or -1 if the value is invalid
+   */
+  private int getSeparatorIndex(final String attributeValue) {
+    final int separator = attributeValue != null ? attributeValue.indexOf(';') : -1;
+    if (separator <= 0) {
+      log.info("Invalid signMessageDigest value - expected <algorithm>;<digest>");
+      return -1;
+    }
+    return separator;
+  }
+
+  /**
+   * Compares the digest value of the attribute with the expected digest (in constant time).
+   *
+   * @param attributeValue the attribute value
+   * @param separator the index of the separator
+   * @param expected the expected digest
+   * @return true if the digests match, and false otherwise
+   */
+  private boolean compare(final String attributeValue, final int separator, final byte[] expected) {
+    final byte[] received = SignMessageDigestSupport.decodeDigest(attributeValue, separator + 1);
+    if (received == null) {
+      log.info("Invalid signMessageDigest value - digest is not valid Base64");
+      return false;
+    }
+    final boolean result = MessageDigest.isEqual(expected, received);
+    if (!result) {
+      log.info("signMessageDigest does not match the sign message");
+    }
+    return result;
+  }
+
+  /**
+   * Digests of a sign message, calculated using {@link SignMessageDigestVerifier#precompute(Message, Collection)}.
+   */
+  public static final class PrecomputedDigests implements Serializable {
+
+    /** For serializing. */
+    private static final long serialVersionUID = LibraryVersion.SERIAL_VERSION_UID;
+
+    /** The digests, indexed by algorithm URI. */
+    private final HashMap<String, byte[]> digests;
+
+    /**
+     * Constructor.
+     *
+     * @param digests the digests
+     */
+    private PrecomputedDigests(final Map<String, byte[]> digests) {
+      this.digests = new HashMap<>(digests);
+    }
+
+    /**
+     * Gets the digest for the given algorithm.
+     *
+     * @param digestAlgorithm the digest algorithm URI
+     * @return the digest, or null if no digest was calculated for the algorithm
+     */
+    byte[] get(final String digestAlgorithm) {
+      return this.digests.get(digestAlgorithm);
+    }
+  }
+
+}
@@ -15,21 +15,67 @@
  */
 package se.swedenconnect.opensaml.sweid.saml2.signservice;
 
+import java.time.Instant;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.opensaml.core.criterion.EntityIdCriterion;
+import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
+import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.core.xml.io.UnmarshallingException;
 import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.common.xml.SAMLConstants;
+import org.opensaml.saml.criterion.RoleDescriptorCriterion;
+import org.opensaml.saml.metadata.resolver.MetadataResolver;
+import org.opensaml.saml.metadata.resolver.RefreshableMetadataResolver;
+import org.opensaml.saml.metadata.resolver.impl.PredicateRoleDescriptorResolver;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.IDPSSODescriptor;
+import org.opensaml.saml.security.impl.MetadataCredentialResolver;
+import org.opensaml.saml.security.impl.SAMLMetadataEncryptionParametersResolver;
 import org.opensaml.xmlsec.EncryptionConfiguration;
+import org.opensaml.xmlsec.EncryptionParameters;
+import org.opensaml.xmlsec.SecurityConfigurationSupport;
+import org.opensaml.xmlsec.agreement.KeyAgreementCredential;
+import org.opensaml.xmlsec.config.impl.DefaultSecurityConfigurationBootstrap;
+import org.opensaml.xmlsec.criterion.EncryptionConfigurationCriterion;
 import org.opensaml.xmlsec.encryption.EncryptedData;
+import org.opensaml.xmlsec.encryption.support.DataEncryptionParameters;
+import org.opensaml.xmlsec.encryption.support.Encrypter;
 import org.opensaml.xmlsec.encryption.support.EncryptionException;
+import org.opensaml.xmlsec.encryption.support.KeyEncryptionParameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
 
 import net.shibboleth.shared.component.ComponentInitializationException;
 import net.shibboleth.shared.logic.Constraint;
+import net.shibboleth.shared.resolver.CriteriaSet;
+import net.shibboleth.shared.resolver.ResolverException;
+import net.shibboleth.shared.xml.XMLParserException;
 import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.EncryptedMessage;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.Message;
 import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.SignMessage;
 import se.swedenconnect.opensaml.xmlsec.encryption.support.SAMLObjectEncrypter;
 
 /**
  * Bean for encrypting {@code SignMessage} objects.
+ * <p>
+ * If the encrypter is created with a {@link MetadataResolver} (see
+ * {@link #SignMessageEncrypter(SAMLObjectEncrypter, MetadataResolver)}), the {@link EncryptionParameters} (key
+ * transport credential and algorithms) resolved for an IdP are cached per entityID. The cached parameters are
+ * discarded when the metadata resolver reports that its metadata has been updated. This means that encrypting a
+ * message for an IdP that has been seen before only involves generating a data encryption key, the symmetric
+ * encryption of the message and the key transport operation.
+ * </p>
  *
  * @author Martin Lindström (martin@idsec.se)
  */
@@ -41,6 +87,15 @@ public class SignMessageEncrypter {
   /** The encrypter to use. */
   private final SAMLObjectEncrypter encrypter;
 
+  /** The metadata resolver used for resolving cached encryption parameters (may be {@code null}). */
+  private final MetadataResolver metadataResolver;
+
+  /** The resolver for encryption parameters (created if a metadata resolver is given). */
+  private final SAMLMetadataEncryptionParametersResolver parametersResolver;
+
+  /** Cached encryption parameters, indexed by entityID. */
+  private final Map<String, CachedParameters> parametersCache = new ConcurrentHashMap<>();
+
   /**
    * Constructor.
    *
@@ -49,6 +104,32 @@ public class SignMessageEncrypter {
    */
   public SignMessageEncrypter(final SAMLObjectEncrypter encrypter) throws ComponentInitializationException {
     this.encrypter = Constraint.isNotNull(encrypter, "encrypter must not be null");
+    this.metadataResolver = null;
+    this.parametersResolver = null;
+  }
+
+  /**
+   * Constructor setting up the encrypter so that the encryption parameters resolved for each IdP are cached. The
+   * metadata resolver should be the same resolver as used by the supplied {@code encrypter}.
+   *
+   * @param encrypter the encrypter bean (used if the parameters for a peer can not be resolved from the cache)
+   * @param metadataResolver the metadata resolver from which IdP encryption credentials are read
+   * @throws ComponentInitializationException for init errors
+   */
+  public SignMessageEncrypter(final SAMLObjectEncrypter encrypter, final MetadataResolver metadataResolver)
+      throws ComponentInitializationException {
+    this.encrypter = Constraint.isNotNull(encrypter, "encrypter must not be null");
+    this.metadataResolver = Constraint.isNotNull(metadataResolver, "metadataResolver must not be null");
+
+    final PredicateRoleDescriptorResolver roleDescriptorResolver =
+        new PredicateRoleDescriptorResolver(metadataResolver);
+    roleDescriptorResolver.initialize();
+    final MetadataCredentialResolver credentialResolver = new MetadataCredentialResolver();
+    credentialResolver.setRoleDescriptorResolver(roleDescriptorResolver);
+    credentialResolver.setKeyInfoCredentialResolver(
+        DefaultSecurityConfigurationBootstrap.buildBasicInlineKeyInfoCredentialResolver());
+    credentialResolver.initialize();
+    this.parametersResolver = new SAMLMetadataEncryptionParametersResolver(credentialResolver);
   }
 
   /**
@@ -97,8 +178,12 @@ public class SignMessageEncrypter {
           signMessage.getDisplayEntity(), entityID));
     }
 
-    final EncryptedData encryptedData =
-        this.encrypter.encrypt(signMessage.getMessage(), new SAMLObjectEncrypter.Peer(entityID), configuration);
+    final EncryptionParameters parameters =
+        this.parametersResolver != null ? this.getEncryptionParameters(entityID, configuration) : null;
+    final EncryptedData encryptedData = parameters != null
+        ? new Encrypter().encryptElement(signMessage.getMessage(), new DataEncryptionParameters(parameters),
+            new KeyEncryptionParameters(parameters, entityID))
+        : this.encrypter.encrypt(signMessage.getMessage(), new SAMLObjectEncrypter.Peer(entityID), configuration);
     final EncryptedMessage encryptedMessage =
         (EncryptedMessage) XMLObjectSupport.buildXMLObject(EncryptedMessage.DEFAULT_ELEMENT_NAME);
     encryptedMessage.setEncryptedData(encryptedData);
@@ -107,4 +192,205 @@ public class SignMessageEncrypter {
     signMessage.setEncryptedMessage(encryptedMessage);
   }
 
+  /**
+   * Encrypts a {@code SignMessage} for a set of candidate IdPs. This is useful when the IdP has not yet been selected
+   * (discovery), and the SP wants to have the encrypted message ready once the user makes a choice.
+   * <p>
+   * See {@link #encrypt(SignMessage, Collection, EncryptionConfiguration, Executor)}. The common fork-join pool is used
+   * for the encryption tasks.
+   * </p>
+   *
+   * @param signMessage the sign message holding the message to encrypt (will not be modified)
+   * @param entityIDs the entityID:s of the candidate IdPs
+   * @param configuration the encryption configuration to use (may be {@code null})
+   * @return a map of entityID to encrypted sign message
+   * @throws EncryptionException if the supplied sign message can not be encrypted
+   */
+  public Map<String, SignMessage> encrypt(final SignMessage signMessage, final Collection<String> entityIDs,
+      final EncryptionConfiguration configuration) throws EncryptionException {
+    return this.encrypt(signMessage, entityIDs, configuration, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Encrypts a {@code SignMessage} for a set of candidate IdPs. This is useful when the IdP has not yet been selected
+   * (discovery), and the SP wants to have the encrypted message ready once the user makes a choice.
+   * <p>
+   * The supplied {@code signMessage} is used as a template and is not modified. Its {@code Message} element is
+   * marshalled once, and each encryption task works on its own copy of the resulting DOM. The encryption for each IdP
+   * is performed as a separate task using the supplied executor, and this method returns when all tasks have
+   * completed. IdPs for which the encryption fails (for example, since no encryption key is found in metadata) are
+   * logged and left out of the resulting map.
+   * </p>
+   *
+   * @param signMessage the sign message holding the message to encrypt (will not be modified)
+   * @param entityIDs the entityID:s of the candidate IdPs
+   * @param configuration the encryption configuration to use (may be {@code null})
+   * @param executor the executor that runs the encryption tasks
+   * @return a map of entityID to encrypted sign message (in the iteration order of entityIDs)
+   * @throws EncryptionException if the supplied sign message can not be encrypted
+   */
+  public Map<String, SignMessage> encrypt(final SignMessage signMessage, final Collection<String> entityIDs,
+      final EncryptionConfiguration configuration, final Executor executor) throws EncryptionException {
+
+    Constraint.isNotNull(signMessage, "signMessage must not be null");
+    Constraint.isNotNull(entityIDs, "entityIDs must not be null");
+    Constraint.isNotNull(executor, "executor must not be null");
+
+    if (signMessage.getEncryptedMessage() != null) {
+      throw new EncryptionException("signMessage is already encrypted");
+    }
+    if (signMessage.getMessage() == null) {
+      throw new EncryptionException("No Message element available in SignMessage");
+    }
+    if (signMessage.getDisplayEntity() != null
+        && entityIDs.stream().anyMatch(e -> !signMessage.getDisplayEntity().equals(e))) {
+      throw new EncryptionException(String.format("Assigned DisplayEntity (%s) does not match supplied entityIDs",
+          signMessage.getDisplayEntity()));
+    }
+
+    // Marshall the message once, and create a copy of the DOM for each task (DOM implementations are not
+    // thread-safe, so the tasks must not share nodes or documents).
+    //
+    final Map<String, CompletableFuture<SignMessage>> tasks = new LinkedHashMap<>();
+    try {
+      final Element messageElement = XMLObjectSupport.marshall(signMessage.getMessage());
+      for (final String entityID : entityIDs) {
+        if (tasks.containsKey(entityID)) {
+          continue;
+        }
+        final Document document = XMLObjectProviderRegistrySupport.getParserPool().newDocument();
+        final Element copy = (Element) document.importNode(messageElement, true);
+        document.appendChild(copy);
+        tasks.put(entityID, CompletableFuture.supplyAsync(
+            () -> this.encryptCopy(signMessage, copy, entityID, configuration), executor));
+      }
+    }
+    catch (final MarshallingException | XMLParserException e) {
+      throw new EncryptionException("Failed to marshall SignMessage - " + e.getMessage(), e);
+    }
+
+    final Map<String, SignMessage> result = new LinkedHashMap<>();
+    for (final Map.Entry<String, CompletableFuture<SignMessage>> task : tasks.entrySet()) {
+      try {
+        result.put(task.getKey(), task.getValue().join());
+      }
+      catch (final CompletionException e) {
+        log.warn("Failed to encrypt SignMessage for {} - {}", task.getKey(),
+            e.getCause() != null ? e.getCause().getMessage() : e.getMessage(), e);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Creates a new {@code SignMessage} based on the template and encrypts the message for the given IdP.
+   *
+   * @param template the template sign message
+   * @param messageElement the (copied) DOM for the message to encrypt
+   * @param entityID the IdP entityID
+   * @param configuration the encryption configuration (may be {@code null})
+   * @return an encrypted sign message
+   * @throws CompletionException for encryption errors
+   */
+  private SignMessage encryptCopy(final SignMessage template, final Element messageElement, final String entityID,
+      final EncryptionConfiguration configuration) throws CompletionException {
+    try {
+      final SignMessage signMessage =
+          (SignMessage) XMLObjectSupport.buildXMLObject(SignMessage.DEFAULT_ELEMENT_NAME);
+      signMessage.setMustShow(template.isMustShowXSBoolean());
+      signMessage.setMimeType(template.getMimeType());
+      signMessage.setDisplayEntity(entityID);
+      signMessage.setMessage((Message) XMLObjectSupport.getUnmarshaller(messageElement).unmarshall(messageElement));
+      this.encrypt(signMessage, entityID, configuration);
+      return signMessage;
+    }
+    catch (final UnmarshallingException | EncryptionException e) {
+      throw new CompletionException(e);
+    }
+  }
+
+  /**
+   * Gets the (cached) encryption parameters for the given IdP.
+   *
+   * @param entityID the IdP entityID
+   * @param configuration the encryption configuration (may be {@code null})
+   * @return the encryption parameters
+   * @throws EncryptionException if no encryption parameters could be resolved
+   */
+  private EncryptionParameters getEncryptionParameters(final String entityID,
+      final EncryptionConfiguration configuration) throws EncryptionException {
+
+    final Instant version = this.metadataResolver instanceof final RefreshableMetadataResolver r
+        ? r.getLastUpdate()
+        : null;
+    final CachedParameters cached = this.parametersCache.get(entityID);
+    if (cached != null && cached.configuration == configuration && Objects.equals(cached.version, version)) {
+      return cached.parameters;
+    }
+
+    try {
+      final EntityDescriptor metadata = this.metadataResolver.resolveSingle(
+          new CriteriaSet(new EntityIdCriterion(entityID)));
+      final IDPSSODescriptor descriptor = metadata != null
+          ? metadata.getIDPSSODescriptor(SAMLConstants.SAML20P_NS)
+          : null;
+      if (descriptor == null) {
+        throw new EncryptionException("No IdP metadata found for " + entityID);
+      }
+      final EncryptionConfiguration globalConfiguration =
+          SecurityConfigurationSupport.getGlobalEncryptionConfiguration();
+      final CriteriaSet criteria = new CriteriaSet(new RoleDescriptorCriterion(descriptor),
+          configuration != null
+              ? new EncryptionConfigurationCriterion(configuration, globalConfiguration)
+              : new EncryptionConfigurationCriterion(globalConfiguration));
+      final EncryptionParameters parameters = this.parametersResolver.resolveSingle(criteria);
+      if (parameters == null || parameters.getKeyTransportEncryptionCredential() == null) {
+        throw new EncryptionException("No encryption credentials found for " + entityID);
+      }
+      if (parameters.getKeyTransportEncryptionCredential() instanceof KeyAgreementCredential) {
+        // The key agreement credential holds an ephemeral key pair, so it must not be used for more than one message.
+        //
+        log.trace("Key agreement used for {} - parameters are not cached", entityID);
+        this.parametersCache.remove(entityID);
+        return parameters;
+      }
+      log.debug("Caching encryption parameters for {} (data encryption: {}, key transport: {})",
+          entityID, parameters.getDataEncryptionAlgorithm(), parameters.getKeyTransportEncryptionAlgorithm());
+      this.parametersCache.put(entityID, new CachedParameters(version, configuration, parameters));
+      return parameters;
+    }
+    catch (final ResolverException e) {
+      throw new EncryptionException("Failed to resolve encryption parameters for " + entityID, e);
+    }
+  }
+
+  /**
+   * Encryption parameters resolved for an IdP.
+   */
+  private static class CachedParameters {
+
+    /** The metadata version (last update). */
+    private final Instant version;
+
+    /** The encryption configuration used when resolving the parameters. */
+    private final EncryptionConfiguration configuration;
+
+    /** The parameters. */
+    private final EncryptionParameters parameters;
+
+    /**
+     * Constructor.
+     *
+     * @param version the metadata version
+     * @param configuration the encryption configuration
+     * @param parameters the parameters
+     */
+    CachedParameters(final Instant version, final EncryptionConfiguration configuration,
+        final EncryptionParameters parameters) {
+      this.version = version;
+      this.configuration = configuration;
+      this.parameters = parameters;
+    }
+  }
+
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+/**
+ * A {@link JwtIdGenerator} that generates time-ordered identifiers. The identifier starts with the current time (in
+ * milliseconds) encoded as {@value #TIME_LENGTH} base62 characters, followed by random characters from a
+ * {@link SecureRandomJwtIdGenerator}. Identifiers created at different milliseconds thus sort in time order, which
+ * makes them index well in audit log storage.
+ * <p>
+ * Note that the time part does not add any unpredictability, so the length should be chosen so that enough random
+ * characters remain (the default SAD JWT ID size of 24 characters gives 16 random characters).
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class TimeOrderedJwtIdGenerator implements JwtIdGenerator {
+
+  /** The number of characters used for the timestamp. */
+  public static final int TIME_LENGTH = 8;
+
+  /** The base62 characters (in ASCII order so that the encoding sorts correctly). */
+  private static final char[] BASE62 =
+      "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+
+  /** Generator for the random part. */
+  private final SecureRandomJwtIdGenerator randomGenerator =
+      new SecureRandomJwtIdGenerator(SecureRandomJwtIdGenerator.Alphabet.ALPHANUMERIC);
+
+  /** {@inheritDoc} */
+  @Override
+  public String generate(final int length) {
+    if (length <= TIME_LENGTH) {
+      throw new IllegalArgumentException("length must be greater than " + TIME_LENGTH);
+    }
+    final char[] id = new char[length];
+    long time = System.currentTimeMillis();
+    for (int i = TIME_LENGTH - 1; i >= 0; i--) {
+      id[i] = BASE62[(int) (time % 62)];
+      time /= 62;
+    }
+    this.randomGenerator.fill(id, TIME_LENGTH, length - TIME_LENGTH);
+    return new String(id);
+  }
+
+}
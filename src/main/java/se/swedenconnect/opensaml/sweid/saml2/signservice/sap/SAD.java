@@ -90,9 +90,10 @@ public class SAD {
    *
    * @return the JSON bytes
    * @throws IOException for processing errors
+   * @see SADCodec#encode(SAD)
    */
   public byte[] toJsonBytes() throws IOException {
-    return jsonMapper.writeValueAsBytes(this);
+    return SADCodec.encode(this);
   }
 
   /**
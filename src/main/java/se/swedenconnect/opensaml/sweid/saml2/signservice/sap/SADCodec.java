@@ -0,0 +1,412 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice.sap;
+
+import tools.jackson.core.JacksonException;
+import tools.jackson.core.JsonParser;
+import tools.jackson.core.JsonToken;
+import tools.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * An encoder/decoder for the JSON representation of a {@link SAD}.
+ * <p>
+ * Whereas {@link SAD#fromJson(String)} and {@link SAD#toJson()} use Jackson data binding, this class reads the fixed
+ * SAD claim set using a streaming parser directly from the (decoded) JWT payload bytes, and writes the claims directly
+ * into a byte buffer. This avoids intermediate string representations of the payload.
+ * </p>
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public final class SADCodec {
+
+  /** The JSON object mapper (only used to create parsers). */
+  private static final ObjectMapper jsonMapper = new ObjectMapper();
+
+  /** Base64url decoder. */
+  private static final Base64.Decoder base64UrlDecoder = Base64.getUrlDecoder();
+
+  /** Base64url encoder (without padding). */
+  private static final Base64.Encoder base64UrlEncoder = Base64.getUrlEncoder().withoutPadding();
+
+  /** Hex characters used when escaping. */
+  private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+  // Hidden constructor
+  private SADCodec() {
+  }
+
+  /**
+   * Decodes a SAD given its Base64url-encoded JSON representation (i.e., the payload part of a SAD JWT).
+   *
+   * @param encodedSad the Base64url-encoded SAD
+   * @return a {@code SAD} object
+   * @throws IOException for decoding errors
+   */
+  public static SAD decodeBase64Url(final String encodedSad) throws IOException {
+    try {
+      return decode(base64UrlDecoder.decode(encodedSad));
+    }
+    catch (final IllegalArgumentException e) {
+      throw new IOException("Invalid Base64url encoding of SAD", e);
+    }
+  }
+
+  /**
+   * Decodes a SAD given its (UTF-8 encoded) JSON representation.
+   *
+   * @param json the JSON bytes
+   * @return a {@code SAD} object
+   * @throws IOException for decoding errors
+   */
+  public static SAD decode(final byte[] json) throws IOException {
+    try (final JsonParser parser = jsonMapper.createParser(json)) {
+      if (parser.nextToken() != JsonToken.START_OBJECT) {
+        throw new IOException("Invalid SAD - expected JSON object");
+      }
+      final SAD sad = new SAD();
+      while (parser.nextToken() != JsonToken.END_OBJECT) {
+        final String name = parser.currentName();
+        final JsonToken token = parser.nextToken();
+        switch (name) {
+        case "sub" -> sad.setSubject(readString(parser, token, name));
+        case "aud" -> sad.setAudience(readString(parser, token, name));
+        case "iss" -> sad.setIssuer(readString(parser, token, name));
+        case "exp" -> sad.setExpiry(readInteger(parser, token, name));
+        case "iat" -> sad.setIssuedAt(readInteger(parser, token, name));
+        case "jti" -> sad.setJwtId(readString(parser, token, name));
+        case "seElnSadext" -> sad.setSeElnSadext(readExtension(parser, token));
+        default -> parser.skipChildren();
+        }
+      }
+      return sad;
+    }
+    catch (final JacksonException e) {
+      throw new IOException("Failed to parse SAD - " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Encodes the supplied SAD into its Base64url-encoded JSON representation (without padding).
+   *
+   * @param sad the SAD to encode
+   * @return the Base64url-encoded JSON
+   */
+  public static String encodeBase64Url(final SAD sad) {
+    final byte[] json = encode(sad);
+    final byte[] encoded = new byte[(json.length * 4 + 2) / 3];
+    final int length = base64UrlEncoder.encode(json, encoded);
+    return new String(encoded, 0, length, StandardCharsets.US_ASCII);
+  }
+
+  /**
+   * Encodes the supplied SAD into its (UTF-8 encoded) JSON representation.
+   *
+   * @param sad the SAD to encode
+   * @return the JSON bytes
+   */
+  public static byte[] encode(final SAD sad) {
+    final JsonWriter writer = new JsonWriter();
+    writer.startObject();
+    writer.stringProperty("sub", sad.getSubject());
+    writer.stringProperty("aud", sad.getAudience());
+    writer.stringProperty("iss", sad.getIssuer());
+    writer.integerProperty("exp", sad.getExpiry());
+    writer.integerProperty("iat", sad.getIssuedAt());
+    writer.stringProperty("jti", sad.getJwtId());
+    final SAD.Extension ext = sad.getSeElnSadext();
+    if (ext != null) {
+      writer.name("seElnSadext");
+      writer.startObject();
+      writer.stringProperty("ver", ext.getVersion());
+      writer.stringProperty("irt", ext.getInResponseTo());
+      writer.stringProperty("attr", ext.getAttributeName());
+      writer.stringProperty("loa", ext.getLoa());
+      writer.stringProperty("reqid", ext.getRequestID());
+      writer.integerProperty("docs", ext.getNumberOfDocuments());
+      writer.endObject();
+    }
+    writer.endObject();
+    return writer.toByteArray();
+  }
+
+  /**
+   * Reads the {@code seElnSadext} claim.
+   *
+   * @param parser the parser
+   * @param token the current token
+   * @return the extension claim (or {@code null})
+   * @throws IOException for invalid input
+   */
+  private static SAD.Extension readExtension(final JsonParser parser, final JsonToken token) throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token != JsonToken.START_OBJECT) {
+      throw new IOException("Invalid SAD - seElnSadext must be a JSON object");
+    }
+    final SAD.Extension ext = new SAD.Extension();
+    while (parser.nextToken() != JsonToken.END_OBJECT) {
+      final String name = parser.currentName();
+      final JsonToken valueToken = parser.nextToken();
+      switch (name) {
+      case "ver" -> ext.setVersion(readString(parser, valueToken, name));
+      case "irt" -> ext.setInResponseTo(readString(parser, valueToken, name));
+      case "attr" -> ext.setAttributeName(readString(parser, valueToken, name));
+      case "loa" -> ext.setLoa(readString(parser, valueToken, name));
+      case "reqid" -> ext.setRequestID(readString(parser, valueToken, name));
+      case "docs" -> ext.setNumberOfDocuments(readInteger(parser, valueToken, name));
+      default -> parser.skipChildren();
+      }
+    }
+    return ext;
+  }
+
+  /**
+   * Reads a string claim value. Scalar values are accepted and converted into strings.
+   *
+   * @param parser the parser
+   * @param token the current token
+   * @param name the claim name
+   * @return the string value (or {@code null})
+   * @throws IOException for invalid input
+   */
+  private static String readString(final JsonParser parser, final JsonToken token, final String name)
+      throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+      throw new IOException("Invalid SAD - expected string value for '%s'".formatted(name));
+    }
+    return parser.getValueAsString();
+  }
+
+  /**
+   * Reads an integer claim value. String values holding integers are accepted.
+   *
+   * @param parser the parser
+   * @param token the current token
+   * @param name the claim name
+   * @return the integer value (or {@code null})
+   * @throws IOException for invalid input
+   */
+  private static Integer readInteger(final JsonParser parser, final JsonToken token, final String name)
+      throws IOException {
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    if (token == JsonToken.VALUE_NUMBER_INT) {
+      return parser.getIntValue();
+    }
+    if (token == JsonToken.VALUE_STRING) {
+      try {
+        return Integer.valueOf(parser.getValueAsString().trim());
+      }
+      catch (final NumberFormatException e) {
+        throw new IOException("Invalid SAD - expected integer value for '%s'".formatted(name), e);
+      }
+    }
+    throw new IOException("Invalid SAD - expected integer value for '%s'".formatted(name));
+  }
+
+  /**
+   * A minimal JSON writer that writes UTF-8 directly into a growable byte buffer.
+   */
+  private static class JsonWriter {
+
+    /** The buffer. */
+    private byte[] buffer = new byte[512];
+
+    /** The number of bytes written. */
+    private int count = 0;
+
+    /** Tells whether the next member is the first in the current object. */
+    private boolean first = true;
+
+    /**
+     * Writes the start of an object.
+     */
+    void startObject() {
+      this.write((byte) '{');
+      this.first = true;
+    }
+
+    /**
+     * Writes the end of an object.
+     */
+    void endObject() {
+      this.write((byte) '}');
+      this.first = false;
+    }
+
+    /**
+     * Writes a property name.
+     *
+     * @param name the name (plain ASCII)
+     */
+    void name(final String name) {
+      if (!this.first) {
+        this.write((byte) ',');
+      }
+      this.first = false;
+      this.ensureCapacity(name.length() + 3);
+      this.buffer[this.count++] = '"';
+      for (int i = 0; i < name.length(); i++) {
+        this.buffer[this.count++] = (byte) name.charAt(i);
+      }
+      this.buffer[this.count++] = '"';
+      this.buffer[this.count++] = ':';
+    }
+
+    /**
+     * Writes a string property. Nothing is written if the value is {@code null}.
+     *
+     * @param name the property name
+     * @param value the value
+     */
+    void stringProperty(final String name, final String value) {
+      if (value != null) {
+        this.name(name);
+        this.string(value);
+      }
+    }
+
+    /**
+     * Writes an integer property. Nothing is written if the value is {@code null}.
+     *
+     * @param name the property name
+     * @param value the value
+     */
+    void integerProperty(final String name, final Integer value) {
+      if (value != null) {
+        this.name(name);
+        final String s = Integer.toString(value);
+        this.ensureCapacity(s.length());
+        for (int i = 0; i < s.length(); i++) {
+          this.buffer[this.count++] = (byte) s.charAt(i);
+        }
+      }
+    }
+
+    /**
+     * Writes a quoted and escaped string value.
+     *
+     * @param value the value
+     */
+    private void string(final String value) {
+      // Worst case is 6 bytes per character (\\u00XX) ...
+      this.ensureCapacity(value.length() * 6 + 2);
+      this.buffer[this.count++] = '"';
+      final int length = value.length();
+      for (int i = 0; i < length; i++) {
+        final char c = value.charAt(i);
+        if (c < 0x80) {
+          if (c == '"' || c == '\\') {
+            this.buffer[this.count++] = '\\';
+            this.buffer[this.count++] = (byte) c;
+          }
+          else if (c < 0x20) {
+            this.escapeControl(c);
+          }
+          else {
+            this.buffer[this.count++] = (byte) c;
+          }
+        }
+        else if (c < 0x800) {
+          this.buffer[this.count++] = (byte) (0xC0 | (c >> 6));
+          this.buffer[this.count++] = (byte) (0x80 | (c & 0x3F));
+        }
+        else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+          final int cp = Character.toCodePoint(c, value.charAt(++i));
+          this.buffer[this.count++] = (byte) (0xF0 | (cp >> 18));
+          this.buffer[this.count++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+          this.buffer[this.count++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+          this.buffer[this.count++] = (byte) (0x80 | (cp & 0x3F));
+        }
+        else if (Character.isSurrogate(c)) {
+          // Unpaired surrogate - not valid UTF-16
+          this.buffer[this.count++] = '?';
+        }
+        else {
+          this.buffer[this.count++] = (byte) (0xE0 | (c >> 12));
+          this.buffer[this.count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+          this.buffer[this.count++] = (byte) (0x80 | (c & 0x3F));
+        }
+      }
+      this.buffer[this.count++] = '"';
+    }
+
+    /**
+     * Escapes a control character.
+     *
+     * @param c the character
+     */
+    private void escapeControl(final char c) {
+      this.buffer[this.count++] = '\\';
+      switch (c) {
+      case '\b' -> this.buffer[this.count++] = 'b';
+      case '\f' -> this.buffer[this.count++] = 'f';
+      case '\n' -> this.buffer[this.count++] = 'n';
+      case '\r' -> this.buffer[this.count++] = 'r';
+      case '\t' -> this.buffer[this.count++] = 't';
+      default -> {
+        this.buffer[this.count++] = 'u';
+        this.buffer[this.count++] = '0';
+        this.buffer[this.count++] = '0';
+        this.buffer[this.count++] = HEX[c >> 4];
+        this.buffer[this.count++] = HEX[c & 0xF];
+      }
+      }
+    }
+
+    /**
+     * Writes a single byte.
+     *
+     * @param b the byte
+     */
+    private void write(final byte b) {
+      this.ensureCapacity(1);
+      this.buffer[this.count++] = b;
+    }
+
+    /**
+     * Makes sure that the buffer can hold {@code n} more bytes.
+     *
+     * @param n the number of bytes
+     */
+    private void ensureCapacity(final int n) {
+      if (this.count + n > this.buffer.length) {
+        this.buffer = Arrays.copyOf(this.buffer, Math.max(this.buffer.length * 2, this.count + n));
+      }
+    }
+
+    /**
+     * Returns the written bytes.
+     *
+     * @return the JSON bytes
+     */
+    byte[] toByteArray() {
+      return Arrays.copyOf(this.buffer, this.count);
+    }
+
+  }
+
+}
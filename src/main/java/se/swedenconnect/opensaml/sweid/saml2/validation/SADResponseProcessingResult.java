@@ -0,0 +1,66 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.validation;
+
+import se.swedenconnect.opensaml.saml2.response.ResponseProcessingResult;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SAD;
+
+/**
+ * The result of {@link SwedishEidResponseProcessorImpl#processSamlResponseWithSAD(String, String,
+ * se.swedenconnect.opensaml.saml2.response.ResponseProcessingInput,
+ * org.opensaml.saml.common.assertion.ValidationContext)}, i.e., the response processing result along with the
+ * validated SAD.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class SADResponseProcessingResult {
+
+  /** The response processing result. */
+  private final ResponseProcessingResult result;
+
+  /** The validated SAD. */
+  private final SAD sad;
+
+  /**
+   * Constructor.
+   *
+   * @param result the response processing result
+   * @param sad the validated SAD (may be {@code null})
+   */
+  public SADResponseProcessingResult(final ResponseProcessingResult result, final SAD sad) {
+    this.result = result;
+    this.sad = sad;
+  }
+
+  /**
+   * Gets the response processing result.
+   *
+   * @return the response processing result
+   */
+  public ResponseProcessingResult getResult() {
+    return this.result;
+  }
+
+  /**
+   * Gets the validated SAD.
+   *
+   * @return the SAD, or {@code null} if no SAD was requested (or if SAD validation is not active)
+   */
+  public SAD getSad() {
+    return this.sad;
+  }
+
+}
@@ -25,6 +25,7 @@ import org.opensaml.saml.saml2.core.AuthnRequest;
 import se.swedenconnect.opensaml.common.validation.CoreValidatorParameters;
 import se.swedenconnect.opensaml.saml2.assertion.validation.AbstractAssertionValidationParametersBuilder;
 import se.swedenconnect.opensaml.sweid.saml2.attribute.AttributeConstants;
+import se.swedenconnect.opensaml.sweid.saml2.request.AuthnRequestSnapshot;
 
 /**
  * An extension to {@link AbstractAssertionValidationParametersBuilder} setting defaults according to the Swedish eID
@@ -69,6 +70,13 @@ public class SwedishEidAssertionValidationParametersBuilder
           expectedInResponseTo = authnRequest.getID();
         }
       }
+      if (expectedInResponseTo == null) {
+        final AuthnRequestSnapshot snapshot =
+            (AuthnRequestSnapshot) this.getStaticParameter(SwedishEidAssertionValidator.AUTHN_REQUEST_SNAPSHOT);
+        if (snapshot != null) {
+          expectedInResponseTo = snapshot.getId();
+        }
+      }
       if (expectedInResponseTo != null) {
         this.addStaticParameter(SAML2AssertionValidationParameters.SC_VALID_IN_RESPONSE_TO, expectedInResponseTo);
       }
@@ -79,6 +87,17 @@ public class SwedishEidAssertionValidationParametersBuilder
     return super.build();
   }
 
+  /**
+   * Assigns an {@link AuthnRequestSnapshot} for the {@code AuthnRequest} corresponding to the assertion. May be used
+   * instead of assigning the complete {@code AuthnRequest} ({@link CoreValidatorParameters#AUTHN_REQUEST}).
+   *
+   * @param snapshot the AuthnRequest snapshot
+   * @return the builder
+   */
+  public SwedishEidAssertionValidationParametersBuilder authnRequestSnapshot(final AuthnRequestSnapshot snapshot) {
+    return this.staticParameter(SwedishEidAssertionValidator.AUTHN_REQUEST_SNAPSHOT, snapshot);
+  }
+
   public SwedishEidAssertionValidationParametersBuilder scopedAttributes(final Collection<String> attributes) {
     return this.staticParameter(SwedishEidAttributeStatementValidator.SCOPED_ATTRIBUTES, attributes);
   }
@@ -40,7 +40,9 @@ import org.opensaml.xmlsec.signature.support.SignatureTrustEngine;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import se.swedenconnect.opensaml.common.validation.CoreValidatorParameters;
 import se.swedenconnect.opensaml.saml2.assertion.validation.AssertionValidator;
+import se.swedenconnect.opensaml.sweid.saml2.request.AuthnRequestSnapshot;
 
 /**
  * An assertion validator that makes checks based on what is required by the Swedish eID Framework.
@@ -56,12 +58,20 @@ import se.swedenconnect.opensaml.saml2.assertion.validation.AssertionValidator;
  * <li>{@link SAML2AssertionValidationParameters#SC_VALID_RECIPIENTS}: Required. A set of valid recipient URL:s.</li>
  * <li>{@link SAML2AssertionValidationParameters#COND_VALID_AUDIENCES}: Required. A set of valid audiences of the
  * assertion.</li>
+ * <li>{@link #AUTHN_REQUEST_SNAPSHOT}: Optional. An {@link AuthnRequestSnapshot} that may be given instead of the
+ * {@code AuthnRequest} ({@link CoreValidatorParameters#AUTHN_REQUEST}).</li>
  * </ul>
  *
  * @author Martin Lindström (martin@idsec.se)
  */
 public class SwedishEidAssertionValidator extends AssertionValidator {
 
+  /**
+   * Key for a validation context parameter. Carries an {@link AuthnRequestSnapshot} for the {@code AuthnRequest} that
+   * corresponds to the assertion being validated.
+   */
+  public static final String AUTHN_REQUEST_SNAPSHOT = CoreValidatorParameters.STD_PREFIX + ".AuthnRequestSnapshot";
+
   /** Class logger. */
   private final Logger log = LoggerFactory.getLogger(SwedishEidAssertionValidator.class);
 
@@ -167,8 +177,7 @@ public class SwedishEidAssertionValidator extends AssertionValidator {
 
     // We require the bearer method ...
     //
-    final boolean hokProfileActive = Optional.ofNullable(context.getDynamicParameters().get(HOK_PROFILE_ACTIVE))
-        .map(Boolean.class::cast).orElse(Boolean.FALSE);
+    final boolean hokProfileActive = isHolderOfKeyProfileActive(context);
 
     if (!hokProfileActive) {
       boolean bearerFound = confirmations.stream()
@@ -240,4 +249,21 @@ public class SwedishEidAssertionValidator extends AssertionValidator {
     return super.validateStatements(assertion, context);
   }
 
+  /**
+   * Tells whether the Holder-of-key profile is active. The {@link AssertionValidator#HOK_PROFILE_ACTIVE} dynamic
+   * parameter is checked first, and if not set, the {@link #AUTHN_REQUEST_SNAPSHOT} static parameter (if present) is
+   * used.
+   *
+   * @param context the validation context
+   * @return {@code true} if the Holder-of-key profile is active and {@code false} otherwise
+   */
+  static boolean isHolderOfKeyProfileActive(final ValidationContext context) {
+    return Optional.ofNullable(context.getDynamicParameters().get(HOK_PROFILE_ACTIVE))
+        .map(Boolean.class::cast)
+        .orElseGet(() -> Optional.ofNullable(context.getStaticParameters().get(AUTHN_REQUEST_SNAPSHOT))
+            .map(AuthnRequestSnapshot.class::cast)
+            .map(AuthnRequestSnapshot::isHolderOfKey)
+            .orElse(Boolean.FALSE));
+  }
+
 }
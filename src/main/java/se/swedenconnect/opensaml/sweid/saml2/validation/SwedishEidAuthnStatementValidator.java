@@ -30,8 +30,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import se.swedenconnect.opensaml.common.validation.CoreValidatorParameters;
-import se.swedenconnect.opensaml.saml2.assertion.validation.AssertionValidator;
 import se.swedenconnect.opensaml.saml2.assertion.validation.AuthnStatementValidator;
+import se.swedenconnect.opensaml.sweid.saml2.request.AuthnRequestSnapshot;
 
 /**
  * An {@link AuthnStatementValidator} that performs checks to assert that the assertion is compliant with the Swedish
@@ -44,7 +44,8 @@ import se.swedenconnect.opensaml.saml2.assertion.validation.AuthnStatementValida
  * <li>The ones defined in {@link AuthnStatementValidator}.</li>
  * <li>{@link #AUTHN_REQUEST_REQUESTED_AUTHNCONTEXTURIS}: Holds a collection of AuthnContext URIs that are matched
  * against the {@code AuthnContextClassRef} element of the authentication statement. If not supplied, the values are
- * read from {@link CoreValidatorParameters#AUTHN_REQUEST}.</li>
+ * read from {@link SwedishEidAssertionValidator#AUTHN_REQUEST_SNAPSHOT} or
+ * {@link CoreValidatorParameters#AUTHN_REQUEST}.</li>
  * <li>{@link #HOLDER_OF_KEY_AUTHN_CONTEXT_URIS}: Holds a collection of the authentication context URI:s that require
  * the Holder-of-key profile.</li>
  * </ul>
@@ -106,11 +107,7 @@ public class SwedishEidAuthnStatementValidator extends AuthnStatementValidator {
     // Check if the authnContextClassRef requires Holder-of-key ...
     //
     if (this.getHolderOfKeyAuthnContextUris(context).contains(authnContextClassRef)) {
-      final boolean hokActive = Optional
-          .ofNullable(context.getDynamicParameters().get(AssertionValidator.HOK_PROFILE_ACTIVE))
-          .map(Boolean.class::cast)
-          .orElse(false);
-      if (!hokActive) {
+      if (!SwedishEidAssertionValidator.isHolderOfKeyProfileActive(context)) {
         final String msg = "Assertion contained AuthnContextClassRef '%s', but Holder-of-key was not used"
             .formatted(authnContextClassRef);
         context.getValidationFailureMessages().add(msg);
@@ -124,7 +121,7 @@ public class SwedishEidAuthnStatementValidator extends AuthnStatementValidator {
   /**
    * Returns a collection of URIs that are the RequestedAuthnContext URIs given in the {@code AuthnRequest}. The method
    * will first check if the parameter {@link #AUTHN_REQUEST_REQUESTED_AUTHNCONTEXTURIS} is set, and if not, use the
-   * {@link CoreValidatorParameters#AUTHN_REQUEST}.
+   * {@link SwedishEidAssertionValidator#AUTHN_REQUEST_SNAPSHOT} or {@link CoreValidatorParameters#AUTHN_REQUEST}.
    *
    * @param context the validation context
    * @return a collection of URIs.
@@ -134,6 +131,11 @@ public class SwedishEidAuthnStatementValidator extends AuthnStatementValidator {
     Collection<String> uris =
         (Collection<String>) context.getStaticParameters().get(AUTHN_REQUEST_REQUESTED_AUTHNCONTEXTURIS);
     if (uris == null || uris.isEmpty()) {
+      final AuthnRequestSnapshot snapshot =
+          (AuthnRequestSnapshot) context.getStaticParameters().get(SwedishEidAssertionValidator.AUTHN_REQUEST_SNAPSHOT);
+      if (snapshot != null) {
+        return snapshot.getRequestedAuthnContextClassRefs();
+      }
       final AuthnRequest authnRequest =
           (AuthnRequest) context.getStaticParameters().get(CoreValidatorParameters.AUTHN_REQUEST);
       if (authnRequest != null && authnRequest.getRequestedAuthnContext() != null
@@ -15,22 +15,192 @@
  */
 package se.swedenconnect.opensaml.sweid.saml2.validation;
 
+import org.opensaml.saml.common.assertion.ValidationContext;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.xmlsec.signature.support.SignaturePrevalidator;
 import org.opensaml.xmlsec.signature.support.SignatureTrustEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import se.swedenconnect.opensaml.saml2.assertion.validation.AbstractAssertionValidationParametersBuilder;
 import se.swedenconnect.opensaml.saml2.assertion.validation.AssertionValidator;
+import se.swedenconnect.opensaml.saml2.response.ResponseProcessingException;
+import se.swedenconnect.opensaml.saml2.response.ResponseProcessingInput;
+import se.swedenconnect.opensaml.saml2.response.ResponseProcessingResult;
 import se.swedenconnect.opensaml.saml2.response.ResponseProcessor;
 import se.swedenconnect.opensaml.saml2.response.ResponseProcessorImpl;
+import se.swedenconnect.opensaml.saml2.response.ResponseStatusErrorException;
+import se.swedenconnect.opensaml.saml2.response.validation.ResponseValidationException;
 import se.swedenconnect.opensaml.saml2.response.validation.ResponseValidator;
+import se.swedenconnect.opensaml.sweid.saml2.request.AuthnRequestSnapshot;
+import se.swedenconnect.opensaml.sweid.saml2.request.PendingRequestStore;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SADParser.SADValidator;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SADValidationException;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SAD;
 
 /**
  * A {@link ResponseProcessor} implementation that uses validators for the Swedish eID Framework.
+ * <p>
+ * A signature service may also install a {@link SADValidator} (see {@link #setSadValidator(SADValidator)}). In these
+ * cases the SAD of the assertion is validated as part of the response processing, using the already decrypted and
+ * validated assertion and the IdP metadata resolved by the processor. A response whose SAD is invalid is rejected.
+ * Use {@link #processSamlResponseWithSAD(String, String, ResponseProcessingInput, ValidationContext)} to obtain the
+ * validated SAD along with the processing result.
+ * </p>
+ * <p>
+ * If a {@link PendingRequestStore} is installed (see {@link #setPendingRequestStore(PendingRequestStore)}), the
+ * request that a response is for (given by its {@code InResponseTo} attribute) is consumed from the store. A response
+ * that does not correspond to a pending request is rejected, which means that each request can only be answered once.
+ * The consumed {@link AuthnRequestSnapshot} is used by the SAD stage. The response and assertion validation of the base
+ * class still check the {@code InResponseTo} attribute against the {@code AuthnRequest} given by
+ * {@link ResponseProcessingInput#getAuthnRequest(String)}, so the processing input must still supply the
+ * {@code AuthnRequest}.
+ * </p>
  *
  * @author Martin Lindström (martin@idsec.se)
  */
 public class SwedishEidResponseProcessorImpl extends ResponseProcessorImpl {
 
+  /**
+   * Key for a validation context dynamic parameter in which the SAD stage stores the validated {@link SAD}.
+   */
+  public static final String VALIDATED_SAD = SwedishEidResponseProcessorImpl.class.getName() + ".ValidatedSAD";
+
+  /** Class logger. */
+  private static final Logger log = LoggerFactory.getLogger(SwedishEidResponseProcessorImpl.class);
+
+  /** Optional validator for SAD:s. */
+  private SADValidator sadValidator;
+
+  /** Optional store for pending requests. */
+  private PendingRequestStore pendingRequestStore;
+
+  /**
+   * Processes the SAML response (see {@link #processSamlResponse(String, String, ResponseProcessingInput,
+   * ValidationContext)}) and returns the processing result along with the validated SAD.
+   *
+   * @param samlResponse the base64-encoded SAML response
+   * @param relayState the relay state received in the message
+   * @param input the processing input
+   * @param validationContext optional validation context for controlling the validation process
+   * @return the processing result along with the SAD ({@code null} if the AuthnRequest did not contain a SADRequest
+   *     or if no SAD validator has been installed)
+   * @throws ResponseStatusErrorException if the response status is not success
+   * @throws ResponseProcessingException for processing errors (including SAD validation errors)
+   */
+  public SADResponseProcessingResult processSamlResponseWithSAD(final String samlResponse, final String relayState,
+      final ResponseProcessingInput input, final ValidationContext validationContext)
+      throws ResponseStatusErrorException, ResponseProcessingException {
+
+    final ValidationContext context = validationContext != null ? validationContext : new ValidationContext();
+    final ResponseProcessingResult result = this.processSamlResponse(samlResponse, relayState, input, context);
+    return new SADResponseProcessingResult(result, (SAD) context.getDynamicParameters().get(VALIDATED_SAD));
+  }
+
+  /**
+   * Validates the assertion, and if a {@link SADValidator} has been installed, the SAD of the assertion. If a
+   * {@link PendingRequestStore} has been installed, the request corresponding to the response is first consumed from
+   * the store.
+   */
+  @Override
+  protected void validateAssertion(final Assertion assertion, final Response response,
+      final ResponseProcessingInput input, final EntityDescriptor idpMetadata,
+      final ValidationContext validationContext) throws ResponseValidationException {
+
+    final AuthnRequestSnapshot pendingRequest = this.consumePendingRequest(response);
+
+    super.validateAssertion(assertion, response, input, idpMetadata, validationContext);
+
+    if (this.sadValidator != null) {
+      final SAD sad = this.validateSad(assertion, response, input, pendingRequest, idpMetadata);
+      if (sad != null && validationContext != null) {
+        validationContext.getDynamicParameters().put(VALIDATED_SAD, sad);
+      }
+    }
+  }
+
+  /**
+   * If a {@link PendingRequestStore} has been installed, the request corresponding to the response is consumed from
+   * the store.
+   *
+   * @param response the response
+   * @return the pending request, or {@code null} if no store is installed
+   * @throws ResponseValidationException if the response does not correspond to a pending request
+   */
+  protected AuthnRequestSnapshot consumePendingRequest(final Response response) throws ResponseValidationException {
+    if (this.pendingRequestStore == null) {
+      return null;
+    }
+    final AuthnRequestSnapshot pendingRequest = this.pendingRequestStore.consume(response.getInResponseTo());
+    if (pendingRequest == null) {
+      throw new ResponseValidationException(("Response '%s' does not correspond to a pending request - "
+          + "InResponseTo '%s' is unknown, has expired or has already been processed")
+          .formatted(response.getID(), response.getInResponseTo()));
+    }
+    return pendingRequest;
+  }
+
+  /**
+   * Validates the SAD of the supplied (validated) assertion.
+   *
+   * @param assertion the assertion
+   * @param response the response
+   * @param input the processing input
+   * @param pendingRequest the pending request consumed from the store (may be {@code null})
+   * @param idpMetadata the IdP metadata
+   * @return the validated SAD, or {@code null} if the AuthnRequest did not contain a SADRequest
+   * @throws ResponseValidationException for SAD validation errors
+   */
+  protected SAD validateSad(final Assertion assertion, final Response response, final ResponseProcessingInput input,
+      final AuthnRequestSnapshot pendingRequest, final EntityDescriptor idpMetadata)
+      throws ResponseValidationException {
+
+    final AuthnRequest authnRequest = pendingRequest == null ? input.getAuthnRequest(response.getInResponseTo()) : null;
+    if (pendingRequest == null && authnRequest == null) {
+      throw new ResponseValidationException(
+          "No AuthnRequest available for response '%s' - cannot validate SAD".formatted(response.getID()));
+    }
+    try {
+      final SAD sad = pendingRequest != null
+          ? this.sadValidator.validateIfRequested(pendingRequest, assertion, idpMetadata)
+          : this.sadValidator.validateIfRequested(authnRequest, assertion, idpMetadata);
+      if (sad != null) {
+        log.debug("SAD '{}' of assertion '{}' successfully validated", sad.getJwtId(), assertion.getID());
+      }
+      return sad;
+    }
+    catch (final SADValidationException e) {
+      throw new ResponseValidationException("SAD validation failed - " + e.getMessage(), e);
+    }
+    catch (final IllegalArgumentException e) {
+      throw new ResponseValidationException("Failed to validate SAD - " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Assigns a {@link SADValidator} that is used to validate the SAD of the received assertion (when the corresponding
+   * AuthnRequest contained a {@code SADRequest}). By default, no SAD validation is performed.
+   *
+   * @param sadValidator the SAD validator
+   */
+  public void setSadValidator(final SADValidator sadValidator) {
+    this.sadValidator = sadValidator;
+  }
+
+  /**
+   * Assigns a {@link PendingRequestStore} from which the request corresponding to a received response is consumed.
+   * The store is normally shared with the {@code SwedishEidAuthnRequestGenerator} that generated the requests. By
+   * default, no store is used.
+   *
+   * @param pendingRequestStore the pending request store
+   */
+  public void setPendingRequestStore(final PendingRequestStore pendingRequestStore) {
+    this.pendingRequestStore = pendingRequestStore;
+  }
+
   /** {@inheritDoc} */
   @Override
   protected ResponseValidator createResponseValidator(final SignatureTrustEngine signatureTrustEngine,
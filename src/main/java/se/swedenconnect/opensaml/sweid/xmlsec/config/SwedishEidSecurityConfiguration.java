@@ -15,10 +15,19 @@
  */
 package se.swedenconnect.opensaml.sweid.xmlsec.config;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.opensaml.security.crypto.JCAConstants;
 import org.opensaml.xmlsec.EncryptionConfiguration;
+import org.opensaml.xmlsec.agreement.impl.KeyWrap;
+import org.opensaml.xmlsec.derivation.impl.ConcatKDF;
 import org.opensaml.xmlsec.encryption.support.EncryptionConstants;
+import org.opensaml.xmlsec.encryption.support.KeyAgreementEncryptionConfiguration;
 import org.opensaml.xmlsec.impl.BasicEncryptionConfiguration;
 
 import se.swedenconnect.opensaml.xmlsec.config.SAML2IntSecurityConfiguration;
@@ -31,11 +40,33 @@ import se.swedenconnect.opensaml.xmlsec.config.SecurityConfiguration;
  * Currently the implementation equals {@link SAML2IntSecurityConfiguration} with the exception that it defaults to
  * AES-CBC before AES-GCM for compatibility reasons.
  * </p>
+ * <p>
+ * The configuration also supports ECDH-ES key agreement (XML Encryption 1.1 {@code AgreementMethod}) in combination
+ * with AES key wrap. This is used when a peer publishes an EC encryption key in its metadata, and is much cheaper for
+ * the decrypting party than RSA key transport. The key agreement algorithm and the preferred key wrap algorithms may
+ * be changed using {@link #setKeyAgreementAlgorithm(String)} and {@link #setKeyWrapAlgorithms(List)}. These setters
+ * must be invoked before the encryption configuration is used.
+ * </p>
  *
  * @author Martin Lindström (martin@idsec.se)
  */
 public class SwedishEidSecurityConfiguration extends SAML2IntSecurityConfiguration {
 
+  /** The default key agreement algorithm. */
+  public static final String DEFAULT_KEY_AGREEMENT_ALGORITHM = EncryptionConstants.ALGO_ID_KEYAGREEMENT_ECDH_ES;
+
+  /** The default key wrap algorithms (in order of preference) used together with key agreement. */
+  public static final List<String> DEFAULT_KEY_WRAP_ALGORITHMS = List.of(
+      EncryptionConstants.ALGO_ID_KEYWRAP_AES256,
+      EncryptionConstants.ALGO_ID_KEYWRAP_AES192,
+      EncryptionConstants.ALGO_ID_KEYWRAP_AES128);
+
+  /** The key agreement algorithm to use for EC keys ({@code null} disables key agreement). */
+  private String keyAgreementAlgorithm = DEFAULT_KEY_AGREEMENT_ALGORITHM;
+
+  /** The key wrap algorithms to use together with key agreement. */
+  private List<String> keyWrapAlgorithms = DEFAULT_KEY_WRAP_ALGORITHMS;
+
   /** {@inheritDoc} */
   @Override
   public String getProfileName() {
@@ -57,7 +88,46 @@ public class SwedishEidSecurityConfiguration extends SAML2IntSecurityConfigurati
         EncryptionConstants.ALGO_ID_BLOCKCIPHER_AES128_GCM,
         EncryptionConstants.ALGO_ID_BLOCKCIPHER_TRIPLEDES));
 
+    if (this.keyAgreementAlgorithm != null && !this.keyWrapAlgorithms.isEmpty()) {
+      // The key wrap algorithms are placed after the key transport algorithms. They will only be selected for
+      // credentials for which a key agreement configuration exists, i.e., EC keys.
+      //
+      final List<String> keyTransportAlgorithms = new ArrayList<>(config.getKeyTransportEncryptionAlgorithms());
+      keyTransportAlgorithms.removeAll(this.keyWrapAlgorithms);
+      keyTransportAlgorithms.addAll(this.keyWrapAlgorithms);
+      config.setKeyTransportEncryptionAlgorithms(keyTransportAlgorithms);
+
+      final KeyAgreementEncryptionConfiguration ecConfig = new KeyAgreementEncryptionConfiguration();
+      ecConfig.setAlgorithm(this.keyAgreementAlgorithm);
+      ecConfig.setParameters(Set.of(new KeyWrap(), new ConcatKDF()));
+
+      final Map<String, KeyAgreementEncryptionConfiguration> keyAgreementConfigurations =
+          new HashMap<>(config.getKeyAgreementConfigurations());
+      keyAgreementConfigurations.put(JCAConstants.KEY_ALGO_EC, ecConfig);
+      config.setKeyAgreementConfigurations(keyAgreementConfigurations);
+    }
+
     return config;
   }
 
+  /**
+   * Assigns the key agreement algorithm to use when encrypting for a peer having an EC encryption key. The default is
+   * {@link #DEFAULT_KEY_AGREEMENT_ALGORITHM}. If {@code null} is assigned, key agreement will not be configured.
+   *
+   * @param keyAgreementAlgorithm the key agreement algorithm URI
+   */
+  public void setKeyAgreementAlgorithm(final String keyAgreementAlgorithm) {
+    this.keyAgreementAlgorithm = keyAgreementAlgorithm;
+  }
+
+  /**
+   * Assigns the key wrap algorithms (in order of preference) to use together with key agreement. The default is
+   * {@link #DEFAULT_KEY_WRAP_ALGORITHMS}.
+   *
+   * @param keyWrapAlgorithms a list of key wrap algorithm URIs
+   */
+  public void setKeyWrapAlgorithms(final List<String> keyWrapAlgorithms) {
+    this.keyWrapAlgorithms = keyWrapAlgorithms != null ? List.copyOf(keyWrapAlgorithms) : List.of();
+  }
+
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.request;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.Extensions;
+
+import se.swedenconnect.opensaml.saml2.core.build.AuthnRequestBuilder;
+import se.swedenconnect.opensaml.saml2.core.build.RequestedAuthnContextBuilder;
+import se.swedenconnect.opensaml.sweid.OpenSAMLTestBase;
+import se.swedenconnect.opensaml.sweid.saml2.authn.LevelOfAssuranceUris;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.build.SADRequestBuilder;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SADVersion;
+
+/**
+ * Test cases for {@link InMemoryPendingRequestStore} and {@link FilePendingRequestStore}.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class PendingRequestStoreTest extends OpenSAMLTestBase {
+
+  @TempDir
+  Path tempDir;
+
+  /**
+   * Tests that a request can only be consumed once, and not after it has expired.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testInMemory() throws Exception {
+    InMemoryPendingRequestStore store = new InMemoryPendingRequestStore(Duration.ofMinutes(5), 100, 4);
+    store.store(new AuthnRequestSnapshot(buildAuthnRequest("ID1", true)));
+    store.store(new AuthnRequestSnapshot(buildAuthnRequest("ID2", false)));
+
+    AuthnRequestSnapshot snapshot = store.consume("ID1");
+    Assertions.assertNotNull(snapshot);
+    Assertions.assertEquals("ID1", snapshot.getId());
+    Assertions.assertEquals("SADREQ", snapshot.getSadRequestID());
+    Assertions.assertEquals(Integer.valueOf(2), snapshot.getDocCount());
+    Assertions.assertEquals(1, snapshot.getRequestedAuthnContextClassRefs().size());
+    Assertions.assertNull(store.consume("ID1"));
+    Assertions.assertNull(store.consume("ID3"));
+
+    store.setClock(Clock.fixed(Instant.now().plus(Duration.ofMinutes(10)), ZoneOffset.UTC));
+    Assertions.assertNull(store.consume("ID2"));
+  }
+
+  /**
+   * Tests that the store is bounded.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testBounded() throws Exception {
+    InMemoryPendingRequestStore store = new InMemoryPendingRequestStore(Duration.ofMinutes(5), 10, 1);
+    for (int i = 0; i < 20; i++) {
+      store.store(new AuthnRequestSnapshot(buildAuthnRequest("ID" + i, false)));
+    }
+    Assertions.assertEquals(10, store.size());
+    Assertions.assertNotNull(store.consume("ID19"));
+  }
+
+  /**
+   * Tests that pending requests survive a restart when using the file-backed store.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testFile() throws Exception {
+    Path file = this.tempDir.resolve("pending.bin");
+    try (FilePendingRequestStore store = new FilePendingRequestStore(file)) {
+      for (int i = 0; i < 2000; i++) {
+        store.store(new AuthnRequestSnapshot(buildAuthnRequest("ID" + i, i % 2 == 0)));
+      }
+      for (int i = 0; i < 1990; i++) {
+        Assertions.assertNotNull(store.consume("ID" + i));
+      }
+    }
+    try (FilePendingRequestStore store = new FilePendingRequestStore(file)) {
+      Assertions.assertEquals(10, store.size());
+      Assertions.assertNull(store.consume("ID1"));
+      AuthnRequestSnapshot snapshot = store.consume("ID1998");
+      Assertions.assertNotNull(snapshot);
+      Assertions.assertEquals("SADREQ", snapshot.getSadRequestID());
+      Assertions.assertEquals("SIGNREQ", snapshot.getSignRequestID());
+      Assertions.assertEquals(LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3,
+          snapshot.getRequestedAuthnContextClassRefs().get(0));
+      snapshot = store.consume("ID1999");
+      Assertions.assertNotNull(snapshot);
+      Assertions.assertFalse(snapshot.hasSADRequest());
+    }
+    try (FilePendingRequestStore store = new FilePendingRequestStore(file)) {
+      Assertions.assertEquals(8, store.size());
+    }
+  }
+
+  /**
+   * Tests that the journal is compacted when requests expire without being consumed, and that the request whose store
+   * triggered the compaction is kept.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testFileCompactExpired() throws Exception {
+    Path file = this.tempDir.resolve("pending-expired.bin");
+    Instant start = Instant.now();
+    try (FilePendingRequestStore store = new FilePendingRequestStore(file, Duration.ofMinutes(5), 10_000, 4)) {
+      store.setClock(Clock.fixed(start, ZoneOffset.UTC));
+      for (int i = 0; i < 1500; i++) {
+        store.store(new AuthnRequestSnapshot(buildAuthnRequest("ID" + i, false)));
+      }
+      final long fullSize = Files.size(file);
+
+      // All requests expire without being consumed ...
+      store.setClock(Clock.fixed(start.plus(Duration.ofMinutes(10)), ZoneOffset.UTC));
+      store.store(new AuthnRequestSnapshot(buildAuthnRequest("NEW", true)));
+      Assertions.assertTrue(Files.size(file) < fullSize / 100);
+    }
+    try (FilePendingRequestStore store = new FilePendingRequestStore(file)) {
+      Assertions.assertEquals(1, store.size());
+      Assertions.assertNotNull(store.consume("NEW"));
+    }
+  }
+
+  /**
+   * Tests that requests that are consumed concurrently with being stored are not restored after a restart.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testFileConcurrent() throws Exception {
+    final int count = 2000;
+    final List<AuthnRequestSnapshot> snapshots = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      snapshots.add(new AuthnRequestSnapshot(buildAuthnRequest("ID" + i, false)));
+    }
+
+    Path file = this.tempDir.resolve("pending-concurrent.bin");
+    try (FilePendingRequestStore store = new FilePendingRequestStore(file)) {
+      final ExecutorService executor = Executors.newFixedThreadPool(4);
+      try {
+        final Future<?> producer = executor.submit(() -> snapshots.forEach(store::store));
+        final List<Future<Integer>> consumers = new ArrayList<>();
+        for (int c = 0; c < 2; c++) {
+          final int offset = c;
+          consumers.add(executor.submit(() -> {
+            int consumed = 0;
+            for (int i = offset; i < count; i += 2) {
+              while (store.consume("ID" + i) == null) {
+                Thread.onSpinWait();
+              }
+              consumed++;
+            }
+            return consumed;
+          }));
+        }
+        producer.get(30, TimeUnit.SECONDS);
+        int consumed = 0;
+        for (final Future<Integer> f : consumers) {
+          consumed += f.get(30, TimeUnit.SECONDS);
+        }
+        Assertions.assertEquals(count, consumed);
+      }
+      finally {
+        executor.shutdownNow();
+      }
+    }
+    try (FilePendingRequestStore store = new FilePendingRequestStore(file)) {
+      Assertions.assertEquals(0, store.size());
+      for (int i = 0; i < count; i++) {
+        Assertions.assertNull(store.consume("ID" + i));
+      }
+    }
+  }
+
+  private static AuthnRequest buildAuthnRequest(final String id, final boolean sadRequest) {
+    AuthnRequestBuilder builder = AuthnRequestBuilder.builder()
+        .id(id)
+        .issuer("http://www.example.com/sp")
+        .requestedAuthnContext(RequestedAuthnContextBuilder.builder()
+            .authnContextClassRefs(LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3)
+            .build());
+
+    if (sadRequest) {
+      Extensions exts = (Extensions) XMLObjectSupport.buildXMLObject(Extensions.DEFAULT_ELEMENT_NAME);
+      exts.getUnknownXMLObjects().add(SADRequestBuilder.builder()
+          .id("SADREQ")
+          .requesterID("http://www.example.com/sp")
+          .signRequestID("SIGNREQ")
+          .docCount(2)
+          .requestedVersion(SADVersion.VERSION_10)
+          .build());
+      builder = builder.extensions(exts);
+    }
+    return builder.build();
+  }
+
+}
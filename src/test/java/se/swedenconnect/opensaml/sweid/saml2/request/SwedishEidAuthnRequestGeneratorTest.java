@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.request;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.x509.X509Credential;
+import org.springframework.core.io.ClassPathResource;
+
+import se.swedenconnect.opensaml.saml2.metadata.provider.MetadataProvider;
+import se.swedenconnect.opensaml.saml2.metadata.provider.StaticMetadataProvider;
+import se.swedenconnect.opensaml.sweid.OpenSAMLTestBase;
+import se.swedenconnect.opensaml.sweid.saml2.authn.LevelOfAssuranceUris;
+import se.swedenconnect.opensaml.sweid.saml2.metadata.entitycategory.EntityCategoryConstants;
+
+/**
+ * Test cases for {@link SwedishEidAuthnRequestGenerator}.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class SwedishEidAuthnRequestGeneratorTest extends OpenSAMLTestBase {
+
+  private static final String SP_ENTITYID = "http://www.example.com/sp";
+  private static final String IDP_ENTITYID = "https://idp.svelegtest.se/idp";
+  private static final String LOA3_SIGM = "http://id.elegnamnden.se/loa/1.0/loa3-sigm";
+
+  /**
+   * Tests that the filtered assurance certification URIs and the UserMessage support are cached per IdP metadata
+   * instance, and that deprecated "sigm" URIs are removed.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testIdpCapabilities() throws Exception {
+    final EntityDescriptor idpMetadata = buildIdpMetadata(true);
+    final SwedishEidAuthnRequestGenerator generator = this.createGenerator(idpMetadata);
+    final SwedishEidAuthnRequestGeneratorContext context = new SwedishEidAuthnRequestGeneratorContext() {
+    };
+
+    final List<String> uris = generator.getAssuranceCertificationUris(idpMetadata, context);
+    Assertions.assertEquals(List.of(LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3), uris);
+    Assertions.assertTrue(generator.supportsUserMessage(idpMetadata));
+
+    // Cache hit
+    Assertions.assertSame(uris, generator.getAssuranceCertificationUris(idpMetadata, context));
+
+    // A new metadata instance (e.g., after a refresh) is re-calculated
+    final EntityDescriptor refreshedMetadata = buildIdpMetadata(false);
+    final List<String> uris2 = generator.getAssuranceCertificationUris(refreshedMetadata, context);
+    Assertions.assertEquals(uris, uris2);
+    Assertions.assertNotSame(uris, uris2);
+    Assertions.assertFalse(generator.supportsUserMessage(refreshedMetadata));
+    Assertions.assertSame(uris2, generator.getAssuranceCertificationUris(refreshedMetadata, context));
+  }
+
+  private SwedishEidAuthnRequestGenerator createGenerator(final EntityDescriptor idpMetadata) throws Exception {
+    final X509Credential credential = loadKeyStoreCredential(
+        new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "litsec_saml_signing", "secret");
+    final MetadataProvider provider = new StaticMetadataProvider(idpMetadata);
+    provider.initialize();
+    return new SwedishEidAuthnRequestGenerator(SP_ENTITYID, credential, provider.getMetadataResolver());
+  }
+
+  private static EntityDescriptor buildIdpMetadata(final boolean userMessage) throws Exception {
+    final String xml = """
+        <md:EntityDescriptor xmlns:md="urn:oasis:names:tc:SAML:2.0:metadata"
+            xmlns:mdattr="urn:oasis:names:tc:SAML:metadata:attribute"
+            xmlns:saml="urn:oasis:names:tc:SAML:2.0:assertion" entityID="%s">
+          <md:Extensions>
+            <mdattr:EntityAttributes>
+              <saml:Attribute Name="urn:oasis:names:tc:SAML:attribute:assurance-certification"
+                  NameFormat="urn:oasis:names:tc:SAML:2.0:attrname-format:uri">
+                <saml:AttributeValue>%s</saml:AttributeValue>
+                <saml:AttributeValue>%s</saml:AttributeValue>
+              </saml:Attribute>
+              <saml:Attribute Name="http://macedir.org/entity-category"
+                  NameFormat="urn:oasis:names:tc:SAML:2.0:attrname-format:uri">
+                <saml:AttributeValue>%s</saml:AttributeValue>
+              </saml:Attribute>
+            </mdattr:EntityAttributes>
+          </md:Extensions>
+          <md:IDPSSODescriptor protocolSupportEnumeration="urn:oasis:names:tc:SAML:2.0:protocol">
+            <md:SingleSignOnService Binding="urn:oasis:names:tc:SAML:2.0:bindings:HTTP-Redirect"
+                Location="https://idp.svelegtest.se/idp/sso"/>
+          </md:IDPSSODescriptor>
+        </md:EntityDescriptor>
+        """.formatted(IDP_ENTITYID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3, LOA3_SIGM,
+        userMessage
+            ? EntityCategoryConstants.GENERAL_CATEGORY_SUPPORTS_USER_MESSAGE.getUri()
+            : EntityCategoryConstants.SERVICE_TYPE_CATEGORY_SIGSERVICE.getUri());
+    return unmarshall(new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), EntityDescriptor.class);
+  }
+
+}
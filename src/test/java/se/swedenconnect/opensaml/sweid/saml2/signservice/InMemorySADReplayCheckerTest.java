@@ -0,0 +1,128 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test cases for {@link InMemorySADReplayChecker}.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class InMemorySADReplayCheckerTest {
+
+  private static final String ISSUER = "https://idp.svelegtest.se/idp";
+
+  /**
+   * Tests recording and detection of replays.
+   */
+  @Test
+  public void testReplay() {
+    InMemorySADReplayChecker checker = new InMemorySADReplayChecker();
+
+    Assertions.assertTrue(checker.checkAndRecord(ISSUER, "abc", 100, 10));
+    Assertions.assertFalse(checker.checkAndRecord(ISSUER, "abc", 100, 50));
+    Assertions.assertTrue(checker.checkAndRecord("https://other.example.com/idp", "abc", 100, 50));
+
+    // After the entry has expired, the same ID is accepted again.
+    Assertions.assertTrue(checker.checkAndRecord(ISSUER, "abc", 300, 200));
+    Assertions.assertFalse(checker.checkAndRecord(ISSUER, "abc", 300, 200));
+  }
+
+  /**
+   * Tests that the number of entries is bounded.
+   */
+  @Test
+  public void testBounded() {
+    InMemorySADReplayChecker checker = new InMemorySADReplayChecker(16, 4);
+
+    for (int i = 0; i < 100; i++) {
+      Assertions.assertTrue(checker.checkAndRecord(ISSUER, "id-" + i, 100, 10));
+    }
+    Assertions.assertTrue(checker.size() <= 16);
+
+    // When the entries have expired they are purged ...
+    for (int i = 0; i < 100; i++) {
+      checker.checkAndRecord(ISSUER, "new-id-" + i, 300, 200);
+    }
+    Assertions.assertTrue(checker.size() <= 16);
+  }
+
+  /**
+   * Tests that a new SAD is accepted when a stripe is full of live entries, and that the entry that expires first is
+   * evicted.
+   */
+  @Test
+  public void testFullStripe() {
+    InMemorySADReplayChecker checker = new InMemorySADReplayChecker(4, 1);
+    for (int i = 0; i < 4; i++) {
+      Assertions.assertTrue(checker.checkAndRecord(ISSUER, "id-" + i, 100 + i, 10));
+    }
+    Assertions.assertEquals(4, checker.size());
+
+    Assertions.assertTrue(checker.checkAndRecord(ISSUER, "new-id", 200, 20));
+    Assertions.assertEquals(4, checker.size());
+    Assertions.assertFalse(checker.checkAndRecord(ISSUER, "new-id", 200, 20));
+
+    // id-0 expired first and was evicted, the others are still recorded
+    for (int i = 1; i < 4; i++) {
+      Assertions.assertFalse(checker.checkAndRecord(ISSUER, "id-" + i, 100 + i, 20));
+    }
+    Assertions.assertTrue(checker.checkAndRecord(ISSUER, "id-0", 100, 20));
+    Assertions.assertEquals(4, checker.size());
+
+    // A new entry that expires before all others is kept, and the next entry is evicted
+    Assertions.assertTrue(checker.checkAndRecord(ISSUER, "short", 50, 20));
+    Assertions.assertFalse(checker.checkAndRecord(ISSUER, "short", 50, 20));
+    Assertions.assertEquals(4, checker.size());
+  }
+
+  /**
+   * Tests that only one of several concurrent calls is accepted.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testConcurrent() throws Exception {
+    InMemorySADReplayChecker checker = new InMemorySADReplayChecker();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Callable<Boolean>> tasks = new ArrayList<>();
+      for (int i = 0; i < 8; i++) {
+        tasks.add(() -> checker.checkAndRecord(ISSUER, "shared", 100, 10));
+      }
+      int accepted = 0;
+      for (Future<Boolean> f : executor.invokeAll(tasks)) {
+        if (f.get()) {
+          accepted++;
+        }
+      }
+      Assertions.assertEquals(1, accepted);
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+}
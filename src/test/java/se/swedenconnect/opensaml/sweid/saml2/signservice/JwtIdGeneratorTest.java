@@ -0,0 +1,70 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test cases for {@link SecureRandomJwtIdGenerator} and {@link TimeOrderedJwtIdGenerator}.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class JwtIdGeneratorTest {
+
+  /**
+   * Tests the alphabets and uniqueness of generated identifiers.
+   */
+  @Test
+  public void testSecureRandom() {
+    JwtIdGenerator generator = new SecureRandomJwtIdGenerator();
+    Set<String> ids = new HashSet<>();
+    for (int i = 0; i < 1000; i++) {
+      String id = generator.generate(24);
+      Assertions.assertEquals(24, id.length());
+      Assertions.assertTrue(id.matches("[A-Za-z0-9]+"));
+      Assertions.assertTrue(ids.add(id));
+    }
+
+    generator = new SecureRandomJwtIdGenerator(SecureRandomJwtIdGenerator.Alphabet.BASE64URL);
+    for (int i = 0; i < 1000; i++) {
+      String id = generator.generate(500);
+      Assertions.assertEquals(500, id.length());
+      Assertions.assertTrue(id.matches("[A-Za-z0-9_-]+"));
+    }
+  }
+
+  /**
+   * Tests that time-ordered identifiers sort in creation order.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testTimeOrdered() throws Exception {
+    JwtIdGenerator generator = new TimeOrderedJwtIdGenerator();
+    String id1 = generator.generate(24);
+    Thread.sleep(5);
+    String id2 = generator.generate(24);
+    Assertions.assertEquals(24, id1.length());
+    Assertions.assertTrue(id1.compareTo(id2) < 0);
+
+    Assertions.assertThrows(IllegalArgumentException.class, () -> generator.generate(TimeOrderedJwtIdGenerator.TIME_LENGTH));
+  }
+
+}
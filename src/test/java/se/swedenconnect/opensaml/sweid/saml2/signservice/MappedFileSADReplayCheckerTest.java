@@ -0,0 +1,121 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test cases for {@link MappedFileSADReplayChecker}.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class MappedFileSADReplayCheckerTest {
+
+  private static final String ISSUER = "https://idp.svelegtest.se/idp";
+
+  @TempDir
+  Path tempDir;
+
+  /**
+   * Tests that two checkers using the same file share the replay state.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testShared() throws Exception {
+    Path file = this.tempDir.resolve("sad-replay.bin");
+    MappedFileSADReplayChecker checker1 = new MappedFileSADReplayChecker(file, 1000);
+    MappedFileSADReplayChecker checker2 = new MappedFileSADReplayChecker(file, 10);
+
+    Assertions.assertEquals(1024, checker1.getSlots());
+    Assertions.assertEquals(1024, checker2.getSlots());
+
+    Assertions.assertTrue(checker1.checkAndRecord(ISSUER, "abc", 100, 10));
+    Assertions.assertFalse(checker2.checkAndRecord(ISSUER, "abc", 100, 10));
+    Assertions.assertTrue(checker2.checkAndRecord("https://other.example.com/idp", "abc", 100, 10));
+
+    // After the entry has expired, its slot may be re-used.
+    Assertions.assertTrue(checker2.checkAndRecord(ISSUER, "abc", 300, 200));
+    Assertions.assertFalse(checker1.checkAndRecord(ISSUER, "abc", 300, 200));
+  }
+
+  /**
+   * Tests that the checker fails closed when it is full.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testFull() throws Exception {
+    MappedFileSADReplayChecker checker = new MappedFileSADReplayChecker(this.tempDir.resolve("small.bin"), 4);
+    for (int i = 0; i < 4; i++) {
+      Assertions.assertTrue(checker.checkAndRecord(ISSUER, "id-" + i, 100, 10));
+    }
+    Assertions.assertFalse(checker.checkAndRecord(ISSUER, "id-4", 100, 10));
+    Assertions.assertTrue(checker.checkAndRecord(ISSUER, "id-4", 300, 200));
+  }
+
+  /**
+   * Tests that a file that is not a replay file is rejected.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testBadFile() throws Exception {
+    Path file = this.tempDir.resolve("bad.bin");
+    Files.write(file, new byte[128]);
+    Assertions.assertThrows(java.io.IOException.class, () -> new MappedFileSADReplayChecker(file));
+  }
+
+  /**
+   * Tests concurrent use from several threads and checker instances.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testConcurrent() throws Exception {
+    Path file = this.tempDir.resolve("concurrent.bin");
+    MappedFileSADReplayChecker[] checkers = {
+        new MappedFileSADReplayChecker(file, 1 << 16), new MappedFileSADReplayChecker(file) };
+
+    AtomicIntegerArray accepted = new AtomicIntegerArray(5000);
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    for (int t = 0; t < 8; t++) {
+      MappedFileSADReplayChecker checker = checkers[t % 2];
+      executor.submit(() -> {
+        for (int i = 0; i < accepted.length(); i++) {
+          if (checker.checkAndRecord(ISSUER, "id-" + i, 1000, 500)) {
+            accepted.incrementAndGet(i);
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    Assertions.assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+    for (int i = 0; i < accepted.length(); i++) {
+      Assertions.assertTrue(accepted.get(i) <= 1, "SAD accepted more than once");
+    }
+  }
+
+}
@@ -18,13 +18,18 @@ package se.swedenconnect.opensaml.sweid.saml2.signservice;
 import java.nio.charset.Charset;
 import java.security.KeyStore;
 import java.security.PublicKey;
+import java.security.SignatureException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Base64;
+import java.util.List;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.opensaml.security.x509.impl.KeyStoreX509CredentialAdapter;
 import org.springframework.core.io.ClassPathResource;
 
+import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.jose.JWSVerifier;
 import com.nimbusds.jose.crypto.factories.DefaultJWSVerifierFactory;
 import com.nimbusds.jose.proc.JWSVerifierFactory;
@@ -82,4 +87,67 @@ public class SADFactoryTest {
     Assertions.assertTrue(verifier.verify(signedJwt.getHeader(), signedJwt.getSigningInput(), signedJwt.getSignature()));
   }
 
+  /**
+   * Tests creating SAD JWT:s using EC and Ed25519 keys and validating them using a validator holding certificates of
+   * different key types.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void createSignedJwtECAndEdDSA() throws Exception {
+    KeyStore keyStore = OpenSAMLTestBase.loadKeyStore(new ClassPathResource("sad-signing.p12").getInputStream(), "secret", "PKCS12");
+    KeyStore rsaKeyStore = OpenSAMLTestBase.loadKeyStore(new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "JKS");
+
+    List<X509Certificate> certificates = new ArrayList<>();
+    certificates.add(new KeyStoreX509CredentialAdapter(rsaKeyStore, "litsec_saml_signing", "secret".toCharArray()).getEntityCertificate());
+
+    String[] aliases = { "ec-p256", "ec-p384", "ed25519" };
+    JWSAlgorithm[] algorithms = { JWSAlgorithm.ES256, JWSAlgorithm.ES384, JWSAlgorithm.EdDSA };
+    List<SADFactory> factories = new ArrayList<>();
+    for (String alias : aliases) {
+      KeyStoreX509CredentialAdapter credential = new KeyStoreX509CredentialAdapter(keyStore, alias, "secret".toCharArray());
+      certificates.add(credential.getEntityCertificate());
+      factories.add(new SADFactory("https://idp.svelegtest.se/idp", credential));
+    }
+
+    SADParser.SADValidator validator = SADParser.getValidator(certificates.toArray(X509Certificate[]::new));
+
+    for (int i = 0; i < aliases.length; i++) {
+      SADFactory factory = factories.get(i);
+      SAD sad = factory.getBuilder()
+          .subject("196302052383")
+          .audience("http://www.example.com/sigservice")
+          .inResponseTo("_a74a068d0548a919e503e5f9ef901851")
+          .loa(LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3)
+          .requestID("f6e7d061a23293b0053dc7b038a04dad")
+          .numberOfDocuments(1)
+          .buildSAD();
+
+      // Create two JWT:s to make sure that the signer can be re-used ...
+      for (int j = 0; j < 2; j++) {
+        String jwt = factory.createJwt(sad);
+        SignedJWT signedJwt = SignedJWT.parse(jwt);
+        Assertions.assertEquals(algorithms[i], signedJwt.getHeader().getAlgorithm());
+        Assertions.assertEquals(sad, SADParser.parse(jwt));
+        validator.verifyJwtSignature(jwt, "https://idp.svelegtest.se/idp");
+      }
+
+      // Changing the configuration should give a new header
+      factory.setIncludeKeyId(true);
+      SignedJWT signedJwt = SignedJWT.parse(factory.createJwt(sad));
+      Assertions.assertEquals(SADFactory.calculateKeyId(certificates.get(i + 1)), signedJwt.getHeader().getKeyID());
+      validator.verifyJwtSignature(signedJwt.serialize(), "https://idp.svelegtest.se/idp");
+    }
+
+    // An algorithm that does not match the key type
+    SADFactory factory = factories.get(0);
+    factory.setJwtSigningAlgorithm("RS256");
+    try {
+      factory.createJwt(new SAD());
+      Assertions.fail("Expected SignatureException");
+    }
+    catch (SignatureException e) {
+    }
+  }
+
 }
@@ -15,10 +15,22 @@
  */
 package se.swedenconnect.opensaml.sweid.saml2.signservice;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.security.KeyStore;
 import java.security.cert.X509Certificate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -31,14 +43,26 @@ import org.opensaml.saml.saml2.core.AuthnRequest;
 import org.opensaml.saml.saml2.core.AuthnStatement;
 import org.opensaml.saml.saml2.core.Extensions;
 import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.UsageType;
 import org.opensaml.security.x509.impl.KeyStoreX509CredentialAdapter;
 import org.springframework.core.io.ClassPathResource;
 
+import com.nimbusds.jose.JWSAlgorithm;
+import com.nimbusds.jose.JWSHeader;
+import com.nimbusds.jwt.SignedJWT;
+
 import se.swedenconnect.opensaml.saml2.attribute.AttributeBuilder;
 import se.swedenconnect.opensaml.saml2.core.build.AuthnRequestBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.EntityDescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.IDPSSODescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.KeyDescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.provider.MetadataProvider;
+import se.swedenconnect.opensaml.saml2.metadata.provider.StaticMetadataProvider;
 import se.swedenconnect.opensaml.sweid.OpenSAMLTestBase;
 import se.swedenconnect.opensaml.sweid.saml2.attribute.AttributeConstants;
 import se.swedenconnect.opensaml.sweid.saml2.authn.LevelOfAssuranceUris;
+import se.swedenconnect.opensaml.sweid.saml2.request.AuthnRequestSnapshot;
 import se.swedenconnect.opensaml.sweid.saml2.signservice.SADParser.SADValidator;
 import se.swedenconnect.opensaml.sweid.saml2.signservice.SADValidationException.ErrorCode;
 import se.swedenconnect.opensaml.sweid.saml2.signservice.build.SADRequestBuilder;
@@ -102,6 +126,75 @@ public class SADParserTest extends OpenSAMLTestBase {
     Assertions.assertEquals(sad, sad2);
   }
 
+  /**
+   * Tests that the IdP keys are selected based on the JWS header algorithm, and that algorithms not supported by any
+   * key are rejected.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testKeySelectionByAlgorithm() throws Exception {
+    final SADVerifierCache.IdpKeys keys = new SADVerifierCache.IdpKeys(List.of(
+        new SADVerifierCache.VerificationKey(this.validationCertificate),
+        new SADVerifierCache.VerificationKey(this.wrongValidationCertificate)));
+
+    Assertions.assertEquals(2, keys.getKeys(new JWSHeader(JWSAlgorithm.RS256)).size());
+    Assertions.assertEquals(2, keys.getKeys(new JWSHeader(JWSAlgorithm.PS512)).size());
+    Assertions.assertTrue(keys.getKeys(new JWSHeader(JWSAlgorithm.ES256)).isEmpty());
+    for (int i = 0; i < 100; i++) {
+      Assertions.assertTrue(keys.getKeys(new JWSHeader(new JWSAlgorithm("XX" + i))).isEmpty());
+    }
+  }
+
+  /**
+   * Tests that IdP:s that are not found in the metadata are remembered, so that the metadata provider is only queried
+   * once for an unknown IdP.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testUnknownIdpCached() throws Exception {
+    final EntityDescriptor idpMetadata = EntityDescriptorBuilder.builder()
+        .entityID(IDP_ENTITYID)
+        .ssoDescriptor(IDPSSODescriptorBuilder.builder()
+            .keyDescriptors(KeyDescriptorBuilder.builder()
+                .use(UsageType.SIGNING)
+                .certificate(new ClassPathResource("Litsec_SAML_Signing.crt").getInputStream())
+                .build())
+            .build())
+        .build();
+    final MetadataProvider delegate = new StaticMetadataProvider(idpMetadata);
+    delegate.initialize();
+
+    final AtomicInteger lookups = new AtomicInteger();
+    final MetadataProvider provider = (MetadataProvider) Proxy.newProxyInstance(
+        MetadataProvider.class.getClassLoader(), new Class<?>[] { MetadataProvider.class },
+        (proxy, method, args) -> {
+          if ("getEntityDescriptor".equals(method.getName())) {
+            lookups.incrementAndGet();
+          }
+          try {
+            return method.invoke(delegate, args);
+          }
+          catch (InvocationTargetException e) {
+            throw e.getCause();
+          }
+        });
+
+    final SADVerifierCache cache = new SADVerifierCache(provider);
+    Assertions.assertFalse(cache.getKeys(IDP_ENTITYID).isEmpty());
+    Assertions.assertEquals(0, lookups.get());
+
+    for (int i = 0; i < 10; i++) {
+      Assertions.assertTrue(cache.getKeys("http://www.bogus.example.com").isEmpty());
+    }
+    Assertions.assertEquals(1, lookups.get());
+
+    Assertions.assertTrue(cache.getKeys("http://www.other-bogus.example.com").isEmpty());
+    Assertions.assertEquals(2, lookups.get());
+    Assertions.assertFalse(cache.getKeys(IDP_ENTITYID).isEmpty());
+  }
+
   /**
    * Tests validation of SAD by supplying expected parameters.
    *
@@ -119,6 +212,79 @@ public class SADParserTest extends OpenSAMLTestBase {
         SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
   }
 
+  /**
+   * Tests validation of SADs using a validator that reads the IdP signing certificate from metadata. The second
+   * validation will use the cached verifier.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testValidateMetadata() throws Exception {
+
+    final EntityDescriptor idpMetadata = EntityDescriptorBuilder.builder()
+        .entityID(IDP_ENTITYID)
+        .ssoDescriptor(IDPSSODescriptorBuilder.builder()
+            .keyDescriptors(KeyDescriptorBuilder.builder()
+                .use(UsageType.SIGNING)
+                .certificate(new ClassPathResource("Litsec_SAML_Signing.crt").getInputStream())
+                .build())
+            .build())
+        .build();
+
+    SADValidator validator = SADParser.getValidator(idpMetadata);
+
+    for (int i = 0; i < 2; i++) {
+      String jwt = this.sadFactory.createJwt(this.getTestSAD());
+      validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3,
+          SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+    }
+
+    try {
+      validator.verifyJwtSignature(this.sadFactory.createJwt(this.getTestSAD()), "http://www.anotheridp.se");
+      Assertions.fail("Expected SADValidationException - SIGNATURE_VALIDATION_ERROR");
+    }
+    catch (SADValidationException e) {
+      Assertions.assertEquals(ErrorCode.SIGNATURE_VALIDATION_ERROR, e.getErrorCode(),
+          "Expected error code SIGNATURE_VALIDATION_ERROR");
+    }
+  }
+
+  /**
+   * Tests that the validator selects the correct key when the JWS header contains kid and x5t#S256.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testValidateKeySelection() throws Exception {
+
+    KeyStore keyStore =
+        loadKeyStore(new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "JKS");
+    KeyStoreX509CredentialAdapter credential =
+        new KeyStoreX509CredentialAdapter(keyStore, "litsec_saml_signing", "secret".toCharArray());
+
+    SADFactory factory = new SADFactory(IDP_ENTITYID, credential);
+    factory.setIncludeKeyId(true);
+    factory.setIncludeCertificateThumbprint(true);
+
+    SAD sad = factory.getBuilder()
+        .subject(USER_ID)
+        .audience(SIGNSERVICE_ENTITYID)
+        .inResponseTo(SAD_REQUEST_ID)
+        .loa(LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3)
+        .requestID(SIGN_REQUEST_ID)
+        .numberOfDocuments(1)
+        .buildSAD();
+    String jwt = factory.createJwt(sad);
+
+    SignedJWT signedJwt = SignedJWT.parse(jwt);
+    Assertions.assertEquals(SADFactory.calculateKeyId(this.validationCertificate), signedJwt.getHeader().getKeyID());
+    Assertions.assertNotNull(signedJwt.getHeader().getX509CertSHA256Thumbprint());
+
+    SADValidator validator = SADParser.getValidator(this.wrongValidationCertificate, this.validationCertificate);
+    validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3,
+        SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+  }
+
   /**
    * Tests validation of SAD by supplying an {@code AuthnRequest}.
    *
@@ -147,6 +313,100 @@ public class SADParserTest extends OpenSAMLTestBase {
     validator.validate(authnRequest, assertion);
   }
 
+  /**
+   * Tests validation of SAD by supplying an {@code AuthnRequestSnapshot}.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testValidateAuthnRequestSnapshot() throws Exception {
+
+    SADRequest sadRequest = SADRequestBuilder.builder()
+        .id(SAD_REQUEST_ID)
+        .requesterID(SIGNSERVICE_ENTITYID)
+        .signRequestID(SIGN_REQUEST_ID)
+        .docCount(1)
+        .requestedVersion(SADVersion.VERSION_10)
+        .build();
+    AuthnRequestSnapshot snapshot = new AuthnRequestSnapshot(buildAuthnRequest(sadRequest));
+    Assertions.assertTrue(snapshot.hasSADRequest());
+    Assertions.assertEquals(SAD_REQUEST_ID, snapshot.getSadRequestID());
+    Assertions.assertEquals(Integer.valueOf(1), snapshot.getDocCount());
+
+    Assertion assertion = buildAssertion(IDP_ENTITYID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3);
+    addAttribute(assertion, AttributeConstants.ATTRIBUTE_NAME_PERSONAL_IDENTITY_NUMBER, USER_ID);
+    addAttribute(assertion, AttributeConstants.ATTRIBUTE_NAME_SAD, this.sadFactory.createJwt(this.getTestSAD()));
+
+    SADValidator validator = SADParser.getValidator(this.validationCertificate);
+    validator.validate(snapshot, assertion);
+
+    try {
+      validator.validate(new AuthnRequestSnapshot(buildAuthnRequest(null)), assertion);
+      Assertions.fail("Expected IllegalArgumentException");
+    }
+    catch (IllegalArgumentException e) {
+    }
+  }
+
+  /**
+   * Tests validation of SAD by supplying an {@code AuthnRequest} and already resolved IdP metadata.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testValidateAuthnRequestWithMetadata() throws Exception {
+
+    final EntityDescriptor idpMetadata = EntityDescriptorBuilder.builder()
+        .entityID(IDP_ENTITYID)
+        .ssoDescriptor(IDPSSODescriptorBuilder.builder()
+            .keyDescriptors(KeyDescriptorBuilder.builder()
+                .use(UsageType.SIGNING)
+                .certificate(new ClassPathResource("Litsec_SAML_Signing.crt").getInputStream())
+                .build())
+            .build())
+        .build();
+    final EntityDescriptor otherMetadata = EntityDescriptorBuilder.builder()
+        .entityID("http://www.anotheridp.se")
+        .ssoDescriptor(IDPSSODescriptorBuilder.builder().build())
+        .build();
+
+    SADRequest sadRequest = SADRequestBuilder.builder()
+        .id(SAD_REQUEST_ID)
+        .requesterID(SIGNSERVICE_ENTITYID)
+        .signRequestID(SIGN_REQUEST_ID)
+        .docCount(1)
+        .requestedVersion(SADVersion.VERSION_10)
+        .build();
+
+    // The validator does not know about the IdP - the supplied metadata is used.
+    SADValidator validator = SADParser.getValidator(otherMetadata);
+    validator.setReplayChecker(null);
+
+    for (int i = 0; i < 2; i++) {
+      Assertion assertion = buildAssertion(IDP_ENTITYID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3);
+      addAttribute(assertion, AttributeConstants.ATTRIBUTE_NAME_PERSONAL_IDENTITY_NUMBER, USER_ID);
+      addAttribute(assertion, AttributeConstants.ATTRIBUTE_NAME_SAD, this.sadFactory.createJwt(this.getTestSAD()));
+
+      Assertions.assertNotNull(validator.validateIfRequested(buildAuthnRequest(sadRequest), assertion, idpMetadata));
+    }
+
+    Assertion assertion = buildAssertion(IDP_ENTITYID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3);
+    addAttribute(assertion, AttributeConstants.ATTRIBUTE_NAME_PERSONAL_IDENTITY_NUMBER, USER_ID);
+    addAttribute(assertion, AttributeConstants.ATTRIBUTE_NAME_SAD, this.sadFactory.createJwt(this.getTestSAD()));
+
+    try {
+      validator.validate(buildAuthnRequest(sadRequest), assertion, null);
+      Assertions.fail("Expected SADValidationException - SIGNATURE_VALIDATION_ERROR");
+    }
+    catch (SADValidationException e) {
+      Assertions.assertEquals(ErrorCode.SIGNATURE_VALIDATION_ERROR, e.getErrorCode(),
+          "Expected error code SIGNATURE_VALIDATION_ERROR");
+    }
+
+    // No SADRequest - nothing to validate
+    Assertions.assertNull(validator.validateIfRequested(buildAuthnRequest(null), assertion, idpMetadata));
+  }
+
   /**
    * A SADRequest needs to be present in an AuthnRequest.
    *
@@ -276,6 +536,8 @@ public class SADParserTest extends OpenSAMLTestBase {
     catch (SADValidationException e) {
       Assertions.assertEquals(ErrorCode.MISSING_SUBJECT_ATTRIBUTE, e.getErrorCode(),
           "Expected error code MISSING_SUBJECT_ATTRIBUTE");
+      Assertions.assertEquals(assertion.getID(), e.getActual());
+      Assertions.assertEquals(0, e.getStackTrace().length);
     }
   }
 
@@ -342,6 +604,47 @@ public class SADParserTest extends OpenSAMLTestBase {
     }
   }
 
+  /**
+   * Tests the mode where the claims are checked before the signature is verified.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testCheckClaimsFirst() throws Exception {
+
+    SADValidator validator = SADParser.getValidator(this.wrongValidationCertificate);
+    validator.setCheckClaimsFirst(true);
+
+    // Bad signature and bad audience - the audience error is reported
+    String jwt = this.sadFactory.createJwt(this.getTestSAD());
+    try {
+      validator.validate(jwt, IDP_ENTITYID, "http://www.other.com/sigservice", USER_ID,
+          LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+      Assertions.fail("Expected SADValidationException - VALIDATION_BAD_AUDIENCE");
+    }
+    catch (SADValidationException e) {
+      Assertions.assertEquals(ErrorCode.VALIDATION_BAD_AUDIENCE, e.getErrorCode(),
+          "Expected error code VALIDATION_BAD_AUDIENCE");
+    }
+
+    // Bad signature, but valid claims
+    try {
+      validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3,
+          SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+      Assertions.fail("Expected SADValidationException - SIGNATURE_VALIDATION_ERROR");
+    }
+    catch (SADValidationException e) {
+      Assertions.assertEquals(ErrorCode.SIGNATURE_VALIDATION_ERROR, e.getErrorCode(),
+          "Expected error code SIGNATURE_VALIDATION_ERROR");
+    }
+
+    // OK
+    validator = SADParser.getValidator(this.validationCertificate);
+    validator.setCheckClaimsFirst(true);
+    validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3,
+        SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+  }
+
   /**
    * Test exprired SAD.
    *
@@ -390,6 +693,142 @@ public class SADParserTest extends OpenSAMLTestBase {
     }
   }
 
+  /**
+   * Verifies that a SAD can not be used twice.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testReplay() throws Exception {
+
+    String jwt = this.sadFactory.createJwt(this.getTestSAD());
+
+    // No replay checking by default
+    SADValidator validator = SADParser.getValidator(this.validationCertificate);
+    for (int i = 0; i < 2; i++) {
+      validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3,
+          SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+    }
+
+    validator.setReplayChecker(new InMemorySADReplayChecker());
+    validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3,
+        SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+
+    try {
+      validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3,
+          SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+      Assertions.fail("Expected SADValidationException - SAD_REPLAY");
+    }
+    catch (SADValidationException e) {
+      Assertions.assertEquals(ErrorCode.SAD_REPLAY, e.getErrorCode(), "Expected error code SAD_REPLAY");
+    }
+
+    // Turn off replay checking
+    validator.setReplayChecker(null);
+    validator.validate(jwt, IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3,
+        SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+  }
+
+  /**
+   * Tests batch validation of SAD:s.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testValidateAll() throws Exception {
+
+    SADValidator validator = SADParser.getValidator(this.validationCertificate);
+    validator.setReplayChecker(new InMemorySADReplayChecker());
+
+    List<SADValidationInput> inputs = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      inputs.add(new SADValidationInput(this.sadFactory.createJwt(this.getTestSAD()), IDP_ENTITYID,
+          SIGNSERVICE_ENTITYID, USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1,
+          SIGN_REQUEST_ID));
+    }
+    inputs.add(new SADValidationInput(this.sadFactory.createJwt(this.getTestSAD()), IDP_ENTITYID,
+        SIGNSERVICE_ENTITYID, "197001011234", LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1,
+        SIGN_REQUEST_ID));
+    inputs.add(new SADValidationInput("JWT_THAT_IS_NOT_A_JWT", IDP_ENTITYID, SIGNSERVICE_ENTITYID, USER_ID,
+        LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID));
+    inputs.add(new SADValidationInput(this.sadFactory.createJwt(this.getTestSAD()), "http://www.anotheridp.se",
+        SIGNSERVICE_ENTITYID, USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1,
+        SIGN_REQUEST_ID));
+
+    List<SADValidationResult> results = validator.validateAll(inputs);
+    Assertions.assertEquals(inputs.size(), results.size());
+    for (int i = 0; i < 10; i++) {
+      Assertions.assertTrue(results.get(i).isValid());
+      Assertions.assertSame(inputs.get(i), results.get(i).getInput());
+      Assertions.assertNotNull(results.get(i).getSad());
+    }
+    Assertions.assertEquals(ErrorCode.VALIDATION_BAD_SUBJECT, results.get(10).getError().getErrorCode());
+    Assertions.assertEquals(ErrorCode.JWT_PARSE_ERROR, results.get(11).getError().getErrorCode());
+    Assertions.assertEquals(ErrorCode.VALIDATION_BAD_ISSUER, results.get(12).getError().getErrorCode());
+
+    // Using a supplied executor. All SAD:s have now been used ...
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      validator.setExecutor(executor);
+      results = validator.validateAll(inputs.subList(0, 10));
+      for (SADValidationResult r : results) {
+        Assertions.assertEquals(ErrorCode.SAD_REPLAY, r.getError().getErrorCode());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Tests that an unexpected error for one SAD in a batch is reported for that SAD only, and that SAD:s rejected by a
+   * bounded executor are validated in the calling thread.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testValidateAllUnexpectedError() throws Exception {
+
+    List<SADValidationInput> inputs = new ArrayList<>();
+    for (int i = 0; i < 10; i++) {
+      inputs.add(new SADValidationInput(this.sadFactory.createJwt(this.getTestSAD()), IDP_ENTITYID,
+          SIGNSERVICE_ENTITYID, USER_ID, LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1,
+          SIGN_REQUEST_ID));
+    }
+    final String failingJwtId = SADParser.parse(inputs.get(3).getSadJwt()).getJwtId();
+
+    SADValidator validator = SADParser.getValidator(this.validationCertificate);
+    validator.setReplayChecker((issuer, jwtId, expiresAt, now) -> {
+      if (failingJwtId.equals(jwtId)) {
+        throw new UncheckedIOException(new IOException("Replay store unavailable"));
+      }
+      return true;
+    });
+
+    // A bounded executor that rejects tasks when its only thread is busy
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new SynchronousQueue<>(),
+        new ThreadPoolExecutor.AbortPolicy());
+    try {
+      validator.setExecutor(executor);
+      List<SADValidationResult> results = validator.validateAll(inputs);
+      Assertions.assertEquals(inputs.size(), results.size());
+      for (int i = 0; i < inputs.size(); i++) {
+        Assertions.assertSame(inputs.get(i), results.get(i).getInput());
+        if (i == 3) {
+          Assertions.assertFalse(results.get(i).isValid());
+          Assertions.assertEquals(ErrorCode.VALIDATION_PROCESSING_ERROR, results.get(i).getError().getErrorCode());
+          Assertions.assertTrue(results.get(i).getError().getCause() instanceof UncheckedIOException);
+        }
+        else {
+          Assertions.assertTrue(results.get(i).isValid());
+        }
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
   /**
    * Verifies that the issuer is correct.
    *
@@ -462,6 +901,45 @@ public class SADParserTest extends OpenSAMLTestBase {
     }
   }
 
+  /**
+   * Verifies that a rejected SAD carries the actual and expected values, and that stack traces are only included if
+   * configured.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testRejectionDetails() throws Exception {
+
+    String jwt = this.sadFactory.createJwt(this.getTestSAD());
+
+    SADValidator validator = SADParser.getValidator(this.validationCertificate);
+    try {
+      validator.validate(jwt, IDP_ENTITYID, "http://www.other.se/sp", USER_ID,
+          LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+      Assertions.fail("Expected SADValidationException - VALIDATION_BAD_AUDIENCE");
+    }
+    catch (SADValidationException e) {
+      Assertions.assertEquals(ErrorCode.VALIDATION_BAD_AUDIENCE, e.getErrorCode());
+      Assertions.assertEquals(SIGNSERVICE_ENTITYID, e.getActual());
+      Assertions.assertEquals("http://www.other.se/sp", e.getExpected());
+      Assertions.assertEquals(
+          String.format("SAD contains audience '%s' - expected '%s'", SIGNSERVICE_ENTITYID, "http://www.other.se/sp"),
+          e.getMessage());
+      Assertions.assertEquals(0, e.getStackTrace().length);
+    }
+
+    validator.setIncludeStackTraces(true);
+    try {
+      validator.validate(jwt, IDP_ENTITYID, "http://www.other.se/sp", USER_ID,
+          LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3, SAD_REQUEST_ID, 1, SIGN_REQUEST_ID);
+      Assertions.fail("Expected SADValidationException - VALIDATION_BAD_AUDIENCE");
+    }
+    catch (SADValidationException e) {
+      Assertions.assertEquals(ErrorCode.VALIDATION_BAD_AUDIENCE, e.getErrorCode());
+      Assertions.assertTrue(e.getStackTrace().length > 0);
+    }
+  }
+
   /**
    * Verifies that the subject is correct.
    *
@@ -16,6 +16,13 @@
 package se.swedenconnect.opensaml.sweid.saml2.signservice;
 
 import java.security.KeyStore;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
@@ -23,6 +30,7 @@ import org.opensaml.core.xml.XMLObject;
 import org.opensaml.saml.saml2.core.AuthnRequest;
 import org.opensaml.security.credential.Credential;
 import org.opensaml.security.x509.impl.KeyStoreX509CredentialAdapter;
+import org.opensaml.xmlsec.encryption.support.DecryptionException;
 import org.springframework.core.io.ClassPathResource;
 import org.springframework.core.io.Resource;
 
@@ -80,4 +88,96 @@ public class SignMessageDecrypterTest extends OpenSAMLTestBase {
     // xmlns:ns="http://id.elegnamnden.se/csig/1.1/dss-ext/ns">WW91IGFyZSByZXF1ZXN0ZWQgdG8gc2lnbiB0aGUgZm9sbG93aW5nIGRvY3VtZW50OgoKRG9jdW1lbnQgbmFtZTogZjgzOGE3MDRjNjc3NDYyYjkxYWM4NjQ3ZTdkNmRmZjYueG1sClNpZ25lciBuYW1lOiBPc2thciBKb2hhbnNzb24KU2lnbmVyIElEOiBwZXJzb25hbElkZW50aXR5TnVtYmVyOiAxOTkwMDgyNTIzOTgK</ns:Message>
   }
 
+  /**
+   * Tests that one decrypter instance may be used concurrently.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testConcurrentDecrypt() throws Exception {
+    SignMessageDecrypter decrypter = new SignMessageDecrypter(this.credential);
+    decrypter.setMaxIdleDecrypters(2);
+
+    List<SignMessage> signMessages = new ArrayList<>();
+    for (int i = 0; i < 16; i++) {
+      AuthnRequest authnRequest =
+          unmarshall(new ClassPathResource("signmessage_rsa_1_5.xml").getInputStream(), AuthnRequest.class);
+      signMessages.add(
+          (SignMessage) authnRequest.getExtensions().getUnknownXMLObjects(SignMessage.DEFAULT_ELEMENT_NAME).get(0));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Message>> results = new ArrayList<>();
+      for (SignMessage signMessage : signMessages) {
+        results.add(executor.submit(() -> decrypter.decrypt(signMessage)));
+      }
+      for (Future<Message> result : results) {
+        Assertions.assertNotNull(result.get().getContent());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+  }
+
+  /**
+   * Tests decryption using a credential pool (the credentials simulate separate HSM sessions).
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testCredentialPool() throws Exception {
+    KeyStore keyStore = loadKeyStore(new ClassPathResource("idp-credentials.jks").getInputStream(), "secret", "JKS");
+    DecryptionCredentialPool credentialPool = new DecryptionCredentialPool(List.of(
+        new KeyStoreX509CredentialAdapter(keyStore, "encryption", "secret".toCharArray()),
+        new KeyStoreX509CredentialAdapter(keyStore, "encryption", "secret".toCharArray())));
+
+    SignMessageDecrypter decrypter = new SignMessageDecrypter(credentialPool);
+    decrypter.setCredentialCheckoutTimeout(Duration.ofMillis(100));
+
+    List<SignMessage> signMessages = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      AuthnRequest authnRequest =
+          unmarshall(new ClassPathResource("signmessage_rsa_1_5.xml").getInputStream(), AuthnRequest.class);
+      signMessages.add(
+          (SignMessage) authnRequest.getExtensions().getUnknownXMLObjects(SignMessage.DEFAULT_ELEMENT_NAME).get(0));
+    }
+
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      List<Future<Message>> results = new ArrayList<>();
+      for (SignMessage signMessage : signMessages) {
+        results.add(executor.submit(() -> decrypter.decrypt(signMessage)));
+      }
+      for (Future<Message> result : results) {
+        Assertions.assertNotNull(result.get().getContent());
+      }
+    }
+    finally {
+      executor.shutdown();
+    }
+    Assertions.assertEquals(8, credentialPool.getCheckouts());
+    Assertions.assertEquals(0, credentialPool.getInUse());
+
+    // Check out all credentials - the next decryption should time out
+    try (DecryptionCredentialPool.Lease l1 = credentialPool.checkout(Duration.ofMillis(100));
+        DecryptionCredentialPool.Lease l2 = credentialPool.checkout(Duration.ofMillis(100))) {
+      try {
+        credentialPool.checkout(Duration.ofMillis(10));
+        Assertions.fail("Expected TimeoutException");
+      }
+      catch (TimeoutException e) {
+      }
+      try {
+        decrypter.decrypt(signMessages.get(0));
+        Assertions.fail("Expected DecryptionException");
+      }
+      catch (DecryptionException e) {
+      }
+    }
+    Assertions.assertEquals(2, credentialPool.getTimeouts());
+    Assertions.assertNotNull(decrypter.decrypt(signMessages.get(0)));
+  }
+
 }
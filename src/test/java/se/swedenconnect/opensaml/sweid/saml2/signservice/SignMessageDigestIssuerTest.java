@@ -21,7 +21,11 @@ import java.util.Base64;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.ext.saml2alg.DigestMethod;
 import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.saml.saml2.metadata.Extensions;
 import org.opensaml.xmlsec.algorithm.AlgorithmDescriptor;
 import org.opensaml.xmlsec.algorithm.AlgorithmRegistry;
 import org.opensaml.xmlsec.algorithm.AlgorithmSupport;
@@ -80,6 +84,68 @@ public class SignMessageDigestIssuerTest extends OpenSAMLTestBase {
         AttributeUtils.getAttributeStringValue(attr));
   }
 
+  @Test
+  public void testCreateNonAscii() throws Exception {
+
+    final SignMessageDigestIssuer issuer = new SignMessageDigestIssuer();
+    issuer.setDefaultDigestMethod(SignatureConstants.ALGO_ID_DIGEST_SHA512);
+    final String contents = "Jag godkänner härmed villkoren för tjänsten – ÅÄÖ";
+
+    for (int i = 0; i < 2; i++) {
+      final SignMessage signMessage = SignMessageBuilder.builder()
+          .message(contents + i)
+          .mimeType(SignMessageMimeTypeEnum.TEXT)
+          .build();
+
+      final Attribute attr = issuer.create(signMessage.getMessage());
+      Assertions.assertEquals(
+          String.format("%s;%s", SignatureConstants.ALGO_ID_DIGEST_SHA512,
+              this.hash(contents + i, SignatureConstants.ALGO_ID_DIGEST_SHA512)),
+          AttributeUtils.getAttributeStringValue(attr));
+    }
+  }
+
+  @Test
+  public void testCachedRecipientPreference() throws Exception {
+
+    final SignMessageDigestIssuer issuer = new SignMessageDigestIssuer();
+    final SignMessage signMessage = SignMessageBuilder.builder()
+        .message(SignMessageDigestIssuerTest.CONTENTS)
+        .mimeType(SignMessageMimeTypeEnum.TEXT)
+        .build();
+
+    final EntityDescriptor metadata = this.createMetadata(SignatureConstants.ALGO_ID_DIGEST_SHA512);
+    Assertions.assertTrue(AttributeUtils.getAttributeStringValue(issuer.create(signMessage.getMessage(), metadata))
+        .startsWith(SignatureConstants.ALGO_ID_DIGEST_SHA512 + ";"));
+
+    // Modify the same instance - the cached preference should be used
+    final DigestMethod digestMethod = (DigestMethod) metadata.getExtensions().getUnknownXMLObjects().get(0);
+    digestMethod.setAlgorithm(SignatureConstants.ALGO_ID_DIGEST_SHA384);
+    Assertions.assertTrue(AttributeUtils.getAttributeStringValue(issuer.create(signMessage.getMessage(), metadata))
+        .startsWith(SignatureConstants.ALGO_ID_DIGEST_SHA512 + ";"));
+
+    issuer.invalidatePreference(metadata.getEntityID());
+    Assertions.assertTrue(AttributeUtils.getAttributeStringValue(issuer.create(signMessage.getMessage(), metadata))
+        .startsWith(SignatureConstants.ALGO_ID_DIGEST_SHA384 + ";"));
+
+    // New metadata instance (refreshed metadata)
+    Assertions.assertTrue(AttributeUtils.getAttributeStringValue(issuer.create(signMessage.getMessage(),
+        this.createMetadata(SignatureConstants.ALGO_ID_DIGEST_SHA256)))
+        .startsWith(SignatureConstants.ALGO_ID_DIGEST_SHA256 + ";"));
+  }
+
+  private EntityDescriptor createMetadata(final String digestAlgorithm) {
+    final EntityDescriptor metadata =
+        (EntityDescriptor) XMLObjectSupport.buildXMLObject(EntityDescriptor.DEFAULT_ELEMENT_NAME);
+    metadata.setEntityID("https://sign.example.com/sp");
+    final Extensions extensions = (Extensions) XMLObjectSupport.buildXMLObject(Extensions.DEFAULT_ELEMENT_NAME);
+    final DigestMethod digestMethod = (DigestMethod) XMLObjectSupport.buildXMLObject(DigestMethod.DEFAULT_ELEMENT_NAME);
+    digestMethod.setAlgorithm(digestAlgorithm);
+    extensions.getUnknownXMLObjects().add(digestMethod);
+    metadata.setExtensions(extensions);
+    return metadata;
+  }
+
   private String hash(final String text, final String digestAlgorithm) throws Exception {
     final AlgorithmRegistry registry = AlgorithmSupport.getGlobalAlgorithmRegistry();
     final AlgorithmDescriptor descriptor = registry.get(digestAlgorithm);
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice;
+
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.xmlsec.signature.support.SignatureConstants;
+
+import se.swedenconnect.opensaml.saml2.attribute.AttributeUtils;
+import se.swedenconnect.opensaml.sweid.OpenSAMLTestBase;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.build.SignMessageBuilder;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.SignMessage;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.dss.SignMessageMimeTypeEnum;
+
+/**
+ * Test cases for SignMessageDigestVerifier.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class SignMessageDigestVerifierTest extends OpenSAMLTestBase {
+
+  private static final String CONTENTS = "Jag godkänner härmed att ansluta mig som kund hos example.com";
+
+  @Test
+  public void testVerify() throws Exception {
+
+    final SignMessage signMessage = this.createSignMessage(CONTENTS);
+    final SignMessageDigestIssuer issuer = new SignMessageDigestIssuer();
+    final SignMessageDigestVerifier verifier = new SignMessageDigestVerifier();
+
+    for (final String algorithm : List.of(SignatureConstants.ALGO_ID_DIGEST_SHA256,
+        SignatureConstants.ALGO_ID_DIGEST_SHA512)) {
+      issuer.setDefaultDigestMethod(algorithm);
+      final Attribute attribute = issuer.create(signMessage.getMessage());
+
+      Assertions.assertTrue(verifier.verify(attribute, signMessage));
+      Assertions.assertFalse(verifier.verify(attribute, this.createSignMessage(CONTENTS + ".")));
+    }
+
+    final String value = AttributeUtils.getAttributeStringValue(issuer.create(signMessage.getMessage()));
+    Assertions.assertFalse(verifier.verify(value.substring(0, value.length() - 4), signMessage));
+    Assertions.assertFalse(verifier.verify(value.replace(';', ':'), signMessage));
+    Assertions.assertFalse(verifier.verify("http://not.a.real.algo" + value.substring(value.indexOf(';')),
+        signMessage));
+    Assertions.assertFalse(verifier.verify((String) null, signMessage));
+
+    try {
+      verifier.verify(value, (SignMessage) null);
+      Assertions.fail("Expected IllegalArgumentException");
+    }
+    catch (final IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testVerifyPrecomputed() throws Exception {
+
+    final SignMessage signMessage = this.createSignMessage(CONTENTS);
+    final SignMessageDigestVerifier.PrecomputedDigests digests = SignMessageDigestVerifier.precompute(
+        signMessage.getMessage(), List.of(SignatureConstants.ALGO_ID_DIGEST_SHA256,
+            SignatureConstants.ALGO_ID_DIGEST_SHA384));
+
+    final SignMessageDigestIssuer issuer = new SignMessageDigestIssuer();
+    final SignMessageDigestVerifier verifier = new SignMessageDigestVerifier();
+
+    Assertions.assertTrue(verifier.verify(
+        AttributeUtils.getAttributeStringValue(issuer.create(signMessage.getMessage())), digests));
+
+    issuer.setDefaultDigestMethod(SignatureConstants.ALGO_ID_DIGEST_SHA384);
+    Assertions.assertTrue(verifier.verify(
+        AttributeUtils.getAttributeStringValue(issuer.create(signMessage.getMessage())), digests));
+
+    // No precomputed digest for SHA-512
+    issuer.setDefaultDigestMethod(SignatureConstants.ALGO_ID_DIGEST_SHA512);
+    Assertions.assertFalse(verifier.verify(
+        AttributeUtils.getAttributeStringValue(issuer.create(signMessage.getMessage())), digests));
+
+    issuer.setDefaultDigestMethod(SignatureConstants.ALGO_ID_DIGEST_SHA256);
+    Assertions.assertFalse(verifier.verify(AttributeUtils.getAttributeStringValue(
+        issuer.create(this.createSignMessage(CONTENTS + ".").getMessage())), digests));
+  }
+
+  private SignMessage createSignMessage(final String contents) {
+    return SignMessageBuilder.builder()
+        .message(contents)
+        .mimeType(SignMessageMimeTypeEnum.TEXT)
+        .build();
+  }
+
+}
@@ -15,13 +15,22 @@
  */
 package se.swedenconnect.opensaml.sweid.saml2.signservice;
 
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
 import java.security.KeyStore;
+import java.time.Instant;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.opensaml.core.xml.io.MarshallingException;
+import org.opensaml.saml.metadata.resolver.MetadataResolver;
+import org.opensaml.saml.metadata.resolver.RefreshableMetadataResolver;
 import org.opensaml.saml.saml2.metadata.EntityDescriptor;
 import org.opensaml.saml.saml2.metadata.KeyDescriptor;
 import org.opensaml.security.credential.Credential;
@@ -192,6 +201,177 @@ public class SignMessageEncrypterTest extends OpenSAMLTestBase {
     Assertions.assertEquals(CONTENTS, decryptedMsg);
   }
 
+  @Test
+  public void testCachedParameters() throws Exception {
+
+    EntityDescriptor ed = this.createMetadata(KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("Litsec_SAML_Encryption.crt").getInputStream())
+      .build());
+    MetadataResolver delegate = this.createMetadataProvider(ed).getMetadataResolver();
+
+    // A refreshable resolver that counts the metadata lookups and whose last update time can be changed
+    AtomicInteger lookups = new AtomicInteger();
+    AtomicReference<Instant> lastUpdate = new AtomicReference<>(Instant.now());
+    MetadataResolver resolver = (MetadataResolver) Proxy.newProxyInstance(
+      RefreshableMetadataResolver.class.getClassLoader(), new Class<?>[] { RefreshableMetadataResolver.class },
+      (proxy, method, args) -> {
+        if ("getLastUpdate".equals(method.getName())) {
+          return lastUpdate.get();
+        }
+        if (method.getName().startsWith("resolve")) {
+          lookups.incrementAndGet();
+        }
+        try {
+          return method.getDeclaringClass().isInstance(delegate) ? method.invoke(delegate, args) : null;
+        }
+        catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+      });
+    SignMessageEncrypter encrypter = new SignMessageEncrypter(new SAMLObjectEncrypter(resolver), resolver);
+
+    int lookupsAfterFirst = 0;
+    for (int i = 0; i < 3; i++) {
+      SignMessage signMessage = SignMessageBuilder.builder()
+        .displayEntity(ENTITY_ID)
+        .message(CONTENTS + i)
+        .mimeType(SignMessageMimeTypeEnum.TEXT)
+        .mustShow(true)
+        .build();
+
+      encrypter.encrypt(signMessage, ENTITY_ID);
+      Assertions.assertNotNull(signMessage.getEncryptedMessage());
+
+      String decryptedMsg = this.decrypt(signMessage, new ClassPathResource("Litsec_SAML_Encryption.jks"), "secret",
+        "litsec_saml_encryption");
+      Assertions.assertEquals(CONTENTS + i, decryptedMsg);
+
+      if (i == 0) {
+        lookupsAfterFirst = lookups.get();
+        Assertions.assertTrue(lookupsAfterFirst > 0);
+      }
+      else {
+        // The cached parameters are used - no metadata lookups
+        Assertions.assertEquals(lookupsAfterFirst, lookups.get());
+      }
+    }
+
+    // After a metadata refresh the parameters are resolved again (and then cached)
+    lastUpdate.set(lastUpdate.get().plusSeconds(60));
+    int lookupsAfterRefresh = 0;
+    for (int i = 0; i < 2; i++) {
+      SignMessage signMessage = SignMessageBuilder.builder()
+        .displayEntity(ENTITY_ID)
+        .message(CONTENTS)
+        .mimeType(SignMessageMimeTypeEnum.TEXT)
+        .build();
+      encrypter.encrypt(signMessage, ENTITY_ID);
+      Assertions.assertEquals(CONTENTS, this.decrypt(signMessage, new ClassPathResource("Litsec_SAML_Encryption.jks"),
+        "secret", "litsec_saml_encryption"));
+      if (i == 0) {
+        lookupsAfterRefresh = lookups.get();
+        Assertions.assertTrue(lookupsAfterRefresh > lookupsAfterFirst);
+      }
+      else {
+        Assertions.assertEquals(lookupsAfterRefresh, lookups.get());
+      }
+    }
+
+    // Unknown IdP
+    SignMessage signMessage = SignMessageBuilder.builder()
+      .message(CONTENTS)
+      .mimeType(SignMessageMimeTypeEnum.TEXT)
+      .build();
+    try {
+      encrypter.encrypt(signMessage, "http://www.example.com/other");
+      Assertions.fail("Expected error - unknown IdP");
+    }
+    catch (EncryptionException e) {
+    }
+  }
+
+  @Test
+  public void testEcdhKeyAgreement() throws Exception {
+
+    EntityDescriptor ed = this.createMetadata(KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("EC_SAML_Encryption.crt").getInputStream())
+      .build());
+    MetadataResolver resolver = this.createMetadataProvider(ed).getMetadataResolver();
+    SAMLObjectEncrypter objectEncrypter = new SAMLObjectEncrypter(resolver);
+
+    for (SignMessageEncrypter encrypter : Arrays.asList(
+        new SignMessageEncrypter(objectEncrypter), new SignMessageEncrypter(objectEncrypter, resolver))) {
+      for (int i = 0; i < 2; i++) {
+        SignMessage signMessage = SignMessageBuilder.builder()
+          .displayEntity(ENTITY_ID)
+          .message(CONTENTS)
+          .mimeType(SignMessageMimeTypeEnum.TEXT)
+          .build();
+
+        encrypter.encrypt(signMessage, ENTITY_ID);
+        Assertions.assertNotNull(signMessage.getEncryptedMessage());
+
+        String decryptedMsg = this.decrypt(signMessage, new ClassPathResource("EC_SAML_Encryption.jks"), "secret",
+          "ec_encryption");
+        Assertions.assertEquals(CONTENTS, decryptedMsg);
+      }
+    }
+  }
+
+  @Test
+  public void testEncryptForMultipleIdps() throws Exception {
+
+    final String idp2 = "http://www.example.com/idp2";
+    final String idp3 = "http://www.example.com/idp3";
+
+    EntityDescriptor ed1 = this.createMetadata(KeyDescriptorBuilder.builder()
+      .use(UsageType.ENCRYPTION)
+      .certificate(new ClassPathResource("Litsec_SAML_Encryption.crt").getInputStream())
+      .build());
+    EntityDescriptor ed2 = EntityDescriptorBuilder.builder()
+      .entityID(idp2)
+      .ssoDescriptor(IDPSSODescriptorBuilder.builder()
+        .keyDescriptors(KeyDescriptorBuilder.builder()
+          .use(UsageType.ENCRYPTION)
+          .certificate(new ClassPathResource("EC_SAML_Encryption.crt").getInputStream())
+          .build())
+        .build())
+      .build();
+    EntityDescriptor ed3 = EntityDescriptorBuilder.builder()
+      .entityID(idp3)
+      .ssoDescriptor(IDPSSODescriptorBuilder.builder()
+        .keyDescriptors(KeyDescriptorBuilder.builder()
+          .use(UsageType.SIGNING)
+          .certificate(new ClassPathResource("Litsec_SAML_Signing.crt").getInputStream())
+          .build())
+        .build())
+      .build();
+    MetadataResolver resolver = this.createMetadataProvider(ed1, ed2, ed3).getMetadataResolver();
+    SignMessageEncrypter encrypter = new SignMessageEncrypter(new SAMLObjectEncrypter(resolver), resolver);
+
+    SignMessage signMessage = SignMessageBuilder.builder()
+      .message(CONTENTS)
+      .mimeType(SignMessageMimeTypeEnum.TEXT)
+      .mustShow(true)
+      .build();
+
+    Map<String, SignMessage> result = encrypter.encrypt(signMessage, List.of(ENTITY_ID, idp2, idp3), null);
+
+    // The template should not be touched, and idp3 has no encryption key
+    Assertions.assertNotNull(signMessage.getMessage());
+    Assertions.assertNull(signMessage.getDisplayEntity());
+    Assertions.assertEquals(List.of(ENTITY_ID, idp2), List.copyOf(result.keySet()));
+
+    Assertions.assertEquals(ENTITY_ID, result.get(ENTITY_ID).getDisplayEntity());
+    Assertions.assertEquals(Boolean.TRUE, result.get(ENTITY_ID).isMustShow());
+    Assertions.assertEquals(CONTENTS, this.decrypt(result.get(ENTITY_ID),
+      new ClassPathResource("Litsec_SAML_Encryption.jks"), "secret", "litsec_saml_encryption"));
+    Assertions.assertEquals(CONTENTS, this.decrypt(result.get(idp2),
+      new ClassPathResource("EC_SAML_Encryption.jks"), "secret", "ec_encryption"));
+  }
+
   private String decrypt(SignMessage signMessage, Resource jks, String password, String alias) throws Exception {
     KeyStore keyStore = loadKeyStore(jks.getInputStream(), password, "JKS");
     Credential cred = new KeyStoreX509CredentialAdapter(keyStore, alias, password.toCharArray());
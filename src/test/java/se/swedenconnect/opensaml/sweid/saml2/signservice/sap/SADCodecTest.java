@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.signservice.sap;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import se.swedenconnect.opensaml.sweid.saml2.attribute.AttributeConstants;
+import se.swedenconnect.opensaml.sweid.saml2.authn.LevelOfAssuranceUris;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Test cases for {@link SADCodec}.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class SADCodecTest {
+
+  /**
+   * Tests that the codec output is compatible with Jackson data binding (and vice versa).
+   */
+  @Test
+  public void testEncodeDecode() throws Exception {
+    final SAD sad = createSAD();
+
+    final byte[] json = SADCodec.encode(sad);
+    Assertions.assertEquals(sad, SAD.fromJson(new String(json, StandardCharsets.UTF_8)));
+    Assertions.assertEquals(sad, SADCodec.decode(json));
+    Assertions.assertEquals(sad, SADCodec.decode(sad.toJson().getBytes(StandardCharsets.UTF_8)));
+
+    final String encoded = SADCodec.encodeBase64Url(sad);
+    Assertions.assertEquals(Base64.getUrlEncoder().withoutPadding().encodeToString(json), encoded);
+    Assertions.assertEquals(sad, SADCodec.decodeBase64Url(encoded));
+  }
+
+  /**
+   * Tests encoding of strings that need escaping and non-ASCII characters.
+   */
+  @Test
+  public void testEscaping() throws Exception {
+    final SAD sad = createSAD();
+    sad.setSubject("Åsa \"Öberg\"\\\n\t\u0001 😀");
+
+    final byte[] json = SADCodec.encode(sad);
+    Assertions.assertEquals(sad, SAD.fromJson(new String(json, StandardCharsets.UTF_8)));
+    Assertions.assertEquals(sad, SADCodec.decode(json));
+  }
+
+  /**
+   * Tests decoding of unknown claims, string encoded integers and missing claims.
+   */
+  @Test
+  public void testDecodeLenient() throws Exception {
+    final String json = "{\"sub\":\"196302052383\",\"foo\":{\"bar\":[1,2]},\"exp\":\"1516199257\","
+        + "\"seElnSadext\":{\"ver\":\"1.0\",\"docs\":2,\"extra\":true}}";
+    final SAD sad = SADCodec.decode(json.getBytes(StandardCharsets.UTF_8));
+    Assertions.assertEquals("196302052383", sad.getSubject());
+    Assertions.assertEquals(1516199257, sad.getExpiry());
+    Assertions.assertNull(sad.getIssuer());
+    Assertions.assertEquals("1.0", sad.getSeElnSadext().getVersion());
+    Assertions.assertEquals(2, sad.getSeElnSadext().getNumberOfDocuments());
+  }
+
+  /**
+   * Tests that invalid input is reported as an {@link IOException}.
+   */
+  @Test
+  public void testDecodeErrors() {
+    Assertions.assertThrows(IOException.class, () -> SADCodec.decode("[]".getBytes(StandardCharsets.UTF_8)));
+    Assertions.assertThrows(IOException.class, () -> SADCodec.decode("{\"sub\":".getBytes(StandardCharsets.UTF_8)));
+    Assertions.assertThrows(IOException.class,
+        () -> SADCodec.decode("{\"exp\":\"abc\"}".getBytes(StandardCharsets.UTF_8)));
+    Assertions.assertThrows(IOException.class,
+        () -> SADCodec.decode("{\"sub\":[\"a\"]}".getBytes(StandardCharsets.UTF_8)));
+    Assertions.assertThrows(IOException.class, () -> SADCodec.decodeBase64Url("not*base64"));
+  }
+
+  private static SAD createSAD() {
+    final SAD sad = new SAD();
+    sad.setSubject("196302052383");
+    sad.setAudience("http://www.example.com/sigservice");
+    sad.setIssuer("https://idp.svelegtest.se/idp");
+    sad.setExpiry(1516199257);
+    sad.setIssuedAt(1516198957);
+    sad.setJwtId("d4073fc74b1b9199");
+    final SAD.Extension ext = new SAD.Extension();
+    ext.setVersion(SADVersion.VERSION_10.toString());
+    ext.setInResponseTo("_a74a068d0548a919e503e5f9ef901851");
+    ext.setAttributeName(AttributeConstants.ATTRIBUTE_NAME_PERSONAL_IDENTITY_NUMBER);
+    ext.setLoa(LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3);
+    ext.setRequestID("f6e7d061a23293b0053dc7b038a04dad");
+    ext.setNumberOfDocuments(1);
+    sad.setSeElnSadext(ext);
+    return sad;
+  }
+
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright 2016-2026 Sweden Connect
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package se.swedenconnect.opensaml.sweid.saml2.validation;
+
+import java.lang.reflect.Proxy;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.opensaml.core.xml.util.XMLObjectSupport;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AuthnContext;
+import org.opensaml.saml.saml2.core.AuthnContextClassRef;
+import org.opensaml.saml.saml2.core.AuthnRequest;
+import org.opensaml.saml.saml2.core.AuthnStatement;
+import org.opensaml.saml.saml2.core.Extensions;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.Response;
+import org.opensaml.saml.saml2.metadata.EntityDescriptor;
+import org.opensaml.security.credential.UsageType;
+import org.opensaml.security.x509.X509Credential;
+import org.springframework.core.io.ClassPathResource;
+
+import se.swedenconnect.opensaml.saml2.attribute.AttributeBuilder;
+import se.swedenconnect.opensaml.saml2.core.build.AuthnRequestBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.EntityDescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.IDPSSODescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.metadata.build.KeyDescriptorBuilder;
+import se.swedenconnect.opensaml.saml2.response.ResponseProcessingInput;
+import se.swedenconnect.opensaml.saml2.response.validation.ResponseValidationException;
+import se.swedenconnect.opensaml.sweid.OpenSAMLTestBase;
+import se.swedenconnect.opensaml.sweid.saml2.attribute.AttributeConstants;
+import se.swedenconnect.opensaml.sweid.saml2.authn.LevelOfAssuranceUris;
+import se.swedenconnect.opensaml.sweid.saml2.request.AuthnRequestSnapshot;
+import se.swedenconnect.opensaml.sweid.saml2.request.InMemoryPendingRequestStore;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SADFactory;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SADParser;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.SADValidationException;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.build.SADRequestBuilder;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SAD;
+import se.swedenconnect.opensaml.sweid.saml2.signservice.sap.SADVersion;
+
+/**
+ * Test cases for the SAD and pending request stages of {@link SwedishEidResponseProcessorImpl}.
+ *
+ * @author Martin Lindström (martin@idsec.se)
+ */
+public class SwedishEidResponseProcessorImplTest extends OpenSAMLTestBase {
+
+  private static final String IDP_ENTITYID = "https://idp.svelegtest.se/idp";
+  private static final String SIGNSERVICE_ENTITYID = "http://www.example.com/sigservice";
+  private static final String USER_ID = "196302052383";
+  private static final String REQUEST_ID = "_4c8a1c0e5b8f4e1d9a2b";
+  private static final String SAD_REQUEST_ID = "_a74a068d0548a919e503e5f9ef901851";
+  private static final String SIGN_REQUEST_ID = "f6e7d061a23293b0053dc7b038a04dad";
+
+  /** Factory for building SAD:s. */
+  private final SADFactory sadFactory;
+
+  /** The IdP metadata. */
+  private final EntityDescriptor idpMetadata;
+
+  /**
+   * Constructor setting up the tests.
+   *
+   * @throws Exception for errors
+   */
+  public SwedishEidResponseProcessorImplTest() throws Exception {
+    final X509Credential credential = loadKeyStoreCredential(
+        new ClassPathResource("Litsec_SAML_Signing.jks").getInputStream(), "secret", "litsec_saml_signing", "secret");
+    this.sadFactory = new SADFactory(IDP_ENTITYID, credential);
+
+    this.idpMetadata = EntityDescriptorBuilder.builder()
+        .entityID(IDP_ENTITYID)
+        .ssoDescriptor(IDPSSODescriptorBuilder.builder()
+            .keyDescriptors(KeyDescriptorBuilder.builder()
+                .use(UsageType.SIGNING)
+                .certificate(new ClassPathResource("Litsec_SAML_Signing.crt").getInputStream())
+                .build())
+            .build())
+        .build();
+  }
+
+  /**
+   * Tests that the request is consumed from the pending request store, that the SAD is validated against the
+   * consumed request, and that a response can not be processed twice.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testPendingRequestAndSad() throws Exception {
+    final InMemoryPendingRequestStore store = new InMemoryPendingRequestStore();
+    store.store(new AuthnRequestSnapshot(buildAuthnRequest(true)));
+
+    final SwedishEidResponseProcessorImpl processor = new SwedishEidResponseProcessorImpl();
+    processor.setPendingRequestStore(store);
+    processor.setSadValidator(SADParser.getValidator(this.idpMetadata));
+
+    final Response response = buildResponse(REQUEST_ID);
+    final AuthnRequestSnapshot pendingRequest = processor.consumePendingRequest(response);
+    Assertions.assertNotNull(pendingRequest);
+    Assertions.assertEquals(REQUEST_ID, pendingRequest.getId());
+    Assertions.assertEquals(0, store.size());
+
+    final Assertion assertion = this.buildAssertion(this.sadFactory.createJwt(this.getTestSAD()));
+    final SAD sad = processor.validateSad(assertion, response, null, pendingRequest, this.idpMetadata);
+    Assertions.assertNotNull(sad);
+    Assertions.assertEquals(SAD_REQUEST_ID, sad.getSeElnSadext().getInResponseTo());
+
+    // The request has been consumed
+    Assertions.assertThrows(ResponseValidationException.class, () -> processor.consumePendingRequest(response));
+    Assertions.assertThrows(ResponseValidationException.class,
+        () -> processor.consumePendingRequest(buildResponse("_unknown")));
+
+    // No store installed - nothing to consume
+    Assertions.assertNull(new SwedishEidResponseProcessorImpl().consumePendingRequest(response));
+  }
+
+  /**
+   * Tests that the SAD stage falls back to the AuthnRequest of the processing input if no pending request is given,
+   * and that no SAD is validated if the request did not contain a SADRequest.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testSadFromProcessingInput() throws Exception {
+    final SwedishEidResponseProcessorImpl processor = new SwedishEidResponseProcessorImpl();
+    processor.setSadValidator(SADParser.getValidator(this.idpMetadata));
+
+    final Response response = buildResponse(REQUEST_ID);
+    final Assertion assertion = this.buildAssertion(this.sadFactory.createJwt(this.getTestSAD()));
+
+    Assertions.assertNotNull(
+        processor.validateSad(assertion, response, buildInput(buildAuthnRequest(true)), null, this.idpMetadata));
+    Assertions.assertNull(
+        processor.validateSad(assertion, response, buildInput(buildAuthnRequest(false)), null, this.idpMetadata));
+
+    final ResponseValidationException e = Assertions.assertThrows(ResponseValidationException.class,
+        () -> processor.validateSad(assertion, response, buildInput(null), null, this.idpMetadata));
+    Assertions.assertNull(e.getCause());
+  }
+
+  /**
+   * Tests that SAD validation errors are reported as response validation errors.
+   *
+   * @throws Exception for errors
+   */
+  @Test
+  public void testSadValidationError() throws Exception {
+    final SwedishEidResponseProcessorImpl processor = new SwedishEidResponseProcessorImpl();
+    processor.setSadValidator(SADParser.getValidator(this.idpMetadata));
+
+    final Response response = buildResponse(REQUEST_ID);
+    final AuthnRequestSnapshot pendingRequest = new AuthnRequestSnapshot(buildAuthnRequest(true));
+
+    // The SAD is issued for another signature service
+    final SAD sad = this.getTestSAD();
+    sad.setAudience("http://another-sp.com");
+    final Assertion assertion = this.buildAssertion(this.sadFactory.createJwt(sad));
+
+    ResponseValidationException e = Assertions.assertThrows(ResponseValidationException.class,
+        () -> processor.validateSad(assertion, response, null, pendingRequest, this.idpMetadata));
+    Assertions.assertTrue(e.getCause() instanceof SADValidationException);
+    Assertions.assertEquals(SADValidationException.ErrorCode.VALIDATION_BAD_AUDIENCE,
+        ((SADValidationException) e.getCause()).getErrorCode());
+
+    // No sad attribute in the assertion
+    final Assertion assertion2 = this.buildAssertion(null);
+    e = Assertions.assertThrows(ResponseValidationException.class,
+        () -> processor.validateSad(assertion2, response, null, pendingRequest, this.idpMetadata));
+    Assertions.assertEquals(SADValidationException.ErrorCode.NO_SAD_ATTRIBUTE,
+        ((SADValidationException) e.getCause()).getErrorCode());
+  }
+
+  private SAD getTestSAD() {
+    return this.sadFactory.getBuilder()
+        .subject(USER_ID)
+        .audience(SIGNSERVICE_ENTITYID)
+        .inResponseTo(SAD_REQUEST_ID)
+        .loa(LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3)
+        .requestID(SIGN_REQUEST_ID)
+        .numberOfDocuments(1)
+        .buildSAD();
+  }
+
+  private Assertion buildAssertion(final String sadJwt) {
+    final Assertion assertion = (Assertion) XMLObjectSupport.buildXMLObject(Assertion.DEFAULT_ELEMENT_NAME);
+    assertion.setID("_123456");
+    final Issuer issuer = (Issuer) XMLObjectSupport.buildXMLObject(Issuer.DEFAULT_ELEMENT_NAME);
+    issuer.setValue(IDP_ENTITYID);
+    assertion.setIssuer(issuer);
+
+    final AuthnContextClassRef authnContextClassRef =
+        (AuthnContextClassRef) XMLObjectSupport.buildXMLObject(AuthnContextClassRef.DEFAULT_ELEMENT_NAME);
+    authnContextClassRef.setURI(LevelOfAssuranceUris.AUTHN_CONTEXT_URI_LOA3);
+    final AuthnContext authnContext = (AuthnContext) XMLObjectSupport.buildXMLObject(AuthnContext.DEFAULT_ELEMENT_NAME);
+    authnContext.setAuthnContextClassRef(authnContextClassRef);
+    final AuthnStatement authnStatement =
+        (AuthnStatement) XMLObjectSupport.buildXMLObject(AuthnStatement.DEFAULT_ELEMENT_NAME);
+    authnStatement.setAuthnContext(authnContext);
+    assertion.getAuthnStatements().add(authnStatement);
+
+    final AttributeStatement statement =
+        (AttributeStatement) XMLObjectSupport.buildXMLObject(AttributeStatement.DEFAULT_ELEMENT_NAME);
+    statement.getAttributes().add(
+        AttributeBuilder.builder(AttributeConstants.ATTRIBUTE_NAME_PERSONAL_IDENTITY_NUMBER).value(USER_ID).build());
+    if (sadJwt != null) {
+      statement.getAttributes().add(
+          AttributeBuilder.builder(AttributeConstants.ATTRIBUTE_NAME_SAD).value(sadJwt).build());
+    }
+    assertion.getAttributeStatements().add(statement);
+
+    return assertion;
+  }
+
+  private static Response buildResponse(final String inResponseTo) {
+    final Response response = (Response) XMLObjectSupport.buildXMLObject(Response.DEFAULT_ELEMENT_NAME);
+    response.setID("_response");
+    response.setInResponseTo(inResponseTo);
+    return response;
+  }
+
+  private static AuthnRequest buildAuthnRequest(final boolean sadRequest) {
+    AuthnRequestBuilder builder = AuthnRequestBuilder.builder()
+        .id(REQUEST_ID)
+        .issuer(SIGNSERVICE_ENTITYID);
+
+    if (sadRequest) {
+      final Extensions exts = (Extensions) XMLObjectSupport.buildXMLObject(Extensions.DEFAULT_ELEMENT_NAME);
+      exts.getUnknownXMLObjects().add(SADRequestBuilder.builder()
+          .id(SAD_REQUEST_ID)
+          .requesterID(SIGNSERVICE_ENTITYID)
+          .signRequestID(SIGN_REQUEST_ID)
+          .docCount(1)
+          .requestedVersion(SADVersion.VERSION_10)
+          .build());
+      builder = builder.extensions(exts);
+    }
+    return builder.build();
+  }
+
+  private static ResponseProcessingInput buildInput(final AuthnRequest authnRequest) {
+    return (ResponseProcessingInput) Proxy.newProxyInstance(ResponseProcessingInput.class.getClassLoader(),
+        new Class<?>[] { ResponseProcessingInput.class },
+        (proxy, method, args) -> "getAuthnRequest".equals(method.getName())
+            && authnRequest != null && authnRequest.getID().equals(args[0]) ? authnRequest : null);
+  }
+
+}